@@ -0,0 +1,57 @@
+package org.phaidra.fedora.subscriber.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.fcrepo.server.messaging.AtomAPIMMessage;
+
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+import org.phaidra.fedora.subscriber.message.ApimMessageParser;
+
+/**
+ * Parsing of an APIM message, with the streaming parser the listener
+ * uses and with AtomAPIMMessage for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ApimParsingBenchmark {
+
+    @Param({Payloads.MODIFY_OBJECT, Payloads.INGEST})
+    public String payload;
+
+    private String messageText;
+
+    private ApimMessageParser parser;
+
+    @Setup
+    public void setUp() {
+        messageText = Payloads.load(payload);
+        parser = new ApimMessageParser();
+    }
+
+    @Benchmark
+    public ApimMessage streaming() {
+        return parser.parse(messageText);
+    }
+
+    @Benchmark
+    public String atomApimMessage() {
+        AtomAPIMMessage message = new AtomAPIMMessage(messageText);
+        return message.getPID() + message.getBaseUrl();
+    }
+}
@@ -0,0 +1,62 @@
+package org.phaidra.fedora.subscriber.benchmarks;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+
+/**
+ * Config lookups done for every message: the current config, the
+ * repository of a message base url and plain property reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConfigBenchmark {
+
+    private Config config;
+
+    private URL repositoryUrl;
+
+    @Setup
+    public void setUp() throws ConfigException, MalformedURLException {
+        config = Config.getCurrentConfig();
+        repositoryUrl = new URL("https://localhost/fedora");
+    }
+
+    @Benchmark
+    public Config getCurrentConfig() throws ConfigException {
+        return Config.getCurrentConfig();
+    }
+
+    @Benchmark
+    public String getRepositoryNameFromUrl() {
+        return config.getRepositoryNameFromUrl(repositoryUrl);
+    }
+
+    @Benchmark
+    public String getProperty() throws ConfigException {
+        return config.getProperty("pfs.repositoryNames");
+    }
+
+    @Benchmark
+    public String getFedoraSoap() {
+        return config.getFedoraSoap("Phaidra");
+    }
+}
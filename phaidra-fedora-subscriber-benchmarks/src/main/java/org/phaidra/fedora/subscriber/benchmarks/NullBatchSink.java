@@ -0,0 +1,27 @@
+package org.phaidra.fedora.subscriber.benchmarks;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.phaidra.fedora.subscriber.pipeline.IndexUpdate;
+import org.phaidra.fedora.subscriber.sink.BatchSink;
+
+/**
+ * A sink that only counts, so that the benchmarks measure the
+ * subscriber and not an index backend.
+ */
+public class NullBatchSink implements BatchSink {
+
+    public static final AtomicLong processed = new AtomicLong();
+
+    public void configure(String updaterName, Properties updaterProps) {
+    }
+
+    public void process(List<IndexUpdate> updates) {
+        processed.addAndGet(updates.size());
+    }
+
+    public void close() {
+    }
+}
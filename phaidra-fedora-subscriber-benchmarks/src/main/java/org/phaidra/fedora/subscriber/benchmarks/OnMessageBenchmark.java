@@ -0,0 +1,74 @@
+package org.phaidra.fedora.subscriber.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.UpdateListener;
+import org.phaidra.fedora.subscriber.pipeline.UpdaterPipeline;
+
+/**
+ * UpdateListener.onMessage end to end: the messages go through the
+ * pipeline of the Bench updater into NullBatchSink.
+ *
+ * The pipeline blocks onMessage when its lanes are full, so in steady
+ * state the measured throughput is the processing throughput of the
+ * whole pipeline, not just the cost of handing a message off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OnMessageBenchmark {
+
+    private static final String CLIENT_ID = "bench";
+
+    private static final int DISTINCT_PIDS = 1024;
+
+    @Param({Payloads.MODIFY_OBJECT, Payloads.INGEST})
+    public String payload;
+
+    private UpdateListener listener;
+
+    private Message[] messages;
+
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        String messageText = Payloads.load(payload);
+        messages = new Message[DISTINCT_PIDS];
+        for (int i=0; i<DISTINCT_PIDS; i++) {
+            messages[i] = new StubTextMessage(Payloads.withPid(messageText, "o:" + (100000 + i)));
+        }
+        listener = new UpdateListener();
+        listener.addPipeline(CLIENT_ID, new UpdaterPipeline(Config.getCurrentConfig().getUpdaterConfig("Bench")));
+    }
+
+    @TearDown
+    public void tearDown() {
+        listener.destroy();
+    }
+
+    @Benchmark
+    public void onMessage() {
+        listener.onMessage(CLIENT_ID, messages[next++ & (DISTINCT_PIDS - 1)]);
+    }
+}
@@ -0,0 +1,53 @@
+package org.phaidra.fedora.subscriber.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads the APIM message payloads under /apim on the classpath.
+ *
+ * modifyObject.xml is a small message as sent for a state change,
+ * ingest.xml a large one as sent for an ingest with a long log message
+ * and RELS-EXT echoed in the content. Both follow the Fedora 3.x
+ * ATOM-APIM-1.0 format; messages recorded from a production broker can
+ * be dropped into the directory under the same names.
+ */
+public final class Payloads {
+
+    public static final String MODIFY_OBJECT = "modifyObject";
+
+    public static final String INGEST = "ingest";
+
+    private Payloads() {
+    }
+
+    public static String load(String name) {
+        InputStream in = Payloads.class.getResourceAsStream("/apim/" + name + ".xml");
+        if (in == null)
+            throw new IllegalArgumentException("no payload /apim/" + name + ".xml on the classpath");
+        try {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toString("UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("could not read payload " + name, ioe);
+        }
+    }
+
+    /**
+     * The payload with its PID o:12345 replaced, so that messages can be
+     * spread over many objects.
+     */
+    public static String withPid(String payload, String pid) {
+        return payload.replace("o:12345", pid);
+    }
+}
@@ -0,0 +1,209 @@
+package org.phaidra.fedora.subscriber.benchmarks;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+
+/**
+ * A TextMessage that only holds text and properties, standing in for
+ * the broker's message class when messages are passed to
+ * UpdateListener.onMessage directly.
+ */
+public class StubTextMessage implements TextMessage {
+
+    private String text;
+
+    private int priority = DEFAULT_PRIORITY;
+
+    private long timestamp = System.currentTimeMillis();
+
+    private final Map<String, Object> properties = new HashMap<String, Object>();
+
+    public StubTextMessage(String text) {
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    public String getJMSMessageID() {
+        return null;
+    }
+
+    public void setJMSMessageID(String id) {
+    }
+
+    public long getJMSTimestamp() {
+        return timestamp;
+    }
+
+    public void setJMSTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public byte[] getJMSCorrelationIDAsBytes() {
+        return null;
+    }
+
+    public void setJMSCorrelationIDAsBytes(byte[] correlationId) {
+    }
+
+    public void setJMSCorrelationID(String correlationId) {
+    }
+
+    public String getJMSCorrelationID() {
+        return null;
+    }
+
+    public Destination getJMSReplyTo() {
+        return null;
+    }
+
+    public void setJMSReplyTo(Destination replyTo) {
+    }
+
+    public Destination getJMSDestination() {
+        return null;
+    }
+
+    public void setJMSDestination(Destination destination) {
+    }
+
+    public int getJMSDeliveryMode() {
+        return DEFAULT_DELIVERY_MODE;
+    }
+
+    public void setJMSDeliveryMode(int deliveryMode) {
+    }
+
+    public boolean getJMSRedelivered() {
+        return false;
+    }
+
+    public void setJMSRedelivered(boolean redelivered) {
+    }
+
+    public String getJMSType() {
+        return null;
+    }
+
+    public void setJMSType(String type) {
+    }
+
+    public long getJMSExpiration() {
+        return 0;
+    }
+
+    public void setJMSExpiration(long expiration) {
+    }
+
+    public int getJMSPriority() {
+        return priority;
+    }
+
+    public void setJMSPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public void clearProperties() {
+        properties.clear();
+    }
+
+    public boolean propertyExists(String name) {
+        return properties.containsKey(name);
+    }
+
+    public boolean getBooleanProperty(String name) throws JMSException {
+        return Boolean.valueOf(getStringProperty(name)).booleanValue();
+    }
+
+    public byte getByteProperty(String name) throws JMSException {
+        return Byte.parseByte(getStringProperty(name));
+    }
+
+    public short getShortProperty(String name) throws JMSException {
+        return Short.parseShort(getStringProperty(name));
+    }
+
+    public int getIntProperty(String name) throws JMSException {
+        return Integer.parseInt(getStringProperty(name));
+    }
+
+    public long getLongProperty(String name) throws JMSException {
+        return Long.parseLong(getStringProperty(name));
+    }
+
+    public float getFloatProperty(String name) throws JMSException {
+        return Float.parseFloat(getStringProperty(name));
+    }
+
+    public double getDoubleProperty(String name) throws JMSException {
+        return Double.parseDouble(getStringProperty(name));
+    }
+
+    public String getStringProperty(String name) {
+        Object value = properties.get(name);
+        return value == null ? null : value.toString();
+    }
+
+    public Object getObjectProperty(String name) {
+        return properties.get(name);
+    }
+
+    public Enumeration getPropertyNames() {
+        return Collections.enumeration(properties.keySet());
+    }
+
+    public void setBooleanProperty(String name, boolean value) {
+        properties.put(name, Boolean.valueOf(value));
+    }
+
+    public void setByteProperty(String name, byte value) {
+        properties.put(name, Byte.valueOf(value));
+    }
+
+    public void setShortProperty(String name, short value) {
+        properties.put(name, Short.valueOf(value));
+    }
+
+    public void setIntProperty(String name, int value) {
+        properties.put(name, Integer.valueOf(value));
+    }
+
+    public void setLongProperty(String name, long value) {
+        properties.put(name, Long.valueOf(value));
+    }
+
+    public void setFloatProperty(String name, float value) {
+        properties.put(name, Float.valueOf(value));
+    }
+
+    public void setDoubleProperty(String name, double value) {
+        properties.put(name, Double.valueOf(value));
+    }
+
+    public void setStringProperty(String name, String value) {
+        properties.put(name, value);
+    }
+
+    public void setObjectProperty(String name, Object value) {
+        properties.put(name, value);
+    }
+
+    public void acknowledge() {
+    }
+
+    public void clearBody() {
+        text = null;
+    }
+}
@@ -0,0 +1,32 @@
+package org.phaidra.fedora.subscriber.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line and
+ * always adds the GC profiler, so every run reports allocations per
+ * operation next to throughput and latency.
+ *
+ *   java -jar target/benchmarks.jar                 all benchmarks
+ *   java -jar target/benchmarks.jar ApimParsing     only the parser
+ *   java -jar target/benchmarks.jar -rf json -rff baseline.json
+ */
+public final class SubscriberBenchmarks {
+
+    private SubscriberBenchmarks() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,58 @@
+package org.phaidra.fedora.subscriber.loadtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.phaidra.fedora.subscriber.Config;
+
+/**
+ * Entry point of loadtest.jar.
+ *
+ *   java -jar target/loadtest.jar record updater.properties storm.rec [seconds] [maxMessages]
+ *   java -jar target/loadtest.jar replay storm.rec [speed|max] [repeat] [drainSeconds]
+ *
+ * record subscribes to the broker of an updater.properties and writes
+ * its messages to a recording until the time is up, maxMessages were
+ * recorded or it is stopped with Ctrl-C. replay plays a recording into
+ * the updater of the pfsconfigFinal on the classpath, at 1x by default,
+ * and prints a LoadReport; it exits with 1 if the updater did not catch
+ * up within drainSeconds (default 600). -Dpfs.loadtest.config=NAME
+ * replays into another config on the classpath.
+ */
+public final class LoadHarness {
+
+    private LoadHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && "record".equals(args[0])) {
+            Properties messagingProperties = new Properties();
+            InputStream in = new FileInputStream(args[1]);
+            try {
+                messagingProperties.load(in);
+            } finally {
+                in.close();
+            }
+            long seconds = args.length > 3 ? Long.parseLong(args[3]) : 0;
+            long maxMessages = args.length > 4 ? Long.parseLong(args[4]) : 0;
+            Recorder.record(messagingProperties, new File(args[2]), seconds, maxMessages);
+            System.exit(0);
+        } else if (args.length >= 2 && "replay".equals(args[0])) {
+            double speed = args.length > 2 ? ("max".equals(args[2]) ? 0 : Double.parseDouble(args[2])) : 1;
+            int repeat = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+            long drainSeconds = args.length > 4 ? Long.parseLong(args[4]) : 600;
+            String configName = System.getProperty("pfs.loadtest.config");
+            if (configName != null)
+                Config.configure(configName);
+            LoadReport report = new Replayer(new File(args[1]), speed, repeat, drainSeconds * 1000).run();
+            report.print(System.out);
+            System.exit(report.isDrained() ? 0 : 1);
+        } else {
+            System.err.println("usage: record updater.properties FILE [seconds] [maxMessages]");
+            System.err.println("       replay FILE [speed|max] [repeat] [drainSeconds]");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.phaidra.fedora.subscriber.loadtest;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Map;
+
+import org.phaidra.fedora.subscriber.metrics.LatencyHistogram;
+
+/**
+ * What a replay measured: the sustained throughput from the first
+ * message published to the last update processed, the best second, the
+ * latency percentiles from publish to sink and the largest backlog.
+ */
+public class LoadReport {
+
+    private final File recording;
+
+    private final double speed;
+
+    private final int repeat;
+
+    private final long published;
+
+    private final long publishMillis;
+
+    private final long elapsedMillis;
+
+    private final boolean drained;
+
+    private final long maxBacklog;
+
+    private final long maxBacklogMillis;
+
+    private final long peakPerSecond;
+
+    private final Map<String, Object> updaterMetrics;
+
+    private final long processed;
+
+    private final LatencyHistogram latencyMillis;
+
+    public LoadReport(File recording, double speed, int repeat, long published, long publishMillis,
+            long elapsedMillis, boolean drained, long maxBacklog, long maxBacklogMillis, long peakPerSecond,
+            Map<String, Object> updaterMetrics, long processed, LatencyHistogram latencyMillis) {
+        this.recording = recording;
+        this.speed = speed;
+        this.repeat = repeat;
+        this.published = published;
+        this.publishMillis = publishMillis;
+        this.elapsedMillis = elapsedMillis;
+        this.drained = drained;
+        this.maxBacklog = maxBacklog;
+        this.maxBacklogMillis = maxBacklogMillis;
+        this.peakPerSecond = peakPerSecond;
+        this.updaterMetrics = updaterMetrics;
+        this.processed = processed;
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return whether the updater caught up before the drain timeout
+     */
+    public boolean isDrained() {
+        return drained;
+    }
+
+    /**
+     * @return updates processed per second from the first message
+     *         published to the last update processed
+     */
+    public double getThroughput() {
+        return elapsedMillis <= 0 ? 0 : processed * 1000.0 / elapsedMillis;
+    }
+
+    public long getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    public LatencyHistogram getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public void print(PrintStream out) {
+        out.println("Replayed " + recording + (repeat > 1 ? " " + repeat + " times" : "") + " at "
+                + (speed > 0 ? speed + "x" : "full speed"));
+        out.println("  published   " + published + " in " + publishMillis + " ms ("
+                + rate(published, publishMillis) + "/s)");
+        out.println("  received    " + updaterMetrics.get("received") + ", duplicates " + updaterMetrics.get("duplicates")
+                + ", ignored " + updaterMetrics.get("ignored") + ", noPid " + updaterMetrics.get("noPid"));
+        out.println("  processed   " + processed + ", failed " + updaterMetrics.get("failed")
+                + (drained ? "" : ", NOT DRAINED within the drain timeout"));
+        out.println("  throughput  " + Math.round(getThroughput()) + "/s sustained over " + elapsedMillis
+                + " ms, " + peakPerSecond + "/s in the best second");
+        out.println("  latency ms  p50 " + latencyMillis.getPercentile(50)
+                + ", p90 " + latencyMillis.getPercentile(90)
+                + ", p99 " + latencyMillis.getPercentile(99)
+                + ", p99.9 " + latencyMillis.getPercentile(99.9)
+                + ", max " + latencyMillis.getMax());
+        out.println("  max backlog " + maxBacklog + " at " + maxBacklogMillis + " ms");
+    }
+
+    private static long rate(long count, long millis) {
+        return millis <= 0 ? count : Math.round(count * 1000.0 / millis);
+    }
+}
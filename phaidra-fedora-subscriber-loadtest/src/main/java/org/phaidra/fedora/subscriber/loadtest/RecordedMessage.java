@@ -0,0 +1,25 @@
+package org.phaidra.fedora.subscriber.loadtest;
+
+/**
+ * One message of a recording: its text and when it arrived, in
+ * milliseconds after the first message of the recording.
+ */
+public class RecordedMessage {
+
+    private final long offsetMillis;
+
+    private final String text;
+
+    public RecordedMessage(long offsetMillis, String text) {
+        this.offsetMillis = offsetMillis;
+        this.text = text;
+    }
+
+    public long getOffsetMillis() {
+        return offsetMillis;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,107 @@
+package org.phaidra.fedora.subscriber.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.apache.log4j.Logger;
+import org.fcrepo.client.messaging.JmsMessagingClient;
+import org.fcrepo.client.messaging.MessagingListener;
+import org.fcrepo.server.errors.MessagingException;
+
+/**
+ * Records the APIM messages of a broker to a file, subscribing the way
+ * an updater does, from the java.naming.*, connection.factory.name and
+ * topic.* or queue.* properties of an updater.properties. The
+ * subscription is not durable, so nothing is left behind on the broker;
+ * do not record from a queue.* destination an updater consumes from, the
+ * messages would be taken from it.
+ */
+public class Recorder implements MessagingListener {
+
+    private final Logger logger = Logger.getLogger(Recorder.class);
+
+    private final RecordingWriter writer;
+
+    private final long maxMessages;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile boolean failed = false;
+
+    public Recorder(RecordingWriter writer, long maxMessages) {
+        this.writer = writer;
+        this.maxMessages = maxMessages;
+    }
+
+    public void onMessage(String clientId, Message message) {
+        if (!(message instanceof TextMessage))
+            return;
+        try {
+            writer.write(System.currentTimeMillis(), ((TextMessage) message).getText());
+        } catch (JMSException jmse) {
+            logger.error("Could not get the text of a message, not recorded", jmse);
+            return;
+        } catch (IOException ioe) {
+            logger.error("Could not write the recording, stopping", ioe);
+            failed = true;
+            done.countDown();
+            return;
+        }
+        if (maxMessages > 0 && writer.getCount() >= maxMessages)
+            done.countDown();
+    }
+
+    /**
+     * Records until maxMessages are recorded, the time is up or the JVM
+     * is shut down, whichever comes first.
+     *
+     * @param seconds how long to record, 0 for no limit
+     */
+    public static void record(Properties messagingProperties, File file, long seconds, long maxMessages)
+            throws IOException, MessagingException, InterruptedException {
+        final RecordingWriter writer = new RecordingWriter(file);
+        final Recorder recorder = new Recorder(writer, maxMessages);
+        String clientId = messagingProperties.getProperty("client.id", "pfs-recorder") + "-recorder";
+        final JmsMessagingClient client = new JmsMessagingClient(clientId, recorder, messagingProperties, false);
+        // Ctrl-C ends a recording without a limit, the gzip stream still has to be finished
+        Thread closer = new Thread(new Runnable() {
+            public void run() {
+                recorder.done.countDown();
+                close(client, writer);
+            }
+        }, "pfs-recorder-close");
+        Runtime.getRuntime().addShutdownHook(closer);
+        client.start(true);
+        System.out.println("Recording to " + file + (seconds > 0 ? " for " + seconds + " s" : "")
+                + (maxMessages > 0 ? ", at most " + maxMessages + " messages" : ""));
+        if (seconds > 0)
+            recorder.done.await(seconds, TimeUnit.SECONDS);
+        else
+            recorder.done.await();
+        close(client, writer);
+        Runtime.getRuntime().removeShutdownHook(closer);
+        System.out.println("Recorded " + writer.getCount() + " messages to " + file);
+        if (recorder.failed)
+            throw new IOException("Recording " + file + " failed, see the log");
+    }
+
+    private static synchronized void close(JmsMessagingClient client, RecordingWriter writer) {
+        try {
+            client.stop(false);
+        } catch (MessagingException me) {
+            // the messages recorded so far are kept all the same
+        }
+        try {
+            writer.close();
+        } catch (IOException ioe) {
+            Logger.getLogger(Recorder.class).error("Could not close the recording", ioe);
+        }
+    }
+}
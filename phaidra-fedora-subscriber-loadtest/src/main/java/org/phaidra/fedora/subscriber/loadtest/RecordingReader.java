@@ -0,0 +1,82 @@
+package org.phaidra.fedora.subscriber.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a recording written by RecordingWriter, one message at a time.
+ * A recording cut short, because the recorder was killed, ends at its
+ * last complete record.
+ */
+public class RecordingReader {
+
+    private final Logger logger = Logger.getLogger(RecordingReader.class);
+
+    private final File file;
+
+    private final DataInputStream in;
+
+    private long offsetMillis = 0;
+
+    public RecordingReader(File file) throws IOException {
+        this.file = file;
+        in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), 65536));
+        boolean valid = false;
+        try {
+            if (in.readInt() != RecordingWriter.MAGIC)
+                throw new IOException(file + " is not a recording");
+            int version = in.readInt();
+            if (version != RecordingWriter.VERSION)
+                throw new IOException(file + " is a recording of version " + version + ", "
+                        + RecordingWriter.VERSION + " is supported");
+            valid = true;
+        } finally {
+            if (!valid)
+                in.close();
+        }
+    }
+
+    /**
+     * @return the next message, or null at the end of the recording
+     */
+    public RecordedMessage read() throws IOException {
+        try {
+            long delta;
+            try {
+                delta = readVarLong();
+            } catch (EOFException eofe) {
+                return null;
+            }
+            int length = (int) readVarLong();
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            offsetMillis += delta;
+            return new RecordedMessage(offsetMillis, new String(bytes, "UTF-8"));
+        } catch (EOFException eofe) {
+            logger.warn("Recording " + file + " ends in the middle of a message, it was not closed");
+            return null;
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Corrupt recording " + file);
+    }
+}
@@ -0,0 +1,76 @@
+package org.phaidra.fedora.subscriber.loadtest;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a recording of APIM messages.
+ *
+ * A recording is a gzip stream of a header, the int MAGIC and the int
+ * VERSION, followed by one record per message: the milliseconds since
+ * the previous message and the length of the UTF-8 text as unsigned
+ * varints, then the text. The messages of one Fedora differ in little
+ * more than PID, dates and datastream, so they compress to a small
+ * fraction of their size.
+ */
+public class RecordingWriter {
+
+    public static final int MAGIC = 0x50465352; // "PFSR"
+
+    public static final int VERSION = 1;
+
+    private final DataOutputStream out;
+
+    private long firstMillis = -1;
+
+    private long previousMillis = 0;
+
+    private long count = 0;
+
+    public RecordingWriter(File file) throws IOException {
+        out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)), 65536));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Appends a message that arrived at receivedMillis; messages have to
+     * be written in the order they arrived.
+     */
+    public synchronized void write(long receivedMillis, String text) throws IOException {
+        if (firstMillis < 0) {
+            firstMillis = receivedMillis;
+            previousMillis = receivedMillis;
+        }
+        byte[] bytes = text.getBytes("UTF-8");
+        writeVarLong(Math.max(0, receivedMillis - previousMillis));
+        writeVarLong(bytes.length);
+        out.write(bytes);
+        previousMillis = Math.max(previousMillis, receivedMillis);
+        ++count;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Finishes the gzip stream; a recording that was not closed can still
+     * be read up to its last complete record.
+     */
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,291 @@
+package org.phaidra.fedora.subscriber.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.UpdateListener;
+import org.phaidra.fedora.subscriber.UpdaterConfig;
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+import org.phaidra.fedora.subscriber.message.ApimMessageParser;
+import org.phaidra.fedora.subscriber.pipeline.NamedThreadFactory;
+import org.phaidra.fedora.subscriber.pipeline.PipelineRegistry;
+import org.phaidra.fedora.subscriber.pipeline.SinkChannel;
+import org.phaidra.fedora.subscriber.pipeline.UpdaterPipeline;
+
+/**
+ * Replays a recording through an in-process ActiveMQ broker into an
+ * UpdateListener started the way the webapp starts it, from the current
+ * config, and measures how the updater keeps up.
+ *
+ * The messages are published to the queue.* destination of the updater
+ * at the pace they were recorded, divided by the speed, or as fast as
+ * the broker takes them with speed 0. Before a message is published its
+ * Atom updated element is set to the current time, which is what the
+ * StubBatchSink measures the latency from; messages that had the same
+ * PID, method, datastream and timestamp in the recording get the same
+ * new timestamp, so duplicate detection sees what it saw in production.
+ * The backlog is the messages published and not received, plus the
+ * updates on the lanes of the updater, plus the lag of the sink furthest
+ * behind; updates held by the coalescer are not counted.
+ */
+public class Replayer {
+
+    static final String BROKER_NAME = "pfs-loadtest";
+
+    private static final long SAMPLE_MILLIS = 100;
+
+    private static final int RETIMED_CAPACITY = 100000;
+
+    private final Logger logger = Logger.getLogger(Replayer.class);
+
+    private final File recording;
+
+    private final double speed;
+
+    private final int repeat;
+
+    private final long drainTimeoutMillis;
+
+    private final ApimMessageParser parser = new ApimMessageParser();
+
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    /** the new timestamps of the messages published last, by PID, method, datastream and old timestamp */
+    private final Map<String, String> retimed = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > RETIMED_CAPACITY;
+        }
+    };
+
+    private final AtomicLong published = new AtomicLong();
+
+    private volatile long maxBacklog = 0;
+
+    private volatile long maxBacklogMillis = 0;
+
+    private volatile long peakPerSecond = 0;
+
+    /**
+     * @param speed how many times faster than recorded to publish,
+     *        0 for as fast as possible
+     * @param repeat how many times to play the recording
+     */
+    public Replayer(File recording, double speed, int repeat, long drainTimeoutMillis) {
+        this.recording = recording;
+        this.speed = speed;
+        this.repeat = repeat;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    public LoadReport run() throws Exception {
+        Config config = Config.getCurrentConfig();
+        UpdaterConfig updaterConfig = getUpdaterConfig(config);
+        String queueName = getQueueName(updaterConfig);
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName(BROKER_NAME);
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setUseShutdownHook(false);
+        broker.start();
+        broker.waitUntilStarted();
+        UpdateListener listener = null;
+        Connection connection = null;
+        ScheduledExecutorService sampler = null;
+        try {
+            listener = new UpdateListener();
+            listener.init();
+            final UpdaterPipeline pipeline = PipelineRegistry.getInstance().getPipeline(updaterConfig.getUpdaterName());
+            if (pipeline == null)
+                throw new IllegalStateException("Updater " + updaterConfig.getUpdaterName() + " did not start, see the log");
+            connection = new ActiveMQConnectionFactory("vm://" + BROKER_NAME + "?create=false").createConnection();
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(session.createQueue(queueName));
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+
+            final long startMillis = System.currentTimeMillis();
+            sampler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pfs-loadtest-sampler"));
+            sampler.scheduleAtFixedRate(new Runnable() {
+                private final long[] processedPerSample = new long[(int) (1000 / SAMPLE_MILLIS)];
+                private int sample = 0;
+
+                public void run() {
+                    long backlog = getBacklog(pipeline);
+                    if (backlog > maxBacklog) {
+                        maxBacklog = backlog;
+                        maxBacklogMillis = System.currentTimeMillis() - startMillis;
+                    }
+                    // processed over the last second, from the samples of the last second
+                    long processed = StubBatchSink.processed.get();
+                    int slot = sample++ % processedPerSample.length;
+                    if (sample > processedPerSample.length)
+                        peakPerSecond = Math.max(peakPerSecond, processed - processedPerSample[slot]);
+                    processedPerSample[slot] = processed;
+                }
+            }, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+            long startNanos = System.nanoTime();
+            long passOffsetMillis = 0;
+            for (int pass=0; pass<repeat; pass++) {
+                passOffsetMillis = publish(session, producer, pass, startNanos, passOffsetMillis);
+            }
+            long publishedMillis = System.currentTimeMillis() - startMillis;
+            System.out.println("Published " + published.get() + " messages in " + publishedMillis + " ms, draining");
+            boolean drained = drain(pipeline);
+            long endMillis = Math.max(StubBatchSink.lastProcessedMillis.get(), startMillis + publishedMillis);
+            sampler.shutdownNow();
+            sampler.awaitTermination(1, TimeUnit.SECONDS);
+            return new LoadReport(recording, speed, repeat, published.get(), publishedMillis,
+                    endMillis - startMillis, drained, maxBacklog, maxBacklogMillis, peakPerSecond,
+                    pipeline.getMetrics().getMetrics(), StubBatchSink.processed.get(), StubBatchSink.latencyMillis);
+        } finally {
+            if (sampler != null)
+                sampler.shutdownNow();
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (JMSException jmse) {
+                    logger.warn("Could not close the publishing connection: " + jmse.getMessage());
+                }
+            }
+            if (listener != null)
+                listener.destroy();
+            broker.stop();
+            broker.waitUntilStopped();
+        }
+    }
+
+    /**
+     * Publishes the recording once.
+     *
+     * @return the offset of the next pass, just after the last message
+     */
+    private long publish(Session session, MessageProducer producer, int pass, long startNanos,
+            long passOffsetMillis) throws IOException, JMSException {
+        RecordingReader reader = new RecordingReader(recording);
+        long offsetMillis = 0;
+        try {
+            RecordedMessage message;
+            while ((message = reader.read()) != null) {
+                offsetMillis = message.getOffsetMillis();
+                if (speed > 0) {
+                    long dueNanos = startNanos + (long) ((passOffsetMillis + offsetMillis) * 1000000L / speed);
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(waitNanos);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while replaying " + recording);
+                        }
+                    }
+                }
+                producer.send(session.createTextMessage(retime(message.getText(), pass)));
+                published.incrementAndGet();
+            }
+        } finally {
+            reader.close();
+        }
+        return passOffsetMillis + offsetMillis + 1;
+    }
+
+    /**
+     * The message text with its Atom updated element set to now, or as
+     * the same message was set before in this pass.
+     */
+    private String retime(String text, int pass) {
+        ApimMessage message = parser.parse(text);
+        String timestamp = message.getTimestamp();
+        if (timestamp == null || timestamp.length() == 0)
+            return text;
+        String key = pass + " " + message.getPid() + " " + message.getMethodName() + " "
+                + message.getDsId() + " " + timestamp;
+        String newTimestamp = retimed.get(key);
+        if (newTimestamp == null) {
+            newTimestamp = timestampFormat.format(new Date());
+            retimed.put(key, newTimestamp);
+        }
+        return text.replace(">" + timestamp + "<", ">" + newTimestamp + "<");
+    }
+
+    /**
+     * Waits until every published message was received and the backlog
+     * has stayed empty for a second.
+     *
+     * @return false if the updater did not catch up within the drain timeout
+     */
+    private boolean drain(UpdaterPipeline pipeline) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        long emptySince = -1;
+        while (System.currentTimeMillis() < deadline) {
+            long now = System.currentTimeMillis();
+            if (getBacklog(pipeline) > 0) {
+                emptySince = -1;
+            } else if (emptySince < 0) {
+                emptySince = now;
+            } else if (now - emptySince >= 1000) {
+                return true;
+            }
+            Thread.sleep(SAMPLE_MILLIS);
+        }
+        return false;
+    }
+
+    private long getBacklog(UpdaterPipeline pipeline) {
+        long backlog = published.get() - pipeline.getMetrics().getReceivedCount()
+                + pipeline.getExecutor().getQueueDepth();
+        long lag = 0;
+        List<SinkChannel> channels = pipeline.getChannels();
+        for (int i=0; i<channels.size(); i++) {
+            lag = Math.max(lag, channels.get(i).getProgress().getLag());
+        }
+        return backlog + lag;
+    }
+
+    private static UpdaterConfig getUpdaterConfig(Config config) {
+        Map<String, UpdaterConfig> updaterConfigs = config.getUpdaterConfigs();
+        if (updaterConfigs == null || updaterConfigs.size() != 1)
+            throw new IllegalArgumentException("Config " + config.getConfigName()
+                    + " must have exactly one updater to replay into");
+        return updaterConfigs.values().iterator().next();
+    }
+
+    private static String getQueueName(UpdaterConfig updaterConfig) {
+        Properties properties = updaterConfig.toProperties();
+        Iterator<Map.Entry<Object, Object>> it = properties.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, Object> entry = it.next();
+            if (((String) entry.getKey()).startsWith("queue."))
+                return ((String) entry.getValue()).trim();
+        }
+        // a topic would lose the messages published before the updater has subscribed
+        throw new IllegalArgumentException("Updater " + updaterConfig.getUpdaterName()
+                + " needs a queue.* destination to replay into");
+    }
+}
@@ -0,0 +1,70 @@
+package org.phaidra.fedora.subscriber.loadtest;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.metrics.LatencyHistogram;
+import org.phaidra.fedora.subscriber.pipeline.IndexUpdate;
+import org.phaidra.fedora.subscriber.sink.ConcurrentBatchSink;
+
+/**
+ * Stands in for Fedora and the index during a replay: takes
+ * pfsupdater.sink.callMillis (default 0) per process call and
+ * pfsupdater.sink.updateMillis (default 0) more per update, as a
+ * backend round trip would, and records the latency of every update
+ * from the moment the Replayer published its message.
+ *
+ * The Replayer sets the Atom updated element of every message to the
+ * time it publishes it, so the latency is read from the timestamp of
+ * the update. The counters are static, there is one sink per replay.
+ */
+public class StubBatchSink implements ConcurrentBatchSink {
+
+    static final AtomicLong processed = new AtomicLong();
+
+    static final AtomicLong lastProcessedMillis = new AtomicLong();
+
+    static final LatencyHistogram latencyMillis = new LatencyHistogram();
+
+    private long callMillis = 0;
+
+    private long updateMillis = 0;
+
+    public void configure(String updaterName, Properties updaterProps) throws ConfigException {
+        callMillis = parseMillis(updaterProps, "pfsupdater.sink.callMillis");
+        updateMillis = parseMillis(updaterProps, "pfsupdater.sink.updateMillis");
+    }
+
+    public void process(List<IndexUpdate> updates) {
+        long backendMillis = callMillis + updateMillis * updates.size();
+        if (backendMillis > 0) {
+            try {
+                Thread.sleep(backendMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (int i=0; i<updates.size(); i++) {
+            long publishedMillis = updates.get(i).getMessage().getTimestampMillis();
+            if (publishedMillis >= 0)
+                latencyMillis.record(now - publishedMillis);
+        }
+        processed.addAndGet(updates.size());
+        lastProcessedMillis.set(now);
+    }
+
+    public void close() {
+    }
+
+    private static long parseMillis(Properties updaterProps, String name) throws ConfigException {
+        String value = updaterProps.getProperty(name);
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new ConfigException(name + " must be a number of milliseconds, not " + value, nfe);
+        }
+    }
+}
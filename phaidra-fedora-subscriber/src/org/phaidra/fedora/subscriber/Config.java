@@ -2,25 +2,36 @@ package org.phaidra.fedora.subscriber;
 
 
 import java.io.File;
-
+import java.io.FileInputStream;
 import java.io.InputStream;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 import org.apache.log4j.Logger;
 
 import org.phaidra.fedora.subscriber.errors.ConfigException;
-
-import org.fcrepo.client.FedoraClient;
-
-import org.fcrepo.server.access.FedoraAPIA;
-import org.fcrepo.server.management.FedoraAPIM;
+import org.phaidra.fedora.subscriber.pipeline.OverflowPolicy;
+import org.phaidra.fedora.subscriber.pipeline.PriorityPolicy;
+import org.phaidra.fedora.subscriber.pipeline.RetryPolicy;
+import org.phaidra.fedora.subscriber.pipeline.UpdateRoute;
+import org.phaidra.fedora.subscriber.pipeline.VirtualThreads;
+import org.phaidra.fedora.subscriber.sink.BatchSink;
 
 /**
  * Reads and checks the configuration files,
@@ -35,44 +46,53 @@ import org.fcrepo.server.management.FedoraAPIM;
  * matching other given configurations, and then the configure operation
  * with a property may be used to change property values for test purposes.
  * 
+ * A Config object is an immutable snapshot: the properties are copied
+ * into unmodifiable maps and the updater and repository values are
+ * resolved into UpdaterConfig and RepositoryConfig objects when it is
+ * built. Changing a property builds a new snapshot and swaps it in
+ * atomically, so readers on the message path never lock and never see
+ * a half applied change.
+ * 
  * @author 
  * @version
  */
 public class Config {
 
-    FedoraClient fedoraClient = null;
+    private static final AtomicReference<Config> currentConfig = new AtomicReference<Config>();
     
-    private static Config currentConfig = null;
+    private static final ConcurrentHashMap<String, Config> configs = new ConcurrentHashMap<String, Config>();
     
-    private static Hashtable<String, Config> configs = new Hashtable<String, Config>();
+    private static final String finalConfigName = "pfsconfigFinal";
     
-    private static String finalConfigName = "pfsconfigFinal";
+    private static final Logger logger = Logger.getLogger(Config.class);
     
-    private String configName = null;
+    private final String configName;
     
-    private Properties fcoProps = null;
+    private final Map<String, String> pfsProps;
     
-    private Properties pfsProps = null;
+    private final Map<String, RepositoryConfig> repositoryConfigs;
     
-    private Hashtable<String, Properties> repositoryNameToProps = null;
+    // in pfs.repositoryNames order, for getRepositoryNameFromUrl
+    private final RepositoryConfig[] repositories;
     
-    private String defaultRepositoryName = null;
+    private final String defaultRepositoryName;
     
-    private Hashtable<String, Properties> updaterNameToProps = null;
+    private final Map<String, UpdaterConfig> updaterConfigs;
 
-    private StringBuffer errors = null;
-    
-    private final Logger logger = Logger.getLogger(Config.class);
+    private final String loadErrors;
 
     /**
-     * The configure operation creates a new current Config object.
+     * The configure operation creates a new current Config object, if
+     * checkConfig finds no errors.
      */
-    public static void configure(String configNameIn) throws ConfigException {
+    public static synchronized void configure(String configNameIn) throws ConfigException {
     	String configName = configNameIn;
     	if (configName==null || configName.equals(""))
     		configName = finalConfigName;
-        currentConfig = new Config(configName);
-        configs.put(configName, currentConfig);
+        Config config = new Config(configName);
+        config.checkConfig();
+        configs.put(configName, config);
+        currentConfig.set(config);
     }
 
    
@@ -81,141 +101,409 @@ public class Config {
      * The configure operation with a property 
      * - creates a new Config object with the configName, if it does not exist,
      * - and sets that property, if it does not give error.
+     * The changed Config replaces the one with the configName,
+     * and the current Config if that was the one changed.
      */
-    public static void configure(String configName, String propertyName, String propertyValue) throws ConfigException {
-    	Config config = configs.get(configName);
-    	if (config==null) {
-    		config = new Config(configName);
-            configs.put(configName, config);
-    	}
-    	String beforeValue = config.getProperty(propertyName);
-    	config.setProperty(propertyName, propertyValue);
-    	config.errors = new StringBuffer();
-    	try {
-			config.checkConfig();
-		} catch (ConfigException e) {
-	    	config.setProperty(propertyName, beforeValue);
-    		throw new ConfigException(config.errors.toString());
-		}
+    public static synchronized void configure(String configName, String propertyName, String propertyValue) throws ConfigException {
+    	Config config = getConfig(configName);
+    	Config changed = config.withProperty(propertyName, propertyValue);
+    	changed.checkConfig();
+    	configs.put(configName, changed);
+    	currentConfig.compareAndSet(config, changed);
     }
     
+    /**
+     * Reads the current configuration again and, if checkConfig finds
+     * no errors, makes it the current Config. On errors the current
+     * Config stays in place and the ConfigException is thrown.
+     * 
+     * @return the new current Config
+     */
+    public static synchronized Config reload() throws ConfigException {
+    	Config config = getCurrentConfig();
+    	Config reloaded = new Config(config.getConfigName());
+    	reloaded.checkConfig();
+    	configs.put(reloaded.getConfigName(), reloaded);
+    	currentConfig.set(reloaded);
+    	return reloaded;
+    }
+    
+    /**
+     * The first call loads pfsconfigFinal, unless configure() was called,
+     * and makes it the current Config if checkConfig finds no errors.
+     * On errors the ConfigException is thrown and the next call tries
+     * again.
+     */
     public static Config getCurrentConfig() throws ConfigException {
-        if (currentConfig == null)
-            currentConfig = new Config(finalConfigName);
-        return currentConfig;
+        Config config = currentConfig.get();
+        if (config == null)
+            config = loadCurrentConfig();
+        return config;
+    }
+
+    private static synchronized Config loadCurrentConfig() throws ConfigException {
+        Config config = currentConfig.get();
+        if (config == null) {
+            config = getConfig(finalConfigName);
+            config.checkConfig();
+            currentConfig.set(config);
+        }
+        return config;
     }
     
     public static Config getConfig(String configName) throws ConfigException {
     	Config config = configs.get(configName);
         if (config == null) {
         	config = new Config(configName);
-            configs.put(configName, config);
+        	Config existing = configs.putIfAbsent(configName, config);
+        	if (existing != null)
+        		config = existing;
         }
         return config;
     }
     
     public Config() {
+        this(new LoadedProps(null));
     }
     
     public Config(String configNameIn) throws ConfigException {
-    	configName = configNameIn;
+        this(loadProps(configNameIn));
+    }
+    
+    private Config(LoadedProps loaded) {
+        configName = loaded.configName;
+        pfsProps = loaded.pfsProps;
+        loadErrors = loaded.errors.toString();
+        
+        Map<String, RepositoryConfig> repositoryMap = new LinkedHashMap<String, RepositoryConfig>();
+        Iterator<Map.Entry<String, Map<String, String>>> repositoryEntries = loaded.repositoryProps.entrySet().iterator();
+        while (repositoryEntries.hasNext()) {
+            Map.Entry<String, Map<String, String>> entry = repositoryEntries.next();
+            repositoryMap.put(entry.getKey(), new RepositoryConfig(entry.getKey(), entry.getValue()));
+        }
+        repositoryConfigs = Collections.unmodifiableMap(repositoryMap);
+        repositories = repositoryMap.values().toArray(new RepositoryConfig[repositoryMap.size()]);
+        defaultRepositoryName = loaded.defaultRepositoryName;
+        
+        if (loaded.updaterProps == null) {
+            updaterConfigs = null; // No updaters will be created
+        } else {
+            Map<String, UpdaterConfig> updaterMap = new LinkedHashMap<String, UpdaterConfig>();
+            Iterator<Map.Entry<String, Map<String, String>>> updaterEntries = loaded.updaterProps.entrySet().iterator();
+            while (updaterEntries.hasNext()) {
+                Map.Entry<String, Map<String, String>> entry = updaterEntries.next();
+                updaterMap.put(entry.getKey(), new UpdaterConfig(entry.getKey(), entry.getValue()));
+            }
+            updaterConfigs = Collections.unmodifiableMap(updaterMap);
+        }
+    }
+    
+    private static LoadedProps loadProps(String configNameIn) throws ConfigException {
+    	String configName = configNameIn;
     	if (configName==null || configName.equals(""))
     		configName = finalConfigName;
-        errors = new StringBuffer();
+    	LoadedProps loaded = new LoadedProps(configName);
+    	File configDir = getConfigDir(configName);
         
 //      Get pfs properties
-    	pfsProps = getPfsConfigProps("/"+configName+"/pfs.properties");
+    	loaded.pfsProps = toMap(getPfsConfigProps(configDir, configName, "pfs.properties"));
 
 //      Get updater properties
-    	String updaterProperty = getProperty(pfsProps, "pfs.updaterNames");
+    	String updaterProperty = loaded.pfsProps.get("pfs.updaterNames");
     	if(updaterProperty == null) {
-    		updaterNameToProps = null; // No updaters will be created
+    		loaded.updaterProps = null; // No updaters will be created
     	} else {           
-    		updaterNameToProps = new Hashtable<String, Properties>();
+    		loaded.updaterProps = new LinkedHashMap<String, Map<String, String>>();
     		StringTokenizer updaterNames = new StringTokenizer(updaterProperty);
     		while (updaterNames.hasMoreTokens()) {
     			String updaterName = updaterNames.nextToken();
 				try {
-					updaterNameToProps.put(updaterName, getPfsConfigProps("/"+configName+"/updater/"+updaterName+"/updater.properties"));
+					loaded.updaterProps.put(updaterName, toMap(getPfsConfigProps(configDir, configName, "updater/"+updaterName+"/updater.properties")));
 				} catch (Exception e) {
-	            	errors.append("\n*** " + e.toString());
+	            	loaded.errors.append("\n*** " + e.toString());
 				}
     		}
     	}
     	
 //      Get repository properties
-        repositoryNameToProps = new Hashtable<String, Properties>();
-        defaultRepositoryName = null;
-        StringTokenizer repositoryNames = new StringTokenizer(getProperty(pfsProps, "pfs.repositoryNames"));
+        String repositoryProperty = loaded.pfsProps.get("pfs.repositoryNames");
+        StringTokenizer repositoryNames = new StringTokenizer(repositoryProperty == null ? "" : repositoryProperty);
         while (repositoryNames.hasMoreTokens()) {
             String repositoryName = repositoryNames.nextToken();
-            if (defaultRepositoryName == null)
-                defaultRepositoryName = repositoryName;
+            if (loaded.defaultRepositoryName == null)
+                loaded.defaultRepositoryName = repositoryName;
             try {
-				repositoryNameToProps.put(repositoryName, getPfsConfigProps("/"+configName+"/repository/"+repositoryName+"/repository.properties"));
+				loaded.repositoryProps.put(repositoryName, toMap(getPfsConfigProps(configDir, configName, "repository/"+repositoryName+"/repository.properties")));
 			} catch (Exception e) {
-            	errors.append("\n*** " + e.toString());
+            	loaded.errors.append("\n*** " + e.toString());
 			}
         }
-
+        return loaded;
+    }
+    
+    /**
+     * A copy of this Config with one property changed. The property is
+     * named as for getProperty(String).
+     */
+    private Config withProperty(String propertyName, String propertyValue) throws ConfigException {
+        if (logger.isInfoEnabled())
+            logger.info("property " + propertyName + "=" + propertyValue);
+        LoadedProps loaded = new LoadedProps(configName);
+        loaded.errors.append(loadErrors);
+        loaded.pfsProps = pfsProps;
+        loaded.defaultRepositoryName = defaultRepositoryName;
+        Iterator<RepositoryConfig> it = repositoryConfigs.values().iterator();
+        while (it.hasNext()) {
+            RepositoryConfig repositoryConfig = it.next();
+            loaded.repositoryProps.put(repositoryConfig.getRepositoryName(), toMap(repositoryConfig.toProperties()));
+        }
+        if (updaterConfigs != null) {
+            loaded.updaterProps = new LinkedHashMap<String, Map<String, String>>();
+            Iterator<UpdaterConfig> updaters = updaterConfigs.values().iterator();
+            while (updaters.hasNext()) {
+                UpdaterConfig updaterConfig = updaters.next();
+                loaded.updaterProps.put(updaterConfig.getUpdaterName(), toMap(updaterConfig.toProperties()));
+            }
+        }
+        if (propertyName==null || propertyName.equals(""))
+            return new Config(loaded);
+        int i = propertyName.indexOf("/");
+        String propName = propertyName;
+        Map<String, String> props = null;
+        if (i>-1) {
+            String propsName = propertyName.substring(0, i);
+            propName = propertyName.substring(i+1);
+            if (logger.isDebugEnabled())
+                logger.debug("propsName=" + propsName + " propName=" + propName);
+            props = loaded.repositoryProps.get(propsName);
+            if (props != null) {
+                props = new HashMap<String, String>(props);
+                loaded.repositoryProps.put(propsName, props);
+            }
+        } else {
+            props = new HashMap<String, String>(pfsProps);
+            loaded.pfsProps = props;
+        }
+        if (props!=null && propName!=null && propName.length()>0) {
+            if (propertyValue == null)
+                props.remove(propName);
+            else
+                props.put(propName, propertyValue.trim());
+        } else {
+            throw new ConfigException("property " + propertyName + " not found");
+        }
+        return new Config(loaded);
     }
   
     private void checkConfig() throws ConfigException {
+        StringBuffer errors = new StringBuffer(loadErrors);
         
 //  	Check for unknown properties, indicating typos or wrong property names
     	String[] propNames = { 			
     			"pfs.repositoryNames",
-    			"pfs.updaterNames"
+    			"pfs.updaterNames",
+    			"pfs.configReloadMillis",
+    			"pfs.debugLogEvery",
+    			"pfs.objectCacheSize",
+    			"pfs.objectCacheTtlMillis",
+    			"pfs.reindexDir",
+    			"pfs.reindexRate",
+    			"pfs.reindexMaxQueued",
+    			"pfs.messagingStartWaitMillis",
+    			"pfs.messagingStartThreads"
     	};
-    	checkPropNames("pfs.properties", pfsProps, propNames);
+    	checkPropNames(errors, "pfs.properties", pfsProps, propNames);
+    	checkNonNegativeIntProp(errors, configName+"/pfs.properties", pfsProps.get("pfs.messagingStartWaitMillis"), "pfs.messagingStartWaitMillis");
+    	checkPositiveIntProp(errors, configName+"/pfs.properties", pfsProps.get("pfs.messagingStartThreads"), "pfs.messagingStartThreads");
 
 
 //		Check updater properties
-    	Enumeration<String> updaterNames = updaterNameToProps.keys();
-    	while (updaterNames.hasMoreElements()) {
-    		String updaterName = updaterNames.nextElement();
-    		Properties props = updaterNameToProps.get(updaterName);  
+    	String[] updaterPropNames = {
+    			"connection.factory.name",
+    			"client.id",
+    			"pfsupdater.executionMode",
+    			"pfsupdater.lanes",
+    			"pfsupdater.queueDepth",
+    			"pfsupdater.overflowPolicy",
+    			"pfsupdater.spillDir",
+    			"pfsupdater.coalesceWindowMillis",
+    			"pfsupdater.batchSize",
+    			"pfsupdater.batchLatencyMillis",
+    			"pfsupdater.guardWaitMillis",
+    			"pfsupdater.sink.class",
+    			"pfsupdater.spoolDir",
+    			"pfsupdater.spoolSegmentBytes",
+    			"pfsupdater.spoolSyncMillis",
+    			"pfsupdater.consumers",
+    			"pfsupdater.prefetch",
+    			"pfsupdater.ackMode",
+    			"pfsupdater.durable",
+    			"pfsupdater.reconnect",
+    			"pfsupdater.reconnectInitialDelayMillis",
+    			"pfsupdater.reconnectMaxDelayMillis",
+    			"pfsupdater.deadLetterDir",
+    			"pfsupdater.dedupWindowMillis",
+    			"pfsupdater.dedupCapacity",
+    			"pfsupdater.dedupFalsePositiveRate",
+    			"pfsupdater.routes",
+    			"pfsupdater.sinks"
+    	};
+    	// pfsupdater.retry.<failure class>.<setting> for every failure class
+    	String[] retrySettings = { "maxAttempts", "initialDelayMillis", "maxDelayMillis" };
+    	List<String> retryPropNames = new ArrayList<String>();
+    	for (int i=0; i<RetryPolicy.FAILURE_CLASSES.length; i++) {
+    		for (int j=0; j<retrySettings.length; j++) {
+    			retryPropNames.add("pfsupdater.retry."+RetryPolicy.FAILURE_CLASSES[i]+"."+retrySettings[j]);
+    		}
+    	}
+    	List<String> allUpdaterPropNames = new ArrayList<String>(Arrays.asList(updaterPropNames));
+    	allUpdaterPropNames.addAll(retryPropNames);
+    	updaterPropNames = allUpdaterPropNames.toArray(new String[allUpdaterPropNames.size()]);
+    	// JNDI environment, destinations, properties of the sink and routes
+    	String[] updaterPropPrefixes = {
+    			"java.naming.",
+    			"topic.",
+    			"queue.",
+    			"pfsupdater.sink.",
+    			"pfsupdater.route.",
+    			"pfsupdater.priority."
+    	};
+    	List<String> routeSettings = Arrays.asList(new String[] { "methods", "dsIds", "namespaces", "action", "sinks" });
+    	Iterator<UpdaterConfig> updaters = updaterConfigs == null
+    			? Collections.<UpdaterConfig>emptyList().iterator() : updaterConfigs.values().iterator();
+    	while (updaters.hasNext()) {
+    		UpdaterConfig props = updaters.next();
+    		String updaterName = props.getUpdaterName();
 			String updaterFilePath = configName+"/updater/"+updaterName+"/updater.properties";
-			if(getProperty(props, "java.naming.factory.initial") == null) {
+			if(props.getProperty("java.naming.factory.initial") == null) {
 				errors.append("\n*** java.naming.factory.initial not provided in "+updaterFilePath);
 			}
-			if(getProperty(props, "java.naming.provider.url") == null) {
+			if(props.getProperty("java.naming.provider.url") == null) {
 				errors.append("\n*** java.naming.provider.url not provided in "+updaterFilePath);
 			}
-			if(getProperty(props, "connection.factory.name") == null) {
+			if(props.getProperty("connection.factory.name") == null) {
 				errors.append("\n*** connection.factory.name not provided in "+updaterFilePath);
 			}
-			if(getProperty(props, "client.id") == null) {
+			if(props.getProperty("client.id") == null) {
 				errors.append("\n*** client.id not provided in "+updaterFilePath);
 			}  
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.lanes");
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.queueDepth");
+			checkNonNegativeIntProp(errors, updaterFilePath, props, "pfsupdater.coalesceWindowMillis");
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.batchSize");
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.batchLatencyMillis");
+			checkNonNegativeIntProp(errors, updaterFilePath, props, "pfsupdater.guardWaitMillis");
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.spoolSegmentBytes");
+			checkNonNegativeIntProp(errors, updaterFilePath, props, "pfsupdater.spoolSyncMillis");
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.consumers");
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.prefetch");
+			checkNonNegativeIntProp(errors, updaterFilePath, props, "pfsupdater.dedupWindowMillis");
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.dedupCapacity");
+			String falsePositiveRate = props.getProperty("pfsupdater.dedupFalsePositiveRate");
+			if (falsePositiveRate != null && !(props.getDedupFalsePositiveRate() > 0 && props.getDedupFalsePositiveRate() < 1)) {
+				errors.append("\n*** "+updaterFilePath+": pfsupdater.dedupFalsePositiveRate must be between 0 and 1, was " + falsePositiveRate);
+			}
+			for (int i=0; i<retryPropNames.size(); i++) {
+				String retryPropName = retryPropNames.get(i);
+				if (retryPropName.endsWith(".maxAttempts"))
+					checkPositiveIntProp(errors, updaterFilePath, props, retryPropName);
+				else
+					checkNonNegativeIntProp(errors, updaterFilePath, props, retryPropName);
+			}
+			String ackMode = props.getProperty("pfsupdater.ackMode");
+			if (ackMode != null && !UpdaterConfig.ACK_MODE_AUTO.equalsIgnoreCase(ackMode)
+					&& !UpdaterConfig.ACK_MODE_BATCH.equalsIgnoreCase(ackMode)) {
+				errors.append("\n*** "+updaterFilePath+": pfsupdater.ackMode must be one of auto, batch");
+			}
+			String durable = props.getProperty("pfsupdater.durable");
+			if (durable != null && !"true".equalsIgnoreCase(durable) && !"false".equalsIgnoreCase(durable)) {
+				errors.append("\n*** "+updaterFilePath+": pfsupdater.durable must be true or false");
+			}
+			String reconnect = props.getProperty("pfsupdater.reconnect");
+			if (reconnect != null && !"true".equalsIgnoreCase(reconnect) && !"false".equalsIgnoreCase(reconnect)) {
+				errors.append("\n*** "+updaterFilePath+": pfsupdater.reconnect must be true or false");
+			}
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.reconnectInitialDelayMillis");
+			checkPositiveIntProp(errors, updaterFilePath, props, "pfsupdater.reconnectMaxDelayMillis");
+			if (props.getReconnectInitialDelayMillis() > props.getReconnectMaxDelayMillis()) {
+				errors.append("\n*** "+updaterFilePath+": pfsupdater.reconnectInitialDelayMillis must not be above pfsupdater.reconnectMaxDelayMillis");
+			}
+			Map<String, String> updaterProps = toMap(props.toProperties());
+			if (props.getConsumers() > 1) {
+				Iterator<String> names = updaterProps.keySet().iterator();
+				while (names.hasNext()) {
+					if (names.next().startsWith("topic.")) {
+						errors.append("\n*** "+updaterFilePath+": pfsupdater.consumers > 1 needs queue.* destinations,"
+								+ " each consumer of a topic gets every message");
+						break;
+					}
+				}
+			}
+			checkPropNames(errors, updaterFilePath, updaterProps, updaterPropNames, updaterPropPrefixes);
+			checkRoutes(errors, updaterFilePath, props, updaterProps, routeSettings);
+			checkSinks(errors, updaterFilePath, props);
+			String overflowPolicy = props.getProperty("pfsupdater.overflowPolicy");
+			if (overflowPolicy != null && OverflowPolicy.fromString(overflowPolicy) == null) {
+				errors.append("\n*** "+updaterFilePath+": pfsupdater.overflowPolicy must be one of block, drop_oldest, spill");
+			}
+			if (props.getOverflowPolicy() == OverflowPolicy.SPILL && props.getSpillDir() == null) {
+				errors.append("\n*** pfsupdater.spillDir not provided in "+updaterFilePath);
+			}
+			checkExecutionMode(errors, updaterFilePath, props);
+			checkPriority(errors, updaterFilePath, props, updaterProps);
     	}
     	
 
 
 //  	Check repository properties
-    	Enumeration<String> repositoryNames = repositoryNameToProps.keys();
-    	while (repositoryNames.hasMoreElements()) {
-    		String repositoryName = repositoryNames.nextElement();
-    		Properties props = repositoryNameToProps.get(repositoryName);    		
+    	Iterator<RepositoryConfig> repositories = repositoryConfigs.values().iterator();
+    	while (repositories.hasNext()) {
+    		RepositoryConfig repositoryConfig = repositories.next();
+    		String repositoryName = repositoryConfig.getRepositoryName();
 //  		Check for unknown properties, indicating typos or wrong property names
     		String[] reposPropNames = {
     				"pfsrepository.repositoryName",
     				"pfsrepository.fedoraSoap",
     				"pfsrepository.fedoraUser",
     				"pfsrepository.fedoraPass",
+    				"pfsrepository.fedoraResource",
     				"pfsrepository.fedoraObjectDir",
+    				"pfsrepository.fedoraObjectPathPattern",
     				"pfsrepository.fedoraVersion",
     				"pfsrepository.trustStorePath",
-    				"pfsrepository.trustStorePass"
+    				"pfsrepository.trustStorePass",
+    				"pfsrepository.soapPoolSize",
+    				"pfsrepository.soapPoolWaitMillis",
+    				"pfsrepository.soapConnectTimeoutMillis",
+    				"pfsrepository.soapReadTimeoutMillis",
+    				"pfsrepository.breakerFailures",
+    				"pfsrepository.breakerOpenMillis",
+    				"pfsrepository.slowCallMillis",
+    				"pfsrepository.concurrencyMinLimit",
+    				"pfsrepository.concurrencyMaxLimit"
     		};
-    		checkPropNames(configName+"/repository/"+repositoryName+"/repository.properties", props, reposPropNames);
+    		checkPropNames(errors, configName+"/repository/"+repositoryName+"/repository.properties",
+    				toMap(repositoryConfig.toProperties()), reposPropNames);
 
 //  		Check repositoryName
-    		String propsRepositoryName = getProperty(props, "pfsrepository.repositoryName");
+    		String propsRepositoryName = repositoryConfig.getProperty("pfsrepository.repositoryName");
     		if (!repositoryName.equals(propsRepositoryName)) {
     			errors.append("\n*** "+configName+"/repository/" + repositoryName +
     					": pfsrepository.repositoryName must be=" + repositoryName);
     		}
+    		String repositoryFilePath = configName+"/repository/"+repositoryName+"/repository.properties";
+    		checkPositiveIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.soapPoolSize"), "pfsrepository.soapPoolSize");
+    		checkNonNegativeIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.soapPoolWaitMillis"), "pfsrepository.soapPoolWaitMillis");
+    		checkNonNegativeIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.soapConnectTimeoutMillis"), "pfsrepository.soapConnectTimeoutMillis");
+    		checkNonNegativeIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.soapReadTimeoutMillis"), "pfsrepository.soapReadTimeoutMillis");
+    		checkPositiveIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.breakerFailures"), "pfsrepository.breakerFailures");
+    		checkNonNegativeIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.breakerOpenMillis"), "pfsrepository.breakerOpenMillis");
+    		checkNonNegativeIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.slowCallMillis"), "pfsrepository.slowCallMillis");
+    		checkPositiveIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.concurrencyMinLimit"), "pfsrepository.concurrencyMinLimit");
+    		checkPositiveIntProp(errors, repositoryFilePath, repositoryConfig.getProperty("pfsrepository.concurrencyMaxLimit"), "pfsrepository.concurrencyMaxLimit");
+    		if (repositoryConfig.getConcurrencyMinLimit() > repositoryConfig.getConcurrencyMaxLimit()) {
+    			errors.append("\n*** "+repositoryFilePath+": pfsrepository.concurrencyMinLimit must not be above pfsrepository.concurrencyMaxLimit");
+    		}
     	
     	}
         if (logger.isDebugEnabled())
@@ -225,52 +513,295 @@ public class Config {
     }
 
     
-    private void checkPropNames(String propsFileName, Properties props, String[] propNames) {
+    private void checkSinks(StringBuffer errors, String propsFileName, UpdaterConfig props) {
+    	List<SinkConfig> sinkConfigs = props.getSinkConfigs();
+    	List<String> sinkNames = new ArrayList<String>();
+    	for (int i=0; i<sinkConfigs.size(); i++) {
+    		SinkConfig sinkConfig = sinkConfigs.get(i);
+    		String sinkName = sinkConfig.getSinkName();
+    		if (sinkNames.contains(sinkName)) {
+    			errors.append("\n*** "+propsFileName+": sink "+sinkName+" is listed twice in pfsupdater.sinks");
+    		}
+    		sinkNames.add(sinkName);
+    		String prefix = "pfsupdater.sink."+sinkName+".";
+    		String sinkClassName = sinkConfig.getSinkClassName();
+    		try {
+    			if (!BatchSink.class.isAssignableFrom(Class.forName(sinkClassName)))
+    				errors.append("\n*** "+propsFileName+": sink class "+sinkClassName+" of sink "+sinkName+" does not implement "+BatchSink.class.getName());
+    		} catch (ClassNotFoundException e) {
+    			errors.append("\n*** "+propsFileName+": sink class "+sinkClassName+" of sink "+sinkName+" not found");
+    		}
+    		checkPositiveIntProp(errors, propsFileName, sinkConfig.getProperty("lanes"), prefix+"lanes");
+    		checkPositiveIntProp(errors, propsFileName, sinkConfig.getProperty("queueDepth"), prefix+"queueDepth");
+    		checkPositiveIntProp(errors, propsFileName, sinkConfig.getProperty("batchSize"), prefix+"batchSize");
+    		checkPositiveIntProp(errors, propsFileName, sinkConfig.getProperty("batchLatencyMillis"), prefix+"batchLatencyMillis");
+    		checkNonNegativeIntProp(errors, propsFileName, sinkConfig.getProperty("guardWaitMillis"), prefix+"guardWaitMillis");
+    		String overflowPolicy = sinkConfig.getProperty("overflowPolicy");
+    		if (overflowPolicy != null && OverflowPolicy.fromString(overflowPolicy) == null) {
+    			errors.append("\n*** "+propsFileName+": "+prefix+"overflowPolicy must be one of block, drop_oldest, spill");
+    		}
+    		if (sinkConfigs.size() > 1 && sinkConfig.getOverflowPolicy() == OverflowPolicy.SPILL && sinkConfig.getSpillDir() == null) {
+    			errors.append("\n*** pfsupdater.spillDir not provided in "+propsFileName+", sink "+sinkName+" spills");
+    		}
+    	}
+    }
+
+    private void checkExecutionMode(StringBuffer errors, String propsFileName, UpdaterConfig props) {
+    	String executionMode = props.getExecutionMode();
+    	if (UpdaterConfig.EXECUTION_LANES.equals(executionMode))
+    		return;
+    	if (!UpdaterConfig.EXECUTION_VIRTUAL.equals(executionMode)) {
+    		errors.append("\n*** "+propsFileName+": pfsupdater.executionMode must be one of lanes, virtual");
+    		return;
+    	}
+    	if (!VirtualThreads.isSupported()) {
+    		errors.append("\n*** "+propsFileName+": pfsupdater.executionMode=virtual needs Java 21 or later, this is Java "
+    				+ System.getProperty("java.version"));
+    	}
+    	// there is no queue to drop from or spill, submit() waits for room
+    	if (props.getOverflowPolicy() != OverflowPolicy.BLOCK) {
+    		errors.append("\n*** "+propsFileName+": pfsupdater.executionMode=virtual needs pfsupdater.overflowPolicy=block");
+    	}
+    	List<SinkConfig> sinkConfigs = props.getSinkConfigs();
+    	for (int i=0; sinkConfigs.size() > 1 && i<sinkConfigs.size(); i++) {
+    		if (sinkConfigs.get(i).getOverflowPolicy() != OverflowPolicy.BLOCK) {
+    			errors.append("\n*** "+propsFileName+": pfsupdater.executionMode=virtual needs pfsupdater.sink."
+    					+sinkConfigs.get(i).getSinkName()+".overflowPolicy=block");
+    		}
+    	}
+    }
+
+    private void checkPriority(StringBuffer errors, String propsFileName, UpdaterConfig props,
+    		Map<String, String> updaterProps) {
+    	List<String> priorityPropNames = new ArrayList<String>(Arrays.asList(new String[] {
+    			"pfsupdater.priority.mode",
+    			"pfsupdater.priority.weight",
+    			"pfsupdater.priority.maxBulkWaitMillis",
+    			"pfsupdater.priority.default" }));
+    	for (int i=0; i<PriorityPolicy.CLASSES.length; i++) {
+    		for (int j=0; j<PriorityPolicy.CRITERIA.length; j++) {
+    			priorityPropNames.add("pfsupdater.priority."+PriorityPolicy.CLASSES[i]+"."+PriorityPolicy.CRITERIA[j]);
+    		}
+    	}
+    	boolean prioritySet = false;
+    	Iterator<String> names = updaterProps.keySet().iterator();
+    	while (names.hasNext()) {
+    		String name = names.next();
+    		if (!name.startsWith("pfsupdater.priority."))
+    			continue;
+    		prioritySet = true;
+    		if (!priorityPropNames.contains(name))
+    			errors.append("\n*** "+propsFileName+": unknown priority property "+name);
+    	}
+    	PriorityPolicy policy = props.getPriorityPolicy();
+    	if (policy == null) {
+    		if (prioritySet)
+    			errors.append("\n*** "+propsFileName+": pfsupdater.priority.* properties need pfsupdater.priority.mode");
+    		return;
+    	}
+    	if (!Arrays.asList(PriorityPolicy.MODES).contains(policy.getMode())) {
+    		errors.append("\n*** "+propsFileName+": pfsupdater.priority.mode must be one of strict, weighted");
+    	}
+    	checkPositiveIntProp(errors, propsFileName, props, "pfsupdater.priority.weight");
+    	checkNonNegativeIntProp(errors, propsFileName, props, "pfsupdater.priority.maxBulkWaitMillis");
+    	String defaultClass = props.getProperty("pfsupdater.priority.default");
+    	if (defaultClass != null && !Arrays.asList(PriorityPolicy.CLASSES).contains(defaultClass.trim().toLowerCase())) {
+    		errors.append("\n*** "+propsFileName+": pfsupdater.priority.default must be one of interactive, bulk");
+    	}
+    	for (int i=0; i<PriorityPolicy.CLASSES.length; i++) {
+    		String propName = "pfsupdater.priority."+PriorityPolicy.CLASSES[i]+".jmsPriority";
+    		String value = props.getProperty(propName);
+    		if (value != null && (Config.parseInt(value, -1) < 0 || Config.parseInt(value, -1) > 9)) {
+    			errors.append("\n*** "+propsFileName+": "+propName+" must be a JMS priority from 0 to 9, was " + value);
+    		}
+    	}
+    	// the virtual thread executor has no queue to order
+    	if (!UpdaterConfig.EXECUTION_LANES.equals(props.getExecutionMode())) {
+    		errors.append("\n*** "+propsFileName+": pfsupdater.priority.mode needs pfsupdater.executionMode=lanes");
+    	}
+    }
+
+    private void checkRoutes(StringBuffer errors, String propsFileName, UpdaterConfig props,
+    		Map<String, String> updaterProps, List<String> routeSettings) {
+    	List<String> routeNames = props.getRouteNames();
+    	Iterator<String> names = updaterProps.keySet().iterator();
+    	while (names.hasNext()) {
+    		String name = names.next();
+    		if (!name.startsWith("pfsupdater.route."))
+    			continue;
+    		String rest = name.substring("pfsupdater.route.".length());
+    		int dot = rest.lastIndexOf('.');
+    		if (dot < 0 || !routeSettings.contains(rest.substring(dot + 1))) {
+    			errors.append("\n*** "+propsFileName+": unknown route property "+name);
+    		} else if (!routeNames.contains(rest.substring(0, dot))) {
+    			errors.append("\n*** "+propsFileName+": route "+rest.substring(0, dot)+" of "+name+" is not listed in pfsupdater.routes");
+    		}
+    	}
+    	List<UpdateRoute> routes = props.getRoutes();
+    	for (int i=0; i<routes.size(); i++) {
+    		UpdateRoute route = routes.get(i);
+    		if (!Arrays.asList(UpdateRoute.ACTIONS).contains(route.getAction())) {
+    			errors.append("\n*** "+propsFileName+": pfsupdater.route."+route.getName()+".action must be one of ignore, index, update, delete");
+    		}
+    		List<String> sinkNames = route.getSinkNames();
+    		for (int j=0; sinkNames != null && j<sinkNames.size(); j++) {
+    			if (!props.getSinkNames().contains(sinkNames.get(j)))
+    				errors.append("\n*** "+propsFileName+": pfsupdater.route."+route.getName()+".sinks names unknown sink "+sinkNames.get(j));
+    		}
+    	}
+    }
+
+    private void checkPropNames(StringBuffer errors, String propsFileName, Map<String, String> props, String[] propNames) {
+    	checkPropNames(errors, propsFileName, props, propNames, new String[0]);
+    }
+    
+    private void checkPropNames(StringBuffer errors, String propsFileName, Map<String, String> props, String[] propNames, String[] propPrefixes) {
 //		Check for unknown properties, indicating typos or wrong property names
-        Enumeration<Object> it = props.keys();
-        while (it.hasMoreElements()) {
-        	String propName = (String)it.nextElement();
+        Iterator<String> it = props.keySet().iterator();
+        while (it.hasNext()) {
+        	String propName = it.next();
         	for (int i=0; i<propNames.length; i++) {
         		if (propNames[i].equals(propName)) {
         			propName = null;
         		}
         	}
+        	for (int i=0; propName!=null && i<propPrefixes.length; i++) {
+        		if (propName.startsWith(propPrefixes[i])) {
+        			propName = null;
+        		}
+        	}
         	if (propName!=null) {
                 errors.append("\n*** unknown config property in "+propsFileName+": " + propName);
         	}
         }
     }
+
+    private void checkPositiveIntProp(StringBuffer errors, String propsFileName, UpdaterConfig props, String propName) {
+    	checkPositiveIntProp(errors, propsFileName, props.getProperty(propName), propName);
+    }
+
+    private void checkNonNegativeIntProp(StringBuffer errors, String propsFileName, UpdaterConfig props, String propName) {
+    	checkNonNegativeIntProp(errors, propsFileName, props.getProperty(propName), propName);
+    }
+
+    private void checkPositiveIntProp(StringBuffer errors, String propsFileName, String value, String propName) {
+    	checkIntProp(errors, propsFileName, value, propName, 1, "a positive integer");
+    }
+
+    private void checkNonNegativeIntProp(StringBuffer errors, String propsFileName, String value, String propName) {
+    	checkIntProp(errors, propsFileName, value, propName, 0, "zero or a positive integer");
+    }
+
+    private void checkIntProp(StringBuffer errors, String propsFileName, String value, String propName, int minValue, String expected) {
+    	if (value == null)
+    		return;
+    	try {
+    		if (Integer.parseInt(value) >= minValue)
+    			return;
+    	} catch (NumberFormatException e) {
+    	}
+    	errors.append("\n*** "+propsFileName+": "+propName+" must be "+expected+", was " + value);
+    }
     
     public String getConfigName() {
         return configName;
     }
     
     public String getSoapBase() {
-        return getProperty(pfsProps, "pfs.soapBase");
+        return pfsProps.get("pfs.soapBase");
     }
     
     public String getSoapUser() {
-        return getProperty(pfsProps, "pfs.soapUser");
+        return pfsProps.get("pfs.soapUser");
     }
     
     public String getSoapPass() {
-        return getProperty(pfsProps, "pfs.soapPass");
+        return pfsProps.get("pfs.soapPass");
+    }
+
+    
+    /**
+     * @return how often the config files are checked for changes,
+     *         0 if they are not (default)
+     */
+    public long getConfigReloadMillis() {
+    	return parseInt(pfsProps.get("pfs.configReloadMillis"), 0);
+    }
+
+    /**
+     * @return the number of Fedora objects whose info is cached,
+     *         0 for no caching (default 10000)
+     */
+    public int getObjectCacheSize() {
+    	return parseInt(pfsProps.get("pfs.objectCacheSize"), 10000);
+    }
+
+    /**
+     * @return how long cached object info is used (default 10 minutes)
+     */
+    public long getObjectCacheTtlMillis() {
+    	return parseInt(pfsProps.get("pfs.objectCacheTtlMillis"), 600000);
+    }
+
+    /**
+     * @return the directory reindex checkpoints are kept in, or null
+     *         if reindexes cannot be resumed
+     */
+    public File getReindexDir() {
+    	String reindexDirName = insertSystemProperties(pfsProps.get("pfs.reindexDir"));
+    	return reindexDirName == null ? null : new File(reindexDirName);
+    }
+
+    /**
+     * @return the most objects a reindex submits per second,
+     *         0 for no limit (default 100)
+     */
+    public int getReindexRate() {
+    	return parseInt(pfsProps.get("pfs.reindexRate"), 100);
+    }
+
+    /**
+     * @return a reindex submits only while the lanes of the updater hold
+     *         fewer updates, 0 for one per lane (default)
+     */
+    public int getReindexMaxQueued() {
+    	return parseInt(pfsProps.get("pfs.reindexMaxQueued"), 0);
+    }
+
+    /**
+     * @return how long init() of the UpdateListener waits for the
+     *         messaging clients to start before the webapp carries on
+     *         without them (default 10 seconds)
+     */
+    public long getMessagingStartWaitMillis() {
+    	return parseInt(pfsProps.get("pfs.messagingStartWaitMillis"), 10000);
+    }
+
+    /**
+     * @return how many messaging clients are started at the same time
+     *         (default 4)
+     */
+    public int getMessagingStartThreads() {
+    	return parseInt(pfsProps.get("pfs.messagingStartThreads"), 4);
+    }
+
+    /**
+     * @return the per-message debug output is written for one in every
+     *         this many messages (default 1, every message)
+     */
+    public int getDebugLogEvery() {
+    	return Math.max(1, parseInt(pfsProps.get("pfs.debugLogEvery"), 1));
     }
 
     
     public int getWriteLimit() {
-    	int writeLimit = 100000; // the Tika default value
-		try {
-			writeLimit = Integer.parseInt(getProperty(pfsProps, "pfs.writeLimit"));
-		} catch (NumberFormatException e) {
-		}
-    	return writeLimit;
+    	return parseInt(pfsProps.get("pfs.writeLimit"), 100000); // the Tika default value
     }
 
     
     public String getIndexNames(String indexNames) {
         if (indexNames==null || indexNames.equals("")) 
-            return getProperty(pfsProps, "pfs.indexNames");
+            return pfsProps.get("pfs.indexNames");
         else 
             return indexNames;
     }
@@ -288,37 +819,53 @@ public class Config {
     	if (url.getPort()>-1)
     		hostPort += ":"+url.getPort();
         if (!(hostPort==null || hostPort.equals(""))) {
-        	Enumeration<Properties> propss = repositoryNameToProps.elements();
-        	while (propss.hasMoreElements()) {
-        		Properties props = propss.nextElement();
-        		String fedoraSoap = getProperty(props, "pfsrepository.fedoraSoap");
+        	for (int i=0; i<repositories.length; i++) {
+        		String fedoraSoap = repositories[i].getFedoraSoap();
         		if (fedoraSoap != null && fedoraSoap.indexOf(hostPort) > -1) {
-        			return getProperty(props, "pfsrepository.repositoryName", defaultRepositoryName);
+        			String propsRepositoryName = repositories[i].getProperty("pfsrepository.repositoryName");
+        			return propsRepositoryName == null ? defaultRepositoryName : propsRepositoryName;
         		}
         	}
         }
         return repositoryName;
     }
     
+    /**
+     * @return the repository config, or null if there is no repository with that name
+     */
+    public RepositoryConfig getRepositoryConfig(String repositoryName) {
+        return repositoryConfigs.get(repositoryName);
+    }
+    
+    /**
+     * @return the repository configs in pfs.repositoryNames order
+     */
+    public Map<String, RepositoryConfig> getRepositoryConfigs() {
+        return repositoryConfigs;
+    }
+    
+    /**
+     * @return a copy of the repository properties, or null if there is no repository with that name
+     */
     public Properties getRepositoryProps(String repositoryName) {
-        return (repositoryNameToProps.get(repositoryName));
+        RepositoryConfig repositoryConfig = repositoryConfigs.get(repositoryName);
+        return repositoryConfig == null ? null : repositoryConfig.toProperties();
     }
     
     public String getFedoraSoap(String repositoryName) {
-        return (getRepositoryProps(repositoryName)).getProperty("pfsrepository.fedoraSoap");
+        return repositoryConfigs.get(repositoryName).getFedoraSoap();
     }
     
     public String getFedoraUser(String repositoryName) {
-        return (getRepositoryProps(repositoryName)).getProperty("pfsrepository.fedoraUser");
+        return repositoryConfigs.get(repositoryName).getFedoraUser();
     }
     
     public String getFedoraPass(String repositoryName) {
-        return (getRepositoryProps(repositoryName)).getProperty("pfsrepository.fedoraPass");
+        return repositoryConfigs.get(repositoryName).getFedoraPass();
     }
     
     public File getFedoraObjectDir(String repositoryName) throws ConfigException {
-        String fedoraObjectDirName = insertSystemProperties(getRepositoryProps(repositoryName).getProperty("pfsrepository.fedoraObjectDir"));
-        File fedoraObjectDir = new File(fedoraObjectDirName);
+        File fedoraObjectDir = repositoryConfigs.get(repositoryName).getFedoraObjectDir();
        // if (fedoraObjectDir == null) {
         //    throw new ConfigException(repositoryName+": pfsrepository.fedoraObjectDir=" + fedoraObjectDirName + " not found");
         //}
@@ -326,23 +873,58 @@ public class Config {
     }
     
     public String getFedoraVersion(String repositoryName) {
-        return (getRepositoryProps(repositoryName)).getProperty("pfsrepository.fedoraVersion");
+        return repositoryConfigs.get(repositoryName).getFedoraVersion();
     }
     
     public String getTrustStorePath(String repositoryName) {
-        return (getRepositoryProps(repositoryName)).getProperty("pfsrepository.trustStorePath");
+        return repositoryConfigs.get(repositoryName).getTrustStorePath();
     }
     
     public String getTrustStorePass(String repositoryName) {
-        return (getRepositoryProps(repositoryName)).getProperty("pfsrepository.trustStorePass");
+        return repositoryConfigs.get(repositoryName).getTrustStorePass();
     }
 
+    /**
+     * @return copies of the updater properties by updater name,
+     *         or null if pfs.updaterNames is not set
+     */
     public Hashtable<String, Properties> getUpdaterProps() {
-        return updaterNameToProps;
+        if (updaterConfigs == null)
+            return null;
+        Hashtable<String, Properties> updaterProps = new Hashtable<String, Properties>();
+        Iterator<UpdaterConfig> it = updaterConfigs.values().iterator();
+        while (it.hasNext()) {
+            UpdaterConfig updaterConfig = it.next();
+            updaterProps.put(updaterConfig.getUpdaterName(), updaterConfig.toProperties());
+        }
+        return updaterProps;
     }    
+    
+    /**
+     * @return a copy of the updater properties, or null if there is no updater with that name
+     */
+    public Properties getUpdaterProps(String updaterName) {
+        UpdaterConfig updaterConfig = getUpdaterConfig(updaterName);
+        return updaterConfig == null ? null : updaterConfig.toProperties();
+    }
+    
+    /**
+     * @return the updater config, or null if there is no updater with that name
+     */
+    public UpdaterConfig getUpdaterConfig(String updaterName) {
+        return updaterConfigs == null ? null : updaterConfigs.get(updaterName);
+    }
+    
+    /**
+     * @return the updater configs in pfs.updaterNames order,
+     *         or null if pfs.updaterNames is not set
+     */
+    public Map<String, UpdaterConfig> getUpdaterConfigs() {
+        return updaterConfigs;
+    }
 
     
-    private String insertSystemProperties(String propertyValue) {
+    static String insertSystemProperties(String propertyValue) {
     	String result = propertyValue;
         if (logger.isDebugEnabled())
             logger.debug("insertSystemProperties propertyValue="+result);
@@ -356,7 +938,7 @@ public class Config {
     	return result;
     }
     
-    private String insertSystemProperty(String propertyValue) {
+    private static String insertSystemProperty(String propertyValue) {
     	String result = propertyValue;
     	int i = result.indexOf("${");
     	if (i > -1) {
@@ -370,6 +952,26 @@ public class Config {
     	return result;
     }
     
+    static int parseInt(String value, int defaultValue) {
+    	int result = defaultValue;
+		try {
+			result = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+		}
+    	return result;
+    }
+
+    static double parseDouble(String value, double defaultValue) {
+    	double result = defaultValue;
+    	if (value == null)
+    		return result;
+		try {
+			result = Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+		}
+    	return result;
+    }
+    
     public String getProperty(Properties props, String propertyName) {
     	return getProperty(props, propertyName, null);
     }
@@ -392,61 +994,46 @@ public class Config {
     	String propertyValue = null;
         if (!(propertyName==null || propertyName.equals(""))) {
             int i = propertyName.indexOf("/");
-            String propName = propertyName;
-        	Properties props = null;
             if (i>-1) {
                 String propsName = propertyName.substring(0, i);
-                propName = propertyName.substring(i+1);
+                String propName = propertyName.substring(i+1);
                 if (logger.isDebugEnabled())
                     logger.debug("propsName=" + propsName + " propName=" + propName);
-            	else if (repositoryNameToProps.containsKey(propsName)) {
-            		props = repositoryNameToProps.get(propsName);
-            	}
+                RepositoryConfig repositoryConfig = repositoryConfigs.get(propsName);
+                if (repositoryConfig != null)
+                    propertyValue = repositoryConfig.getProperty(propName);
             } else {
-            	props = pfsProps;
+                propertyValue = pfsProps.get(propertyName);
             }
-    		propertyValue = getProperty(props, propName);
         }
         if (logger.isDebugEnabled())
             logger.debug("getProperty " + propertyName + "=" + propertyValue);
     	return propertyValue;
     }
-    
-    private Config setProperty(String propertyName, String propertyValue) throws ConfigException {
-        if (logger.isInfoEnabled())
-            logger.info("property " + propertyName + "=" + propertyValue);
-        if (!(propertyName==null || propertyName.equals(""))) {
-            int i = propertyName.indexOf("/");
-            String propName = propertyName;
-        	Properties props = null;
-            if (i>-1) {
-                String propsName = propertyName.substring(0, i);
-                propName = propertyName.substring(i+1);
-                if (logger.isDebugEnabled())
-                    logger.debug("propsName=" + propsName + " propName=" + propName);
-            	else if (repositoryNameToProps.containsKey(propsName)) {
-            		props = repositoryNameToProps.get(propsName);
-            	}
-            } else {
-            	props = pfsProps;
-            }
-        	if (props!=null && propName!=null && propName.length()>0) {
-        		props.setProperty(propName, propertyValue);
-        	} else {
-                throw new ConfigException("property " + propertyName + " not found");
-        	}
-        }
-        return this;
-    }
         
-    private Properties getPfsConfigProps(String propFilePath) throws ConfigException {
+    /**
+     * Reads a properties file of the configuration, from the config
+     * directory if the configuration is in one, so that a reload sees
+     * the changed file and not a copy cached by the class loader.
+     */
+    private static Properties getPfsConfigProps(File configDir, String configName, String relativePath) throws ConfigException {
+    	String propFilePath = "/"+configName+"/"+relativePath;
     	Properties props = null;
         try {
-            InputStream propStream = Config.class.getResourceAsStream(propFilePath);
+            InputStream propStream;
+            if (configDir != null) {
+                File propFile = new File(configDir, relativePath);
+                propStream = propFile.isFile() ? new FileInputStream(propFile) : null;
+            } else {
+                propStream = Config.class.getResourceAsStream(propFilePath);
+            }
             if (propStream != null) {
             	props = new Properties();
-            	props.load(propStream);
-            	propStream.close();
+            	try {
+            		props.load(propStream);
+            	} finally {
+            		propStream.close();
+            	}
                 if (logger.isInfoEnabled())
                     logger.info("getPfsConfigProps "+propFilePath+"=" + props.toString());
             } else {
@@ -463,59 +1050,50 @@ public class Config {
         }
         return props;
     }
- 
     
-    private FedoraClient getFedoraClient() throws ConfigException {
-        if (logger.isDebugEnabled())
-            logger.debug("getFedoraClient");
-        if (fedoraClient != null) {
-        	return fedoraClient;
+    /**
+     * @return the directory the configuration is read from, or null if
+     *         it is not a plain directory on the classpath (inside a jar)
+     *         and can only be read as classpath resources
+     */
+    public static File getConfigDir(String configName) {
+        URL url = Config.class.getResource("/"+configName+"/pfs.properties");
+        if (url == null || !"file".equals(url.getProtocol()))
+            return null;
+        try {
+            return new File(url.toURI()).getParentFile();
+        } catch (Exception e) {
+            logger.warn("Config directory of " + url + " could not be resolved: " + e.toString());
+            return null;
         }
-        if (logger.isDebugEnabled())
-            logger.debug("getFedoraClient new");
-		try {
-			fedoraClient = new FedoraClient(
-					getProperty(fcoProps, "pfsconfigObjects.fedoraSoap"),
-					getProperty(fcoProps, "pfsconfigObjects.fedoraUser"),
-					getProperty(fcoProps, "pfsconfigObjects.fedoraPass")
-					);
-		} catch (Exception e) {
-            throw new ConfigException("getFedoraClient exception="+e.toString());
-		}
-        if (logger.isDebugEnabled())
-            logger.debug("getFedoraClient new="+getProperty(fcoProps, "pfsconfigObjects.fedoraSoap"));
-    	String trustStorePath = getProperty(fcoProps, "pfsconfigObjects.trustStorePath");
-    	String trustStorePass = getProperty(fcoProps, "pfsconfigObjects.trustStorePass");
-    	if (trustStorePath!=null && trustStorePath.length()>0)
-    		System.setProperty("javax.net.ssl.trustStore", trustStorePath);
-    	if (trustStorePass!=null && trustStorePass.length()>0)
-    		System.setProperty("javax.net.ssl.trustStorePassword", trustStorePass);
-        return fedoraClient;
-    }
-    
-    private FedoraAPIA getAPIA() throws ConfigException {
-    	FedoraClient fedoraClient = getFedoraClient();
-        if (logger.isDebugEnabled())
-            logger.debug("getAPIA getFedoraClient ="+fedoraClient);
-        FedoraAPIA apia = null;
-		try {
-			apia = fedoraClient.getAPIA();
-		} catch (Exception e) {
-            throw new ConfigException("getAPIA exception="+e.toString());
-		}
-        return apia;
     }
     
-    private FedoraAPIM getAPIM() throws ConfigException {
-        FedoraAPIM apim = null;
-		try {
-			apim = getFedoraClient().getAPIM();
-		} catch (Exception e) {
-            throw new ConfigException("getAPIM exception="+e.toString());
-		}
-        return apim;
+    /**
+     * An unmodifiable copy of the properties with trimmed values.
+     */
+    private static Map<String, String> toMap(Properties props) {
+        Map<String, String> map = new HashMap<String, String>();
+        Enumeration<?> names = props.propertyNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            map.put(name, props.getProperty(name).trim());
+        }
+        return Collections.unmodifiableMap(map);
     }
-        
-   
     
+    /**
+     * The properties read for a Config, before they are resolved.
+     */
+    private static class LoadedProps {
+        final String configName;
+        final StringBuffer errors = new StringBuffer();
+        Map<String, String> pfsProps = Collections.emptyMap();
+        Map<String, Map<String, String>> repositoryProps = new LinkedHashMap<String, Map<String, String>>();
+        String defaultRepositoryName = null;
+        Map<String, Map<String, String>> updaterProps = null;
+        
+        LoadedProps(String configName) {
+            this.configName = configName;
+        }
+    }
 }
@@ -0,0 +1,117 @@
+package org.phaidra.fedora.subscriber;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.pipeline.NamedThreadFactory;
+
+/**
+ * Watches the files of a configuration directory: pfs.properties and
+ * the repository.properties and updater.properties files below it.
+ *
+ * The files are polled for their modification time and size. The
+ * listener is told about a change once the files have stayed the same
+ * for one more interval, so that editing several files, or a file
+ * being written in several steps, leads to a single reload.
+ */
+public class ConfigWatcher {
+
+    /**
+     * Told when the watched config files have changed.
+     */
+    public interface Listener {
+
+        void configChanged();
+    }
+
+    private final Logger logger = Logger.getLogger(ConfigWatcher.class);
+
+    private final File configDir;
+
+    private final long intervalMillis;
+
+    private final Listener listener;
+
+    private ScheduledExecutorService poller = null;
+
+    private Map<String, Long> lastSeen;
+
+    private boolean changed = false;
+
+    public ConfigWatcher(File configDir, long intervalMillis, Listener listener) {
+        this.configDir = configDir;
+        this.intervalMillis = intervalMillis;
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (poller != null)
+            return;
+        lastSeen = scan();
+        changed = false;
+        poller = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("pfs-config-watcher"));
+        poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        if (logger.isInfoEnabled())
+            logger.info("Watching " + configDir + " for config changes every " + intervalMillis + " ms");
+    }
+
+    public synchronized void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    private void poll() {
+        try {
+            Map<String, Long> current = scan();
+            if (!current.equals(lastSeen)) {
+                lastSeen = current;
+                changed = true;
+                return;
+            }
+            if (changed) {
+                changed = false;
+                if (logger.isInfoEnabled())
+                    logger.info("Config files in " + configDir + " have changed");
+                listener.configChanged();
+            }
+        } catch (RuntimeException re) {
+            logger.error("Unexpected exception watching config directory " + configDir, re);
+        }
+    }
+
+    private Map<String, Long> scan() {
+        Map<String, Long> files = new HashMap<String, Long>();
+        addFile(files, new File(configDir, "pfs.properties"));
+        addSubdirFiles(files, new File(configDir, "repository"), "repository.properties");
+        addSubdirFiles(files, new File(configDir, "updater"), "updater.properties");
+        return files;
+    }
+
+    private void addSubdirFiles(Map<String, Long> files, File dir, String fileName) {
+        File[] subdirs = dir.listFiles();
+        if (subdirs == null)
+            return;
+        for (int i=0; i<subdirs.length; i++) {
+            if (subdirs[i].isDirectory())
+                addFile(files, new File(subdirs[i], fileName));
+        }
+    }
+
+    private void addFile(Map<String, Long> files, File file) {
+        if (file.isFile())
+            files.put(file.getPath(), Long.valueOf(file.lastModified() * 31 + file.length()));
+    }
+}
@@ -0,0 +1,148 @@
+package org.phaidra.fedora.subscriber;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.pipeline.DeadLetterStore;
+import org.phaidra.fedora.subscriber.pipeline.IndexUpdate;
+import org.phaidra.fedora.subscriber.pipeline.PipelineRegistry;
+import org.phaidra.fedora.subscriber.pipeline.SinkChannel;
+import org.phaidra.fedora.subscriber.pipeline.UpdaterPipeline;
+
+/**
+ * Lists, replays and deletes dead letters. GET lists the dead letters
+ * of all running updaters, or of the one given by the parameter
+ * updater, one "updater sink id pid method attempts failureClass
+ * failedAt reason" line each. POST with action=replay or action=delete
+ * and the parameters updater and id submits the update again to its
+ * sink or drops it; id=all does so for every dead letter of the sink.
+ * The parameter sink is needed if the updater has more than one.
+ */
+public class DeadLetterServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Logger logger = Logger.getLogger(DeadLetterServlet.class);
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        String updaterName = request.getParameter("updater");
+        Iterator<Map.Entry<String, UpdaterPipeline>> it =
+                PipelineRegistry.getInstance().getPipelines().entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, UpdaterPipeline> entry = it.next();
+            if (updaterName != null && !updaterName.equals(entry.getKey()))
+                continue;
+            List<SinkChannel> channels = entry.getValue().getChannels();
+            for (int j=0; j<channels.size(); j++) {
+                DeadLetterStore deadLetters = channels.get(j).getDeadLetterStore();
+                if (deadLetters != null)
+                    list(out, entry.getKey(), channels.get(j).getSinkName(), deadLetters);
+            }
+        }
+        out.flush();
+    }
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String action = request.getParameter("action");
+        String updaterName = request.getParameter("updater");
+        String id = request.getParameter("id");
+        if (updaterName == null || id == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "updater and id are required");
+            return;
+        }
+        if (!"replay".equals(action) && !"delete".equals(action)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "action must be replay or delete");
+            return;
+        }
+        UpdaterPipeline pipeline = PipelineRegistry.getInstance().getPipeline(updaterName);
+        String sinkName = request.getParameter("sink");
+        if (sinkName == null && pipeline != null) {
+            if (pipeline.getChannels().size() > 1) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "sink is required, updater "
+                        + updaterName + " has more than one");
+                return;
+            }
+            sinkName = pipeline.getChannels().get(0).getSinkName();
+        }
+        SinkChannel channel = pipeline == null ? null : pipeline.getChannel(sinkName);
+        DeadLetterStore deadLetters = channel == null ? null : channel.getDeadLetterStore();
+        if (deadLetters == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "updater " + updaterName
+                    + " is not running or has no sink " + sinkName + " with a dead letter store");
+            return;
+        }
+        long[] ids;
+        if ("all".equals(id)) {
+            List<DeadLetterStore.DeadLetter> list = deadLetters.list();
+            ids = new long[list.size()];
+            for (int i=0; i<ids.length; i++) {
+                ids[i] = list.get(i).getId();
+            }
+        } else {
+            try {
+                ids = new long[] { Long.parseLong(id) };
+            } catch (NumberFormatException nfe) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "id must be a number or all");
+                return;
+            }
+        }
+        int count = 0;
+        for (int i=0; i<ids.length; i++) {
+            boolean found = "replay".equals(action)
+                    ? pipeline.replayDeadLetter(sinkName, ids[i]) : deadLetters.delete(ids[i]);
+            if (found)
+                count++;
+        }
+        if (count == 0 && ids.length == 1) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "no dead letter " + id
+                    + " of sink " + sinkName + " of updater " + updaterName);
+            return;
+        }
+        if (logger.isInfoEnabled())
+            logger.info(("replay".equals(action) ? "Replayed " : "Deleted ") + count
+                    + " dead letters of sink " + sinkName + " of updater " + updaterName);
+        doGet(request, response);
+    }
+
+    private void list(PrintWriter out, String updaterName, String sinkName, DeadLetterStore deadLetters)
+            throws IOException {
+        List<DeadLetterStore.DeadLetter> list = deadLetters.list();
+        for (int i=0; i<list.size(); i++) {
+            DeadLetterStore.DeadLetter deadLetter = list.get(i);
+            IndexUpdate update = deadLetter.getUpdate();
+            out.print(updaterName);
+            out.print(' ');
+            out.print(sinkName);
+            out.print(' ');
+            out.print(deadLetter.getId());
+            out.print(' ');
+            out.print(update.getPid());
+            out.print(' ');
+            out.print(update.getMethodName());
+            out.print(' ');
+            out.print(deadLetter.getAttempts());
+            out.print(' ');
+            out.print(deadLetter.getFailureClass());
+            out.print(' ');
+            out.print(new Date(deadLetter.getFailedMillis()));
+            out.print(' ');
+            out.println(deadLetter.getReason().replace('\n', ' '));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.phaidra.fedora.subscriber;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.phaidra.fedora.subscriber.metrics.MetricSource;
+import org.phaidra.fedora.subscriber.metrics.MetricsRegistry;
+
+/**
+ * Shows the metrics of the updaters, repositories and caches as plain
+ * text, one "updater.name.metric value", "repository.name.metric value"
+ * or "cache.name.metric value" line per metric. The same metrics are
+ * available over JMX.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        print(out, "updater", registry.getUpdaterMetrics());
+        print(out, "repository", registry.getRepositoryMetrics());
+        Iterator<Map.Entry<String, MetricSource>> sources = registry.getSources().entrySet().iterator();
+        while (sources.hasNext()) {
+            Map.Entry<String, MetricSource> source = sources.next();
+            print(out, source.getKey() + ".", source.getValue());
+        }
+        out.flush();
+    }
+
+    private void print(PrintWriter out, String type, Map<String, ? extends MetricSource> sources) {
+        Iterator<? extends Map.Entry<String, ? extends MetricSource>> it = sources.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ? extends MetricSource> source = it.next();
+            String prefix = type + "." + (source.getKey().length() == 0 ? "unknown" : source.getKey()) + ".";
+            print(out, prefix, source.getValue());
+        }
+    }
+
+    private void print(PrintWriter out, String prefix, MetricSource source) {
+        Iterator<Map.Entry<String, Object>> metrics = source.getMetrics().entrySet().iterator();
+        while (metrics.hasNext()) {
+            Map.Entry<String, Object> metric = metrics.next();
+            out.print(prefix);
+            out.print(metric.getKey());
+            out.print(' ');
+            out.println(metric.getValue());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.phaidra.fedora.subscriber;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.reindex.ReindexManager;
+import org.phaidra.fedora.subscriber.reindex.Reindexer;
+
+/**
+ * Starts and stops reindexes. GET lists the reindexes, one
+ * "updater.repository state offset source" line each. POST with
+ * action=start or action=stop and the parameters updater and
+ * repository starts or stops one; start also takes source=objectDir
+ * or source=resourceIndex and restart=true to ignore a checkpoint.
+ */
+public class ReindexServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Logger logger = Logger.getLogger(ReindexServlet.class);
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        Iterator<Map.Entry<String, Reindexer>> it =
+                ReindexManager.getInstance().getReindexers().entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Reindexer> entry = it.next();
+            Reindexer reindexer = entry.getValue();
+            out.print(entry.getKey());
+            out.print(' ');
+            out.print(reindexer.getState());
+            out.print(' ');
+            out.print(reindexer.getOffset());
+            out.print(' ');
+            out.print(reindexer.getSource());
+            if (reindexer.getError() != null) {
+                out.print(' ');
+                out.print(reindexer.getError());
+            }
+            out.println();
+        }
+        out.flush();
+    }
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String action = request.getParameter("action");
+        String updaterName = request.getParameter("updater");
+        String repositoryName = request.getParameter("repository");
+        if (updaterName == null || repositoryName == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "updater and repository are required");
+            return;
+        }
+        ReindexManager manager = ReindexManager.getInstance();
+        if ("start".equals(action)) {
+            try {
+                manager.start(updaterName, repositoryName, request.getParameter("source"),
+                        "true".equals(request.getParameter("restart")));
+            } catch (PhaidraFedoraSubscriberException pfse) {
+                logger.warn("Reindex not started: " + pfse.getMessage());
+                response.sendError(HttpServletResponse.SC_CONFLICT, pfse.getMessage());
+                return;
+            }
+        } else if ("stop".equals(action)) {
+            if (!manager.stop(updaterName, repositoryName)) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "no reindex of repository "
+                        + repositoryName + " for updater " + updaterName + " is running");
+                return;
+            }
+        } else {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "action must be start or stop");
+            return;
+        }
+        doGet(request, response);
+    }
+}
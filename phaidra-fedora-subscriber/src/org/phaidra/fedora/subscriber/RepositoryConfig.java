@@ -0,0 +1,197 @@
+package org.phaidra.fedora.subscriber;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The properties of one repository.properties file, resolved once when
+ * the Config snapshot is built. Immutable, so it can be read from any
+ * thread without locking.
+ */
+public class RepositoryConfig {
+
+    private final String repositoryName;
+
+    private final Map<String, String> props;
+
+    private final File fedoraObjectDir;
+
+    private final String fedoraObjectPathPattern;
+
+    private final int soapPoolSize;
+
+    private final long soapPoolWaitMillis;
+
+    private final long soapConnectTimeoutMillis;
+
+    private final long soapReadTimeoutMillis;
+
+    private final int breakerFailures;
+
+    private final long breakerOpenMillis;
+
+    private final long slowCallMillis;
+
+    private final int concurrencyMinLimit;
+
+    private final int concurrencyMaxLimit;
+
+    RepositoryConfig(String repositoryName, Map<String, String> props) {
+        this.repositoryName = repositoryName;
+        this.props = props;
+        String fedoraObjectDirName = Config.insertSystemProperties(props.get("pfsrepository.fedoraObjectDir"));
+        fedoraObjectDir = fedoraObjectDirName == null ? null : new File(fedoraObjectDirName);
+        String pathPattern = props.get("pfsrepository.fedoraObjectPathPattern");
+        fedoraObjectPathPattern = pathPattern == null ? "##" : pathPattern;
+        soapPoolSize = Config.parseInt(props.get("pfsrepository.soapPoolSize"), 4);
+        soapPoolWaitMillis = Config.parseInt(props.get("pfsrepository.soapPoolWaitMillis"), 30000);
+        soapConnectTimeoutMillis = Config.parseInt(props.get("pfsrepository.soapConnectTimeoutMillis"), 10000);
+        soapReadTimeoutMillis = Config.parseInt(props.get("pfsrepository.soapReadTimeoutMillis"), 60000);
+        breakerFailures = Config.parseInt(props.get("pfsrepository.breakerFailures"), 5);
+        breakerOpenMillis = Config.parseInt(props.get("pfsrepository.breakerOpenMillis"), 30000);
+        slowCallMillis = Config.parseInt(props.get("pfsrepository.slowCallMillis"), 10000);
+        concurrencyMinLimit = Config.parseInt(props.get("pfsrepository.concurrencyMinLimit"), 1);
+        concurrencyMaxLimit = Config.parseInt(props.get("pfsrepository.concurrencyMaxLimit"), soapPoolSize);
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public String getProperty(String propertyName) {
+        return props.get(propertyName);
+    }
+
+    /**
+     * A copy of the properties.
+     */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        Iterator<Map.Entry<String, String>> it = props.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            properties.setProperty(entry.getKey(), entry.getValue());
+        }
+        return properties;
+    }
+
+    public String getFedoraSoap() {
+        return props.get("pfsrepository.fedoraSoap");
+    }
+
+    public String getFedoraUser() {
+        return props.get("pfsrepository.fedoraUser");
+    }
+
+    public String getFedoraPass() {
+        return props.get("pfsrepository.fedoraPass");
+    }
+
+    /**
+     * @return the Fedora object store directory, or null if none is configured
+     */
+    public File getFedoraObjectDir() {
+        return fedoraObjectDir;
+    }
+
+    /**
+     * @return the Akubra path pattern of the object store, one hash
+     *         character per '#' and '/' between directory levels
+     *         (default "##")
+     */
+    public String getFedoraObjectPathPattern() {
+        return fedoraObjectPathPattern;
+    }
+
+    public String getFedoraVersion() {
+        return props.get("pfsrepository.fedoraVersion");
+    }
+
+    public String getTrustStorePath() {
+        return props.get("pfsrepository.trustStorePath");
+    }
+
+    public String getTrustStorePass() {
+        return props.get("pfsrepository.trustStorePass");
+    }
+
+    /**
+     * @return the number of SOAP clients used at a time (default 4)
+     */
+    public int getSoapPoolSize() {
+        return soapPoolSize;
+    }
+
+    /**
+     * @return how long to wait for a free SOAP client (default 30 seconds)
+     */
+    public long getSoapPoolWaitMillis() {
+        return soapPoolWaitMillis;
+    }
+
+    /**
+     * @return the SOAP connect timeout (default 10 seconds)
+     */
+    public long getSoapConnectTimeoutMillis() {
+        return soapConnectTimeoutMillis;
+    }
+
+    /**
+     * @return the SOAP read timeout (default 60 seconds)
+     */
+    public long getSoapReadTimeoutMillis() {
+        return soapReadTimeoutMillis;
+    }
+
+    /**
+     * @return the failed calls in a row that open a circuit breaker of
+     *         the repository (default 5)
+     */
+    public int getBreakerFailures() {
+        return breakerFailures;
+    }
+
+    /**
+     * @return how long an open circuit breaker refuses calls before it
+     *         lets a trial call through (default 30 seconds)
+     */
+    public long getBreakerOpenMillis() {
+        return breakerOpenMillis;
+    }
+
+    /**
+     * @return the duration above which a call counts as failed, 0 for
+     *         none (default 10 seconds)
+     */
+    public long getSlowCallMillis() {
+        return slowCallMillis;
+    }
+
+    /**
+     * @return the lowest the concurrency limit of a backend of the
+     *         repository is cut to (default 1)
+     */
+    public int getConcurrencyMinLimit() {
+        return concurrencyMinLimit;
+    }
+
+    /**
+     * @return the highest and starting concurrency limit of a backend
+     *         of the repository (default the SOAP pool size)
+     */
+    public int getConcurrencyMaxLimit() {
+        return concurrencyMaxLimit;
+    }
+
+    public boolean equals(Object other) {
+        return other instanceof RepositoryConfig
+                && repositoryName.equals(((RepositoryConfig) other).repositoryName)
+                && props.equals(((RepositoryConfig) other).props);
+    }
+
+    public int hashCode() {
+        return repositoryName.hashCode() * 31 + props.hashCode();
+    }
+}
@@ -0,0 +1,147 @@
+package org.phaidra.fedora.subscriber;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.phaidra.fedora.subscriber.pipeline.OverflowPolicy;
+import org.phaidra.fedora.subscriber.sink.LoggingBatchSink;
+
+/**
+ * The settings of one sink of an updater, from the
+ * pfsupdater.sink.NAME.* properties of its updater.properties, falling
+ * back to the settings of the updater. The sink named "default" also
+ * takes the plain pfsupdater.sink.* properties, so an updater without
+ * pfsupdater.sinks has the single sink it always had. Immutable.
+ */
+public class SinkConfig {
+
+    private final String sinkName;
+
+    private final String prefix;
+
+    private final UpdaterConfig updaterConfig;
+
+    private final String sinkClassName;
+
+    private final int lanes;
+
+    private final int queueDepth;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final int batchSize;
+
+    private final long batchLatencyMillis;
+
+    private final long guardWaitMillis;
+
+    SinkConfig(String sinkName, UpdaterConfig updaterConfig) {
+        this.sinkName = sinkName;
+        this.prefix = "pfsupdater.sink." + sinkName + ".";
+        this.updaterConfig = updaterConfig;
+        String sinkClass = getProperty("class");
+        sinkClassName = sinkClass == null ? LoggingBatchSink.class.getName() : sinkClass.trim();
+        lanes = Config.parseInt(getProperty("lanes"), updaterConfig.getLanes());
+        queueDepth = Config.parseInt(getProperty("queueDepth"), updaterConfig.getQueueDepth());
+        OverflowPolicy policy = OverflowPolicy.fromString(getProperty("overflowPolicy"));
+        overflowPolicy = policy == null ? updaterConfig.getOverflowPolicy() : policy;
+        batchSize = Config.parseInt(getProperty("batchSize"), updaterConfig.getBatchSize());
+        batchLatencyMillis = Config.parseInt(getProperty("batchLatencyMillis"),
+                (int) updaterConfig.getBatchLatencyMillis());
+        guardWaitMillis = Config.parseInt(getProperty("guardWaitMillis"),
+                (int) updaterConfig.getGuardWaitMillis());
+    }
+
+    public String getSinkName() {
+        return sinkName;
+    }
+
+    /**
+     * @return the value of pfsupdater.sink.NAME.setting, or for the
+     *         default sink of pfsupdater.sink.setting if that is not set
+     */
+    public String getProperty(String setting) {
+        String value = updaterConfig.getProperty(prefix + setting);
+        if (value == null && UpdaterConfig.DEFAULT_SINK.equals(sinkName))
+            value = updaterConfig.getProperty("pfsupdater.sink." + setting);
+        return value;
+    }
+
+    public String getSinkClassName() {
+        return sinkClassName;
+    }
+
+    /**
+     * @return the lanes of the sink's own queue; only used when the
+     *         updater has more than one sink
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return the spill directory of the sink's own queue, below the
+     *         spill directory of the updater, or null if none is configured
+     */
+    public File getSpillDir() {
+        File spillDir = updaterConfig.getSpillDir();
+        return spillDir == null ? null : new File(spillDir, "sink-" + sinkName);
+    }
+
+    /**
+     * @return the dead letter directory of the sink, or null if updates
+     *         that cannot be processed are dropped: the updater's
+     *         pfsupdater.deadLetterDir for the default sink, a
+     *         directory below it for the others
+     */
+    public File getDeadLetterDir() {
+        File deadLetterDir = updaterConfig.getDeadLetterDir();
+        if (deadLetterDir == null || UpdaterConfig.DEFAULT_SINK.equals(sinkName))
+            return deadLetterDir;
+        return new File(deadLetterDir, "sink-" + sinkName);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchLatencyMillis() {
+        return batchLatencyMillis;
+    }
+
+    /**
+     * @return how long a batch waits for room under the concurrency
+     *         limit of the sink for its repository
+     */
+    public long getGuardWaitMillis() {
+        return guardWaitMillis;
+    }
+
+    /**
+     * The properties handed to BatchSink.configure: the properties of
+     * the updater, with pfsupdater.sink.NAME.* also set as
+     * pfsupdater.sink.*, so a sink reads its settings the same way
+     * whatever its name.
+     */
+    public Properties toProperties() {
+        Properties properties = updaterConfig.toProperties();
+        Iterator<Map.Entry<Object, Object>> it = updaterConfig.toProperties().entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, Object> entry = it.next();
+            String name = (String) entry.getKey();
+            if (name.startsWith(prefix))
+                properties.setProperty("pfsupdater.sink." + name.substring(prefix.length()), (String) entry.getValue());
+        }
+        return properties;
+    }
+}
@@ -1,13 +1,16 @@
 package org.phaidra.fedora.subscriber;
 
-import java.net.URL;
-
-import java.rmi.RemoteException;
+import java.io.File;
+import java.io.IOException;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -17,16 +20,23 @@ import javax.jms.Message;
 import javax.jms.TextMessage;
 
 import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.fedora.FedoraClientPool;
+import org.phaidra.fedora.subscriber.fedora.ObjectInfoCache;
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+import org.phaidra.fedora.subscriber.message.ApimMessageParser;
+import org.phaidra.fedora.subscriber.messaging.ClientSupervisor;
+import org.phaidra.fedora.subscriber.messaging.SupervisedClient;
+import org.phaidra.fedora.subscriber.metrics.MetricsRegistry;
+import org.phaidra.fedora.subscriber.metrics.UpdaterMetrics;
+import org.phaidra.fedora.subscriber.pipeline.IndexUpdate;
+import org.phaidra.fedora.subscriber.pipeline.PipelineRegistry;
+import org.phaidra.fedora.subscriber.pipeline.UpdaterPipeline;
+import org.phaidra.fedora.subscriber.reindex.ReindexManager;
 
 import org.apache.log4j.Logger;
 
-import org.fcrepo.client.messaging.JmsMessagingClient;
-import org.fcrepo.client.messaging.MessagingClient;
 import org.fcrepo.client.messaging.MessagingListener;
 
-import org.fcrepo.server.errors.MessagingException;
-import org.fcrepo.server.messaging.APIMMessage;
-import org.fcrepo.server.messaging.AtomAPIMMessage;
 
 /**
  * Starts up the Fedora message listener which 
@@ -39,9 +49,23 @@ import org.fcrepo.server.messaging.AtomAPIMMessage;
 public class UpdateListener extends HttpServlet implements MessagingListener {
 
     private static final long serialVersionUID = 1L;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
     private final Logger logger = Logger.getLogger(UpdateListener.class);
-    private ArrayList<MessagingClient> messagingClientList =
-            new ArrayList<MessagingClient>();
+    private final HashMap<String, List<SupervisedClient>> messagingClients =
+            new HashMap<String, List<SupervisedClient>>();
+    private final HashMap<String, UpdaterConfig> runningUpdaters =
+            new HashMap<String, UpdaterConfig>();
+    private final HashMap<String, List<String>> updaterClientIds =
+            new HashMap<String, List<String>>();
+    private final ConcurrentHashMap<String, UpdaterPipeline> pipelines =
+            new ConcurrentHashMap<String, UpdaterPipeline>();
+    private final ApimMessageParser messageParser = new ApimMessageParser();
+    private ConfigWatcher configWatcher = null;
+    // starts the messaging clients in the background
+    private ClientSupervisor clientSupervisor = null;
+    // per-message debug output is written for one in every debugLogEvery messages
+    private volatile int debugLogEvery = 1;
+    private final AtomicLong debugMessageCount = new AtomicLong();
     
     /**
      * Initializes the update listener in order to start 
@@ -52,50 +76,94 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
     public void init() throws ServletException {
         logger.info("Initializing the Update Listener");
 
-        Hashtable<String, Properties> updaterPropertiesTable;
-        Config config = null;
+        Config config;
         try {
-            config = Config.getCurrentConfig();        
-            updaterPropertiesTable = config.getUpdaterProps();            
+            config = Config.getCurrentConfig();            
         } catch(ConfigException ce) {
             logger.error("Config Exception encountered attempting to retrieve "
             		   + "updater properties: ", ce);           
-            updaterPropertiesTable = null;
+            config = null;
         }        
+        // also used by reloadConfig() for the updaters it starts
+        clientSupervisor = new ClientSupervisor(config == null ? 1 : config.getMessagingStartThreads());
         
-        if(updaterPropertiesTable == null) { 
+        if(config == null || config.getUpdaterConfigs() == null) { 
             // There are no updaters to configure
             String warningMessage = "Updater properties were not loaded so no "
             	  + "update listeners were created. Update messages will "
             	  + "not be received or processed."; 
             logger.warn(warningMessage);
-            return;            
+        } else {
+            // Create a pipeline and a messaging client for each set of updater properties.
+            // The clients start in the background; init() waits for them
+            // for at most pfs.messagingStartWaitMillis.
+            Iterator<UpdaterConfig> updaters = config.getUpdaterConfigs().values().iterator();
+            while(updaters.hasNext()) {
+                startUpdater(updaters.next());
+            }
+            awaitMessagingClients(config.getMessagingStartWaitMillis());
         }
         
-        // Create a messaging client for each set of updater properties
-        Iterator<Properties> updaterProperties = updaterPropertiesTable.values().iterator();
-        int updaterIndex = 0;
-        while(updaterProperties.hasNext()) {
-            Properties properties = (Properties) updaterProperties.next();           
-            
-            String clientId = properties.getProperty("client.id");
-            if(clientId == null) {
-                ++updaterIndex;
-                clientId = "pfs" + updaterIndex;
+        if (config != null) {
+            debugLogEvery = config.getDebugLogEvery();
+            startConfigWatcher(config);
+            ReindexManager.getInstance().resumeAll();
+        }
+    }
+    
+    /**
+     * Routes the messages received by the client with the given id
+     * to the pipeline. init() does this for every configured updater.
+     */
+    public void addPipeline(String clientId, UpdaterPipeline pipeline) {
+        pipelines.put(clientId, pipeline);
+    }
+    
+    /**
+     * Reloads the configuration and brings the updaters in line with it.
+     * Updaters whose properties did not change keep running untouched;
+     * removed ones are stopped, new ones started, and changed ones are
+     * stopped and started again with the new properties. Repository
+     * changes take effect with the next update, since updates look up
+     * their repository in the current Config.
+     * 
+     * If the new configuration does not pass checkConfig, the current
+     * one stays in place.
+     */
+    public synchronized void reloadConfig() {
+        Config config;
+        try {
+            config = Config.reload();
+        } catch (ConfigException ce) {
+            logger.error("Config was not reloaded, the current config stays in place: "
+                       + ce.getMessage());
+            return;
+        }
+        debugLogEvery = config.getDebugLogEvery();
+        Map<String, UpdaterConfig> updaterConfigs = config.getUpdaterConfigs();
+        if (updaterConfigs == null)
+            updaterConfigs = new HashMap<String, UpdaterConfig>();
+        
+        int stopped = 0;
+        Iterator<UpdaterConfig> running = new ArrayList<UpdaterConfig>(runningUpdaters.values()).iterator();
+        while (running.hasNext()) {
+            UpdaterConfig runningConfig = running.next();
+            if (!runningConfig.equals(updaterConfigs.get(runningConfig.getUpdaterName()))) {
+                stopUpdater(runningConfig.getUpdaterName());
+                ++stopped;
             }
-            
-            try {
-                JmsMessagingClient messagingClient =
-                        new JmsMessagingClient(clientId, this, properties, true);
-                messagingClient.start(false);
-                messagingClientList.add(messagingClient);
-            } catch (MessagingException me) {
-                String errorMessage = "Messaging exception encountered "
-                    + "attempting to start messaging client with id " 
-                    + clientId + ". Error message was: " + me.getMessage();
-                logger.error(errorMessage, me);
-            } 
-        }        
+        }
+        int started = 0;
+        Iterator<UpdaterConfig> updaters = updaterConfigs.values().iterator();
+        while (updaters.hasNext()) {
+            UpdaterConfig updaterConfig = updaters.next();
+            if (!runningUpdaters.containsKey(updaterConfig.getUpdaterName())) {
+                startUpdater(updaterConfig);
+                ++started;
+            }
+        }
+        logger.info("Config " + config.getConfigName() + " reloaded, " + stopped
+                  + " updaters stopped and " + started + " started");
     }
     
     /**
@@ -105,85 +173,203 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
      */
     @Override
     public void destroy() {
-        if (messagingClientList != null && messagingClientList.size() > 0) {
-            Iterator<MessagingClient> clients = messagingClientList.iterator();
-            while (clients.hasNext()) {
-                MessagingClient client = clients.next();
-                try {
-                    client.stop(false);
-                } catch (MessagingException me) {
-                    logger.warn("Messaging exception encountered stopping the "
-                              + "messaging client: " + me.getMessage() + ". This "
-                              + "error is expected and can be ignored if the message "
-                              + "broker was shut down prior to the UpdateListener.");
-                }
+        if (configWatcher != null) {
+            configWatcher.stop();
+            configWatcher = null;
+        }
+        ReindexManager.getInstance().stopAll(SHUTDOWN_TIMEOUT_MILLIS);
+        synchronized (this) {
+            Iterator<String> updaterNames = new ArrayList<String>(runningUpdaters.keySet()).iterator();
+            while (updaterNames.hasNext()) {
+                stopUpdater(updaterNames.next());
+            }
+            if (clientSupervisor != null) {
+                clientSupervisor.shutdown();
+                clientSupervisor = null;
             }
         }
+        // Pipelines added with addPipeline have no messaging client
+        Iterator<UpdaterPipeline> updaterPipelines = pipelines.values().iterator();
+        while (updaterPipelines.hasNext()) {
+            updaterPipelines.next().shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+        }
+        pipelines.clear();
+        FedoraClientPool.closeAll();
+        MetricsRegistry.getInstance().unregisterAll();
         super.destroy();
     }
 
+    private synchronized void startUpdater(UpdaterConfig updaterConfig) {
+        String updaterName = updaterConfig.getUpdaterName();
+        String clientId = updaterConfig.getClientId();
+        
+        UpdaterPipeline pipeline;
+        try {
+            pipeline = new UpdaterPipeline(updaterConfig);
+        } catch (IOException ioe) {
+            logger.error("Could not create pipeline for updater " + updaterName
+                       + ", no messaging client started for it: " + ioe.getMessage(), ioe);
+            return;
+        }
+        runningUpdaters.put(updaterName, updaterConfig);
+        PipelineRegistry.getInstance().register(pipeline);
+        List<String> clientIds = new ArrayList<String>();
+        List<SupervisedClient> clients = new ArrayList<SupervisedClient>();
+        updaterClientIds.put(updaterName, clientIds);
+        messagingClients.put(updaterName, clients);
+        
+        // All consumers of an updater feed the same pipeline. The first
+        // keeps the configured client id, so an existing durable
+        // subscription is picked up again.
+        Properties messagingProperties = updaterConfig.toMessagingProperties();
+        for (int i=0; i<updaterConfig.getConsumers(); i++) {
+            String consumerId = i == 0 ? clientId : clientId + "-" + (i + 1);
+            addPipeline(consumerId, pipeline);
+            clientIds.add(consumerId);
+            SupervisedClient messagingClient = new SupervisedClient(consumerId, updaterName, this,
+                    messagingProperties, updaterConfig.isDurable(), updaterConfig.isReconnect(),
+                    updaterConfig.getReconnectInitialDelayMillis(), updaterConfig.getReconnectMaxDelayMillis());
+            clients.add(messagingClient);
+            clientSupervisor.start(messagingClient);
+        }
+    }
+    
+    /**
+     * Waits up to timeoutMillis for the messaging clients of all
+     * updaters to start, or fail to, and logs how many are running.
+     */
+    private void awaitMessagingClients(long timeoutMillis) {
+        List<SupervisedClient> clients = new ArrayList<SupervisedClient>();
+        synchronized (this) {
+            Iterator<List<SupervisedClient>> updaterClients = messagingClients.values().iterator();
+            while (updaterClients.hasNext()) {
+                clients.addAll(updaterClients.next());
+            }
+        }
+        int running = clientSupervisor.awaitStarted(clients, timeoutMillis);
+        logger.info(running + " of " + clients.size() + " messaging clients running");
+    }
+    
+    /**
+     * Stops the messaging client of the updater first, so that no new
+     * updates arrive, then lets its pipeline finish. Messages published
+     * while the client is stopped wait on the durable subscription.
+     */
+    private synchronized void stopUpdater(String updaterName) {
+        List<SupervisedClient> clients = messagingClients.remove(updaterName);
+        for (int i=0; clients != null && i<clients.size(); i++) {
+            clients.get(i).stop();
+        }
+        runningUpdaters.remove(updaterName);
+        List<String> clientIds = updaterClientIds.remove(updaterName);
+        UpdaterPipeline pipeline = null;
+        for (int i=0; clientIds != null && i<clientIds.size(); i++) {
+            pipeline = pipelines.remove(clientIds.get(i));
+        }
+        if (pipeline != null) {
+            PipelineRegistry.getInstance().unregister(pipeline);
+            pipeline.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+        }
+    }
+    
+    private void startConfigWatcher(Config config) {
+        long reloadMillis = config.getConfigReloadMillis();
+        if (reloadMillis <= 0)
+            return;
+        File configDir = Config.getConfigDir(config.getConfigName());
+        if (configDir == null) {
+            logger.warn("pfs.configReloadMillis is set, but config " + config.getConfigName()
+                      + " is not in a directory, so changes will not be picked up");
+            return;
+        }
+        configWatcher = new ConfigWatcher(configDir, reloadMillis, new ConfigWatcher.Listener() {
+            public void configChanged() {
+                reloadConfig();
+            }
+        });
+        configWatcher.start();
+    }
+
     /**
      * Handles update messages as they are received. Extracts
-     * update information and calls updateIndex().
+     * the PID and hands the update to the pipeline of the updater
+     * the message arrived on. Runs on the JMS delivery thread, so
+     * nothing expensive happens here.
      * 
      * {@inheritDoc}
      */
     public void onMessage(String clientId, Message message) {
 
-        logger.debug("Received Fedora Message: " + message.toString());
+        boolean debug = logger.isDebugEnabled()
+                && debugMessageCount.getAndIncrement() % debugLogEvery == 0;
+        if (debug)
+            logger.debug("Received Fedora Message: " + message.toString());
+        
+        UpdaterPipeline pipeline = pipelines.get(clientId);
+        if (pipeline == null) {
+            logger.warn("Received update message for unknown client " + clientId
+                    + ". No update performed.");
+            return;
+        }
+        UpdaterMetrics metrics = pipeline.getMetrics();
+        metrics.received();
         
         String messageText = "";
         if (message instanceof TextMessage) {
             try {
                 messageText = ((TextMessage) message).getText();
             } catch (JMSException jmse) {
+                metrics.nonText();
                 logger.error("Unable to retrieve text from update message, "
                         + "message cannot be processed:" + message.toString());
                 return;
             }
         } else {
+            metrics.nonText();
             logger.warn("Receieved non-text message in UpdateListener, "
                     + "message was of type " + message.getClass());
             return;
         }
 
-        logger.debug("Message Text: " + messageText);
+        if (debug)
+            logger.debug("Message Text: " + messageText);
 
-        APIMMessage apimMessage = new AtomAPIMMessage(messageText);
-        String baseUrl = apimMessage.getBaseUrl();
-        //String methodName = apimMessage.getMethodName();
-        String pid = apimMessage.getPID();
+        long parseStart = System.nanoTime();
+        ApimMessage apimMessage = messageParser.parse(messageText);
+        long parseMicros = (System.nanoTime() - parseStart) / 1000;
+        String pid = apimMessage.getPid();
         
         if(pid == null || pid.equals("")) {
+            metrics.noPid();
             logger.warn("Received update message with no PID. No update performed.\n" 
                         + messageText);
             return;
         }
-        
-        URL repositoryUrl = null;
-        try {
-            repositoryUrl = new URL(baseUrl);
-        } catch (Exception e) {
-            logger.error("Could not create URL from message base url"
-            		   + " because of exception: " + e.getMessage(), e);
-            repositoryUrl = null;
+
+        if (pipeline.isDuplicate(apimMessage)) {
+            metrics.duplicate();
+            if (debug)
+                logger.debug("Dropped duplicate message for " + pid);
+            return;
         }
-            
-  
-        String repositoryName = "";       
 
-        Config config = null;
+        // cached object info goes stale even for messages the routes ignore
+        ObjectInfoCache cache = ObjectInfoCache.getInstanceIfCreated();
+        if (cache != null)
+            cache.onMessage(pid, apimMessage.getMethodName());
+
+        IndexUpdate update = new IndexUpdate(clientId, messageText, apimMessage);
+        long timestampMillis = apimMessage.getTimestampMillis();
+        metrics.parsed(parseMicros,
+                timestampMillis < 0 ? -1 : update.getReceivedMillis() - timestampMillis);
         try {
-            config = Config.getCurrentConfig();
-            
-            if(repositoryUrl != null) {
-                repositoryName = config.getRepositoryNameFromUrl(repositoryUrl);
-            }
-           
-            logger.info("Index updated by notification message in repository\n" + repositoryName);
-        } catch (RemoteException re) {
-            logger.error("Unable to perform index update due to Exception: "+ re.getMessage(), re);
+            update.setJmsPriority(message.getJMSPriority());
+        } catch (JMSException jmse) {
+            // keep the default priority
         }
-    }    
+        if (!pipeline.submit(update) && debug)
+            logger.debug("Dropped " + apimMessage.getMethodName() + " message for " + pid
+                    + " by route " + update.getRoute().getName());
+    }
     
 }
\ No newline at end of file
@@ -0,0 +1,484 @@
+package org.phaidra.fedora.subscriber;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+import org.phaidra.fedora.subscriber.pipeline.OverflowPolicy;
+import org.phaidra.fedora.subscriber.pipeline.PriorityPolicy;
+import org.phaidra.fedora.subscriber.pipeline.RetryPolicy;
+import org.phaidra.fedora.subscriber.pipeline.UpdateRoute;
+
+/**
+ * The properties of one updater.properties file, with the values the
+ * pipeline needs resolved to typed fields when the Config snapshot is
+ * built. Immutable, so it can be read from any thread without locking.
+ */
+public class UpdaterConfig {
+
+    public static final String ACK_MODE_AUTO = "auto";
+
+    public static final String ACK_MODE_BATCH = "batch";
+
+    /**
+     * The name of the sink set up by the pfsupdater.sink.* properties,
+     * the only sink unless pfsupdater.sinks lists others.
+     */
+    public static final String DEFAULT_SINK = "default";
+
+    /** updates run on a fixed number of lanes per updater and sink */
+    public static final String EXECUTION_LANES = "lanes";
+
+    /** every update runs on a virtual thread of its own */
+    public static final String EXECUTION_VIRTUAL = "virtual";
+
+    private final String updaterName;
+
+    private final Map<String, String> props;
+
+    private final String executionMode;
+
+    private final int lanes;
+
+    private final int queueDepth;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final File spillDir;
+
+    private final long coalesceWindowMillis;
+
+    private final int batchSize;
+
+    private final long batchLatencyMillis;
+
+    private final long guardWaitMillis;
+
+    private final File spoolDir;
+
+    private final int spoolSegmentBytes;
+
+    private final long spoolSyncMillis;
+
+    private final int consumers;
+
+    private final int prefetch;
+
+    private final boolean batchAcknowledge;
+
+    private final boolean durable;
+
+    private final boolean reconnect;
+
+    private final long reconnectInitialDelayMillis;
+
+    private final long reconnectMaxDelayMillis;
+
+    private final File deadLetterDir;
+
+    private final Map<String, RetryPolicy> retryPolicies;
+
+    private final long dedupWindowMillis;
+
+    private final int dedupCapacity;
+
+    private final double dedupFalsePositiveRate;
+
+    private final List<UpdateRoute> routes;
+
+    private final PriorityPolicy priorityPolicy;
+
+    private final List<SinkConfig> sinkConfigs;
+
+    UpdaterConfig(String updaterName, Map<String, String> props) {
+        this.updaterName = updaterName;
+        this.props = props;
+        String mode = props.get("pfsupdater.executionMode");
+        executionMode = mode == null ? EXECUTION_LANES : mode.trim().toLowerCase();
+        lanes = Config.parseInt(props.get("pfsupdater.lanes"), 4);
+        queueDepth = Config.parseInt(props.get("pfsupdater.queueDepth"), 10000);
+        OverflowPolicy policy = OverflowPolicy.fromString(props.get("pfsupdater.overflowPolicy"));
+        overflowPolicy = policy == null ? OverflowPolicy.BLOCK : policy;
+        String spillDirName = Config.insertSystemProperties(props.get("pfsupdater.spillDir"));
+        spillDir = spillDirName == null ? null : new File(spillDirName);
+        coalesceWindowMillis = Config.parseInt(props.get("pfsupdater.coalesceWindowMillis"), 0);
+        batchSize = Config.parseInt(props.get("pfsupdater.batchSize"), 100);
+        batchLatencyMillis = Config.parseInt(props.get("pfsupdater.batchLatencyMillis"), 200);
+        guardWaitMillis = Config.parseInt(props.get("pfsupdater.guardWaitMillis"), 30000);
+        String spoolDirName = Config.insertSystemProperties(props.get("pfsupdater.spoolDir"));
+        spoolDir = spoolDirName == null ? null : new File(spoolDirName);
+        spoolSegmentBytes = Config.parseInt(props.get("pfsupdater.spoolSegmentBytes"), 16 * 1024 * 1024);
+        spoolSyncMillis = Config.parseInt(props.get("pfsupdater.spoolSyncMillis"), 0);
+        consumers = Config.parseInt(props.get("pfsupdater.consumers"), 1);
+        prefetch = Config.parseInt(props.get("pfsupdater.prefetch"), 0);
+        batchAcknowledge = ACK_MODE_BATCH.equalsIgnoreCase(props.get("pfsupdater.ackMode"));
+        durable = !"false".equalsIgnoreCase(props.get("pfsupdater.durable"));
+        reconnect = !"false".equalsIgnoreCase(props.get("pfsupdater.reconnect"));
+        reconnectInitialDelayMillis = Config.parseInt(props.get("pfsupdater.reconnectInitialDelayMillis"), 1000);
+        reconnectMaxDelayMillis = Config.parseInt(props.get("pfsupdater.reconnectMaxDelayMillis"), 60000);
+        String deadLetterDirName = Config.insertSystemProperties(props.get("pfsupdater.deadLetterDir"));
+        deadLetterDir = deadLetterDirName == null ? null : new File(deadLetterDirName);
+        Map<String, RetryPolicy> policies = new HashMap<String, RetryPolicy>();
+        for (int i=0; i<RetryPolicy.FAILURE_CLASSES.length; i++) {
+            String failureClass = RetryPolicy.FAILURE_CLASSES[i];
+            String prefix = "pfsupdater.retry." + failureClass + ".";
+            RetryPolicy defaults = RetryPolicy.getDefault(failureClass);
+            policies.put(failureClass, new RetryPolicy(
+                    Config.parseInt(props.get(prefix + "maxAttempts"), defaults.getMaxAttempts()),
+                    Config.parseInt(props.get(prefix + "initialDelayMillis"), (int) defaults.getInitialDelayMillis()),
+                    Config.parseInt(props.get(prefix + "maxDelayMillis"), (int) defaults.getMaxDelayMillis())));
+        }
+        retryPolicies = Collections.unmodifiableMap(policies);
+        dedupWindowMillis = Config.parseInt(props.get("pfsupdater.dedupWindowMillis"), 600000);
+        dedupCapacity = Config.parseInt(props.get("pfsupdater.dedupCapacity"), 100000);
+        dedupFalsePositiveRate = Config.parseDouble(props.get("pfsupdater.dedupFalsePositiveRate"), 0.000001);
+        List<UpdateRoute> routeList = new ArrayList<UpdateRoute>();
+        List<String> routeNames = getRouteNames();
+        for (int i=0; i<routeNames.size(); i++) {
+            String prefix = "pfsupdater.route." + routeNames.get(i) + ".";
+            String action = props.get(prefix + "action");
+            routeList.add(new UpdateRoute(routeNames.get(i),
+                    props.get(prefix + "methods"),
+                    props.get(prefix + "dsIds"),
+                    props.get(prefix + "namespaces"),
+                    action == null ? UpdateRoute.INDEX : action.trim().toLowerCase(),
+                    props.get(prefix + "sinks")));
+        }
+        routes = Collections.unmodifiableList(routeList);
+        String priorityMode = props.get("pfsupdater.priority.mode");
+        if (priorityMode == null) {
+            priorityPolicy = null;
+        } else {
+            String defaultClass = props.get("pfsupdater.priority.default");
+            priorityPolicy = new PriorityPolicy(priorityMode.trim().toLowerCase(),
+                    Config.parseInt(props.get("pfsupdater.priority.weight"), 10),
+                    Config.parseInt(props.get("pfsupdater.priority.maxBulkWaitMillis"), 10000),
+                    defaultClass == null ? PriorityPolicy.INTERACTIVE : defaultClass.trim().toLowerCase(),
+                    props.get("pfsupdater.priority.bulk.users"),
+                    props.get("pfsupdater.priority.bulk.namespaces"),
+                    props.get("pfsupdater.priority.bulk.methods"),
+                    Config.parseInt(props.get("pfsupdater.priority.bulk.jmsPriority"), -1),
+                    props.get("pfsupdater.priority.interactive.users"),
+                    props.get("pfsupdater.priority.interactive.namespaces"),
+                    props.get("pfsupdater.priority.interactive.methods"),
+                    Config.parseInt(props.get("pfsupdater.priority.interactive.jmsPriority"), -1));
+        }
+        List<SinkConfig> sinkList = new ArrayList<SinkConfig>();
+        String sinkNames = props.get("pfsupdater.sinks");
+        StringTokenizer tokens = new StringTokenizer(sinkNames == null ? DEFAULT_SINK : sinkNames);
+        while (tokens.hasMoreTokens()) {
+            sinkList.add(new SinkConfig(tokens.nextToken(), this));
+        }
+        sinkConfigs = Collections.unmodifiableList(sinkList);
+    }
+
+    public String getUpdaterName() {
+        return updaterName;
+    }
+
+    public String getProperty(String propertyName) {
+        return props.get(propertyName);
+    }
+
+    public String getProperty(String propertyName, String defaultValue) {
+        String propertyValue = props.get(propertyName);
+        return propertyValue == null ? defaultValue : propertyValue;
+    }
+
+    /**
+     * A copy of the properties.
+     */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        Iterator<Map.Entry<String, String>> it = props.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            properties.setProperty(entry.getKey(), entry.getValue());
+        }
+        return properties;
+    }
+
+    /**
+     * The properties for JmsMessagingClient. The prefetch and ack mode
+     * are added to the broker URL in java.naming.provider.url as
+     * ActiveMQ connection options, since fcrepo's client creates the
+     * connection and session itself.
+     *
+     * With pfsupdater.reconnect, a tcp or other single broker URL is
+     * wrapped in an ActiveMQ failover URL, so a client that was
+     * connected reconnects on its own, with backoff between
+     * reconnectInitialDelayMillis and reconnectMaxDelayMillis, after the
+     * broker restarts. The first connect is tried once
+     * (startupMaxReconnectAttempts=1; 0 would mean maxReconnectAttempts,
+     * retrying forever), so that a client that cannot start fails and is
+     * retried by the ClientSupervisor.
+     * Connection options (jms.*) move to the failover URL, transport
+     * options stay with the broker URL. Failover and vm URLs are kept.
+     */
+    public Properties toMessagingProperties() {
+        Properties properties = toProperties();
+        String providerUrl = properties.getProperty("java.naming.provider.url");
+        if (providerUrl == null)
+            return properties;
+        providerUrl = providerUrl.trim();
+        StringBuffer options = new StringBuffer();
+        if (reconnect && !providerUrl.startsWith("failover:") && !providerUrl.startsWith("vm:")) {
+            StringBuffer transportOptions = new StringBuffer();
+            int query = providerUrl.indexOf('?');
+            if (query > -1) {
+                StringTokenizer tokens = new StringTokenizer(providerUrl.substring(query + 1), "&");
+                while (tokens.hasMoreTokens()) {
+                    String option = tokens.nextToken();
+                    if (option.startsWith("jms."))
+                        options.append('&').append(option);
+                    else
+                        transportOptions.append('&').append(option);
+                }
+                providerUrl = providerUrl.substring(0, query);
+                if (transportOptions.length() > 0)
+                    providerUrl += "?" + transportOptions.substring(1);
+            }
+            providerUrl = "failover:(" + providerUrl + ")?initialReconnectDelay=" + reconnectInitialDelayMillis
+                    + "&maxReconnectDelay=" + reconnectMaxDelayMillis
+                    + "&useExponentialBackOff=true&maxReconnectAttempts=-1&startupMaxReconnectAttempts=1";
+        }
+        if (prefetch > 0)
+            options.append("&jms.prefetchPolicy.all=").append(prefetch);
+        if (batchAcknowledge)
+            options.append("&jms.optimizeAcknowledge=true");
+        if (options.length() > 0) {
+            options.setCharAt(0, providerUrl.indexOf('?') > -1 ? '&' : '?');
+            providerUrl += options;
+        }
+        properties.setProperty("java.naming.provider.url", providerUrl);
+        return properties;
+    }
+
+    /**
+     * @return client.id, or pfs-UPDATERNAME if it is not set. The default
+     *         stays the same across restarts and reloads, so a durable
+     *         subscription is picked up again.
+     */
+    public String getClientId() {
+        String clientId = props.get("client.id");
+        return clientId == null ? "pfs-" + updaterName : clientId;
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return EXECUTION_LANES or EXECUTION_VIRTUAL, from
+     *         pfsupdater.executionMode
+     */
+    public String getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * @return the bound of the lanes' queue, or with virtual threads
+     *         of the updates submitted and not yet processed
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return the spill directory, or null if none is configured
+     */
+    public File getSpillDir() {
+        return spillDir;
+    }
+
+    public long getCoalesceWindowMillis() {
+        return coalesceWindowMillis;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchLatencyMillis() {
+        return batchLatencyMillis;
+    }
+
+    /**
+     * @return how long a batch waits for room under the concurrency
+     *         limit of the sink for its repository
+     */
+    public long getGuardWaitMillis() {
+        return guardWaitMillis;
+    }
+
+    /**
+     * @return the message spool directory, or null if updates are not spooled
+     */
+    public File getSpoolDir() {
+        return spoolDir;
+    }
+
+    public int getSpoolSegmentBytes() {
+        return spoolSegmentBytes;
+    }
+
+    /**
+     * @return how long spooled updates may stay unforced, 0 forces every update
+     */
+    public long getSpoolSyncMillis() {
+        return spoolSyncMillis;
+    }
+
+    /**
+     * @return the number of messaging clients consuming for the updater
+     */
+    public int getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * @return the number of messages the broker sends ahead to each
+     *         consumer, 0 for the broker default
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @return true if acknowledgements are sent in batches rather than
+     *         one per message
+     */
+    public boolean isBatchAcknowledge() {
+        return batchAcknowledge;
+    }
+
+    public boolean isDurable() {
+        return durable;
+    }
+
+    /**
+     * @return whether the messaging clients reconnect after losing the
+     *         broker, and are started again when they fail to start
+     */
+    public boolean isReconnect() {
+        return reconnect;
+    }
+
+    public long getReconnectInitialDelayMillis() {
+        return reconnectInitialDelayMillis;
+    }
+
+    public long getReconnectMaxDelayMillis() {
+        return reconnectMaxDelayMillis;
+    }
+
+    /**
+     * @return the dead letter directory, or null if updates that
+     *         cannot be processed are dropped
+     */
+    public File getDeadLetterDir() {
+        return deadLetterDir;
+    }
+
+    /**
+     * @return the retry policy of each RetryPolicy failure class, from
+     *         the pfsupdater.retry.* properties and the class defaults
+     */
+    public Map<String, RetryPolicy> getRetryPolicies() {
+        return retryPolicies;
+    }
+
+    /**
+     * @return how long a message is recognized as seen, 0 if duplicates
+     *         are not filtered
+     */
+    public long getDedupWindowMillis() {
+        return dedupWindowMillis;
+    }
+
+    /**
+     * @return the messages a generation of the duplicate filter holds
+     */
+    public int getDedupCapacity() {
+        return dedupCapacity;
+    }
+
+    public double getDedupFalsePositiveRate() {
+        return dedupFalsePositiveRate;
+    }
+
+    /**
+     * @return the route names listed in pfsupdater.routes, in order
+     */
+    public List<String> getRouteNames() {
+        String routeNames = props.get("pfsupdater.routes");
+        List<String> names = new ArrayList<String>();
+        if (routeNames != null) {
+            StringTokenizer tokens = new StringTokenizer(routeNames);
+            while (tokens.hasMoreTokens()) {
+                names.add(tokens.nextToken());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the routing table from the pfsupdater.route.* properties,
+     *         in the order the first matching route is looked for
+     */
+    public List<UpdateRoute> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @return how the lanes take interactive and bulk updates, null if
+     *         pfsupdater.priority.mode is not set and they are taken in
+     *         arrival order
+     */
+    public PriorityPolicy getPriorityPolicy() {
+        return priorityPolicy;
+    }
+
+    /**
+     * @return the sinks listed in pfsupdater.sinks, or the default sink
+     */
+    public List<SinkConfig> getSinkConfigs() {
+        return sinkConfigs;
+    }
+
+    /**
+     * @return the names of the sinks of the updater, which routes may
+     *         restrict their updates to
+     */
+    public List<String> getSinkNames() {
+        List<String> sinkNames = new ArrayList<String>();
+        for (int i=0; i<sinkConfigs.size(); i++) {
+            sinkNames.add(sinkConfigs.get(i).getSinkName());
+        }
+        return sinkNames;
+    }
+
+    /**
+     * Two updater configs are equal when their properties are, which
+     * is what decides whether an updater has to be restarted.
+     */
+    public boolean equals(Object other) {
+        return other instanceof UpdaterConfig
+                && updaterName.equals(((UpdaterConfig) other).updaterName)
+                && props.equals(((UpdaterConfig) other).props);
+    }
+
+    public int hashCode() {
+        return updaterName.hashCode() * 31 + props.hashCode();
+    }
+}
@@ -0,0 +1,19 @@
+package org.phaidra.fedora.subscriber.errors;
+
+/**
+ * A call to a repository was not made because its circuit breaker is
+ * open or its concurrency limit was not freed in time.
+ */
+public class RepositoryUnavailableException extends PhaidraFedoraSubscriberException {
+
+	private static final long serialVersionUID = 1L;
+
+    public RepositoryUnavailableException(String message) {
+        super(message);
+    }
+
+    public RepositoryUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,289 @@
+package org.phaidra.fedora.subscriber.fedora;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.cxf.configuration.jsse.TLSClientParameters;
+import org.apache.cxf.endpoint.Client;
+import org.apache.cxf.frontend.ClientProxy;
+import org.apache.cxf.transport.Conduit;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transports.http.configuration.ConnectionType;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+import org.apache.log4j.Logger;
+
+import org.fcrepo.client.FedoraClient;
+import org.fcrepo.server.access.FedoraAPIA;
+
+import org.phaidra.fedora.subscriber.RepositoryConfig;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.metrics.LatencyHistogram;
+import org.phaidra.fedora.subscriber.metrics.MetricSource;
+import org.phaidra.fedora.subscriber.metrics.MetricsRegistry;
+
+/**
+ * A pool of Fedora API-A SOAP ports for one repository, so that
+ * parallel workers each get a connection of their own and connections
+ * are reused instead of opened, with a TLS handshake, per request.
+ *
+ * At most pfsrepository.soapPoolSize ports are handed out at a time;
+ * borrowAPIA() waits up to pfsrepository.soapPoolWaitMillis for one to
+ * be returned. Ports are created on demand, each from its own
+ * FedoraClient, and their HTTP conduit is set to keep connections
+ * alive and to the connect and read timeouts of the repository. If
+ * pfsrepository.trustStorePath is set, the certificates of the
+ * repository are checked against that trust store only; the
+ * javax.net.ssl system properties are left alone, so repositories with
+ * different trust stores can be used side by side.
+ *
+ * getPool(RepositoryConfig) returns the pool of a repository and
+ * replaces it when the repository config has changed.
+ */
+public class FedoraClientPool implements MetricSource {
+
+    private static final ConcurrentHashMap<String, FedoraClientPool> pools =
+            new ConcurrentHashMap<String, FedoraClientPool>();
+
+    private final Logger logger = Logger.getLogger(FedoraClientPool.class);
+
+    private final RepositoryConfig repositoryConfig;
+
+    private final String baseUrl;
+
+    private final TrustManagerFactory trustManagerFactory;
+
+    private final Semaphore permits;
+
+    private final LinkedBlockingQueue<FedoraAPIA> idle = new LinkedBlockingQueue<FedoraAPIA>();
+
+    private final LatencyHistogram waitMicros = new LatencyHistogram();
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong discarded = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    public FedoraClientPool(RepositoryConfig repositoryConfig) throws ConfigException {
+        this.repositoryConfig = repositoryConfig;
+        String fedoraSoap = repositoryConfig.getFedoraSoap();
+        if (fedoraSoap == null)
+            throw new ConfigException("pfsrepository.fedoraSoap not provided for repository "
+                    + repositoryConfig.getRepositoryName());
+        // FedoraClient wants the base URL of the webapp, not of its services
+        baseUrl = fedoraSoap.endsWith("/services")
+                ? fedoraSoap.substring(0, fedoraSoap.length() - "/services".length()) : fedoraSoap;
+        trustManagerFactory = loadTrustStore(repositoryConfig);
+        permits = new Semaphore(repositoryConfig.getSoapPoolSize(), true);
+    }
+
+    /**
+     * @return the pool of the repository, a new one if the repository
+     *         had none or its config has changed since
+     */
+    public static FedoraClientPool getPool(RepositoryConfig repositoryConfig) throws ConfigException {
+        String repositoryName = repositoryConfig.getRepositoryName();
+        FedoraClientPool pool = pools.get(repositoryName);
+        if (pool != null && pool.repositoryConfig.equals(repositoryConfig))
+            return pool;
+        synchronized (pools) {
+            pool = pools.get(repositoryName);
+            if (pool != null && pool.repositoryConfig.equals(repositoryConfig))
+                return pool;
+            FedoraClientPool newPool = new FedoraClientPool(repositoryConfig);
+            pools.put(repositoryName, newPool);
+            MetricsRegistry.getInstance().registerSource("FedoraClientPool", repositoryName,
+                    "Fedora SOAP client pool of repository " + repositoryName, newPool);
+            if (pool != null)
+                pool.close();
+            return newPool;
+        }
+    }
+
+    /**
+     * Closes the pools of all repositories.
+     */
+    public static void closeAll() {
+        synchronized (pools) {
+            Iterator<FedoraClientPool> it = pools.values().iterator();
+            while (it.hasNext()) {
+                it.next().close();
+            }
+            pools.clear();
+        }
+    }
+
+    /**
+     * Takes a port from the pool, creating one if none is idle. Every
+     * port borrowed has to be given back with release or, after an
+     * error that may have left its connection broken, discard.
+     */
+    public FedoraAPIA borrowAPIA() throws PhaidraFedoraSubscriberException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(repositoryConfig.getSoapPoolWaitMillis(), TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new PhaidraFedoraSubscriberException("No Fedora SOAP client of repository "
+                        + repositoryConfig.getRepositoryName() + " became free within "
+                        + repositoryConfig.getSoapPoolWaitMillis() + " ms");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new PhaidraFedoraSubscriberException("Interrupted waiting for a Fedora SOAP client of repository "
+                    + repositoryConfig.getRepositoryName(), ie);
+        }
+        waitMicros.record((System.nanoTime() - start) / 1000);
+        FedoraAPIA apia = idle.poll();
+        if (apia != null)
+            return apia;
+        try {
+            return createAPIA();
+        } catch (PhaidraFedoraSubscriberException pfse) {
+            permits.release();
+            throw pfse;
+        } catch (RuntimeException re) {
+            permits.release();
+            throw re;
+        }
+    }
+
+    public void release(FedoraAPIA apia) {
+        if (closed) {
+            destroy(apia);
+        } else {
+            idle.offer(apia);
+            // close() may have drained the idle ports before the offer
+            if (closed)
+                destroyIdle();
+        }
+        permits.release();
+    }
+
+    public void discard(FedoraAPIA apia) {
+        discarded.incrementAndGet();
+        destroy(apia);
+        permits.release();
+    }
+
+    /**
+     * Drops the idle ports. Ports still borrowed are dropped when they
+     * are released.
+     */
+    public void close() {
+        closed = true;
+        destroyIdle();
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("size", Long.valueOf(repositoryConfig.getSoapPoolSize()));
+        metrics.put("borrowed", Long.valueOf(repositoryConfig.getSoapPoolSize() - permits.availablePermits()));
+        metrics.put("idle", Long.valueOf(idle.size()));
+        metrics.put("waiting", Long.valueOf(permits.getQueueLength()));
+        metrics.put("created", Long.valueOf(created.get()));
+        metrics.put("discarded", Long.valueOf(discarded.get()));
+        metrics.put("timeouts", Long.valueOf(timeouts.get()));
+        metrics.put("waitMicros.count", Long.valueOf(waitMicros.getCount()));
+        metrics.put("waitMicros.mean", Double.valueOf(waitMicros.getMean()));
+        metrics.put("waitMicros.p99", Long.valueOf(waitMicros.getPercentile(99)));
+        metrics.put("waitMicros.max", Long.valueOf(waitMicros.getMax()));
+        return metrics;
+    }
+
+    private FedoraAPIA createAPIA() throws PhaidraFedoraSubscriberException {
+        String repositoryName = repositoryConfig.getRepositoryName();
+        FedoraAPIA apia;
+        try {
+            apia = new FedoraClient(baseUrl, repositoryConfig.getFedoraUser(),
+                    repositoryConfig.getFedoraPass()).getAPIA();
+        } catch (Exception e) {
+            throw new PhaidraFedoraSubscriberException("getAPIA for repository " + repositoryName
+                    + " exception=" + e.toString(), e);
+        }
+        Conduit conduit;
+        try {
+            conduit = ClientProxy.getClient(apia).getConduit();
+        } catch (RuntimeException re) {
+            // not a CXF proxy
+            conduit = null;
+        }
+        if (conduit instanceof HTTPConduit) {
+            HTTPConduit httpConduit = (HTTPConduit) conduit;
+            HTTPClientPolicy policy = new HTTPClientPolicy();
+            policy.setConnection(ConnectionType.KEEP_ALIVE);
+            policy.setConnectionTimeout(repositoryConfig.getSoapConnectTimeoutMillis());
+            policy.setReceiveTimeout(repositoryConfig.getSoapReadTimeoutMillis());
+            httpConduit.setClient(policy);
+            if (trustManagerFactory != null) {
+                TLSClientParameters tlsParameters = new TLSClientParameters();
+                tlsParameters.setTrustManagers(trustManagerFactory.getTrustManagers());
+                httpConduit.setTlsClientParameters(tlsParameters);
+            }
+        } else {
+            logger.warn("Fedora SOAP client of repository " + repositoryName
+                    + " is not a CXF HTTP client, timeouts and trust store not applied");
+        }
+        long count = created.incrementAndGet();
+        if (logger.isInfoEnabled())
+            logger.info("Created Fedora SOAP client " + count + " of repository " + repositoryName
+                    + " at " + baseUrl);
+        return apia;
+    }
+
+    private void destroyIdle() {
+        FedoraAPIA apia;
+        while ((apia = idle.poll()) != null) {
+            destroy(apia);
+        }
+    }
+
+    private void destroy(FedoraAPIA apia) {
+        try {
+            Client client = ClientProxy.getClient(apia);
+            client.destroy();
+        } catch (RuntimeException re) {
+            if (logger.isDebugEnabled())
+                logger.debug("Could not destroy Fedora SOAP client: " + re.toString());
+        }
+    }
+
+    private static TrustManagerFactory loadTrustStore(RepositoryConfig repositoryConfig) throws ConfigException {
+        String trustStorePath = repositoryConfig.getTrustStorePath();
+        if (trustStorePath == null || trustStorePath.length() == 0)
+            return null;
+        String trustStorePass = repositoryConfig.getTrustStorePass();
+        try {
+            KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            InputStream in = new FileInputStream(trustStorePath);
+            try {
+                trustStore.load(in, trustStorePass == null ? null : trustStorePass.toCharArray());
+            } finally {
+                in.close();
+            }
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(trustStore);
+            return factory;
+        } catch (IOException ioe) {
+            throw new ConfigException("Could not read trust store " + trustStorePath + " of repository "
+                    + repositoryConfig.getRepositoryName() + ": " + ioe.toString(), ioe);
+        } catch (Exception e) {
+            throw new ConfigException("Could not load trust store " + trustStorePath + " of repository "
+                    + repositoryConfig.getRepositoryName() + ": " + e.toString(), e);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package org.phaidra.fedora.subscriber.fedora;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.RepositoryConfig;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.metrics.MetricSource;
+
+/**
+ * Reads object info straight from the FOXML files in the object store
+ * of a repository running on the same host, given by
+ * pfsrepository.fedoraObjectDir.
+ *
+ * The object file is found the way Fedora's Akubra HashPathIdMapper
+ * stores it, in the directories given by
+ * pfsrepository.fedoraObjectPathPattern (default "##"): each '#'
+ * stands for the next hex character of the MD5 of "info:fedora/" + PID
+ * and each '/' separates two directory levels, so "##" is one level
+ * named by two characters and "##/##" two levels of two characters
+ * each. The file is named by the encoded "info:fedora/" + PID. Only the object
+ * properties and the datastream attributes are parsed, inline and
+ * binary content is skipped.
+ *
+ * Objects of repositories without an object directory, objects whose
+ * file is not there, for example because the store is on another host
+ * or uses another layout, and files that cannot be parsed are read
+ * from the fallback source instead.
+ */
+public class FoxmlObjectInfoSource implements ObjectInfoSource, MetricSource {
+
+    private static final String FOXML_NS = "info:fedora/fedora-system:def/foxml#";
+
+    private static final String MODEL_NS = "info:fedora/fedora-system:def/model#";
+
+    private static final String VIEW_NS = "info:fedora/fedora-system:def/view#";
+
+    // smaller files are read into the heap, mapping them costs more than it saves
+    private static final int MAP_THRESHOLD_BYTES = 64 * 1024;
+
+    private final Logger logger = Logger.getLogger(FoxmlObjectInfoSource.class);
+
+    private final ObjectInfoSource fallback;
+
+    private final XMLInputFactory xmlInputFactory;
+
+    private final AtomicLong foxmlReads = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    private final AtomicLong parseErrors = new AtomicLong();
+
+    public FoxmlObjectInfoSource(ObjectInfoSource fallback) {
+        this.fallback = fallback;
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    public ObjectInfo getObjectInfo(String repositoryName, String pid) throws PhaidraFedoraSubscriberException {
+        RepositoryConfig repositoryConfig = Config.getCurrentConfig().getRepositoryConfig(repositoryName);
+        File objectDir = repositoryConfig == null ? null : repositoryConfig.getFedoraObjectDir();
+        if (objectDir != null && objectDir.isDirectory()) {
+            File objectFile = getObjectFile(objectDir, repositoryConfig.getFedoraObjectPathPattern(), pid);
+            if (objectFile.isFile()) {
+                try {
+                    ObjectInfo info = parse(repositoryName, pid, readFile(objectFile));
+                    foxmlReads.incrementAndGet();
+                    return info;
+                } catch (IOException ioe) {
+                    parseErrors.incrementAndGet();
+                    logger.warn("Could not read " + objectFile + ", asking Fedora: " + ioe.toString());
+                } catch (XMLStreamException xse) {
+                    parseErrors.incrementAndGet();
+                    logger.warn("Could not parse " + objectFile + ", asking Fedora: " + xse.toString());
+                }
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("No object file " + objectFile + " for " + pid + ", asking Fedora");
+            }
+        }
+        fallbacks.incrementAndGet();
+        return fallback.getObjectInfo(repositoryName, pid);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("foxmlReads", Long.valueOf(foxmlReads.get()));
+        metrics.put("fallbacks", Long.valueOf(fallbacks.get()));
+        metrics.put("parseErrors", Long.valueOf(parseErrors.get()));
+        return metrics;
+    }
+
+    /**
+     * @return the file the Akubra HashPathIdMapper with the given path
+     *         pattern stores the object in
+     */
+    public static File getObjectFile(File objectDir, String pathPattern, String pid) {
+        String id = "info:fedora/" + pid;
+        String hash = md5Hex(id);
+        // one hash character per '#', a directory separator for any other character
+        StringBuffer path = new StringBuffer();
+        int hashPos = 0;
+        for (int i=0; i<pathPattern.length(); i++) {
+            if (pathPattern.charAt(i) == '#')
+                path.append(hash.charAt(hashPos++));
+            else
+                path.append('/');
+        }
+        return new File(new File(objectDir, path.toString()), encode(id));
+    }
+
+    private ObjectInfo parse(String repositoryName, String pid, InputStream in)
+            throws IOException, XMLStreamException {
+        String label = null;
+        String state = null;
+        String ownerId = null;
+        String lastModifiedDate = null;
+        List<ObjectInfo.Datastream> datastreams = new ArrayList<ObjectInfo.Datastream>();
+        String dsId = null;
+        String dsLabel = null;
+        String dsMimeType = null;
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (FOXML_NS.equals(reader.getNamespaceURI()) && "datastream".equals(reader.getLocalName())) {
+                        datastreams.add(new ObjectInfo.Datastream(dsId, dsLabel, dsMimeType));
+                        dsId = null;
+                    }
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT || !FOXML_NS.equals(reader.getNamespaceURI()))
+                    continue;
+                String name = reader.getLocalName();
+                if ("property".equals(name)) {
+                    String propertyName = reader.getAttributeValue(null, "NAME");
+                    String value = reader.getAttributeValue(null, "VALUE");
+                    if ((MODEL_NS + "label").equals(propertyName))
+                        label = value;
+                    else if ((MODEL_NS + "state").equals(propertyName))
+                        state = value == null || value.length() == 0 ? value : value.substring(0, 1);
+                    else if ((MODEL_NS + "ownerId").equals(propertyName))
+                        ownerId = value;
+                    else if ((VIEW_NS + "lastModifiedDate").equals(propertyName))
+                        lastModifiedDate = value;
+                } else if ("datastream".equals(name)) {
+                    dsId = reader.getAttributeValue(null, "ID");
+                    dsLabel = null;
+                    dsMimeType = null;
+                } else if ("datastreamVersion".equals(name) && dsId != null) {
+                    // versions are in creation order, the last one is current
+                    dsLabel = reader.getAttributeValue(null, "LABEL");
+                    dsMimeType = reader.getAttributeValue(null, "MIMETYPE");
+                } else if ("xmlContent".equals(name) || "binaryContent".equals(name)) {
+                    skipElement(reader);
+                }
+            }
+        } finally {
+            reader.close();
+            in.close();
+        }
+        if (state == null)
+            throw new XMLStreamException("no object state in FOXML of " + pid);
+        return new ObjectInfo(repositoryName, pid, label, state, ownerId, lastModifiedDate, datastreams);
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    private static InputStream readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            ByteBuffer buffer;
+            if (size >= MAP_THRESHOLD_BYTES) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                }
+                buffer.flip();
+            }
+            return new ByteBufferInputStream(buffer);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String md5Hex(String id) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(id.getBytes("UTF-8"));
+            StringBuffer hex = new StringBuffer(digest.length * 2);
+            for (int i=0; i<digest.length; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    /**
+     * The file name encoding of the Akubra HashPathIdMapper.
+     */
+    private static String encode(String id) {
+        StringBuffer out = new StringBuffer();
+        for (int i=0; i<id.length(); i++) {
+            char c = id.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '=' || c == '(' || c == ')' || c == '[' || c == ']' || c == ';') {
+                out.append(c);
+            } else if (c == ':') {
+                out.append("%3A");
+            } else if (c == ' ') {
+                out.append("%20");
+            } else if (c == '+') {
+                out.append("%2B");
+            } else if (c == '_') {
+                out.append("%5F");
+            } else if (c == '*') {
+                out.append("%2A");
+            } else if (c == '.') {
+                out.append(i == id.length() - 1 ? "%2E" : ".");
+            } else {
+                try {
+                    out.append(URLEncoder.encode(String.valueOf(c), "UTF-8"));
+                } catch (UnsupportedEncodingException uee) {
+                    throw new IllegalStateException(uee);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining())
+                return -1;
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
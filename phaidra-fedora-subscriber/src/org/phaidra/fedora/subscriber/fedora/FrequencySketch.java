@@ -0,0 +1,85 @@
+package org.phaidra.fedora.subscriber.fedora;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often each key
+ * has been seen recently, as used by TinyLFU to decide admission.
+ *
+ * Every key has a counter in each of four rows; the estimate is the
+ * smallest of the four. Once sampleSize increments have been counted
+ * all counters are halved, so the frequencies age. Not thread safe;
+ * the cache calls it under its lock.
+ */
+class FrequencySketch {
+
+    private static final int ROWS = 4;
+
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    // counters are packed 16 to a long
+    private final long[] table;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int additions = 0;
+
+    FrequencySketch(int expectedSize) {
+        int counters = 16;
+        while (counters < Math.max(expectedSize, 1) * 4 && counters < (1 << 30))
+            counters <<= 1;
+        table = new long[Math.max(1, counters / 16) * ROWS];
+        mask = counters - 1;
+        sampleSize = Math.max(expectedSize, 1) * 10;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row=0; row<ROWS; row++) {
+            added |= incrementAt(row, indexOf(hash, row));
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = 15;
+        for (int row=0; row<ROWS; row++) {
+            frequency = Math.min(frequency, counterAt(row, indexOf(hash, row)));
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % ROWS];
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private boolean incrementAt(int row, int index) {
+        int slot = row * (table.length / ROWS) + (index >>> 4);
+        int shift = (index & 15) << 2;
+        if (((table[slot] >>> shift) & 0xF) == 0xF)
+            return false;
+        table[slot] += 1L << shift;
+        return true;
+    }
+
+    private int counterAt(int row, int index) {
+        int slot = row * (table.length / ROWS) + (index >>> 4);
+        return (int) ((table[slot] >>> ((index & 15) << 2)) & 0xF);
+    }
+
+    private void reset() {
+        for (int i=0; i<table.length; i++) {
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,114 @@
+package org.phaidra.fedora.subscriber.fedora;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the subscriber knows about a Fedora object: the fields of its
+ * object profile and its datastreams. Immutable, so it can be shared
+ * through the ObjectInfoCache.
+ */
+public class ObjectInfo {
+
+    private final String repositoryName;
+
+    private final String pid;
+
+    private final String label;
+
+    private final String state;
+
+    private final String ownerId;
+
+    private final String lastModifiedDate;
+
+    private final List<Datastream> datastreams;
+
+    public ObjectInfo(String repositoryName, String pid, String label, String state,
+            String ownerId, String lastModifiedDate, List<Datastream> datastreams) {
+        this.repositoryName = repositoryName;
+        this.pid = pid;
+        this.label = label;
+        this.state = state;
+        this.ownerId = ownerId;
+        this.lastModifiedDate = lastModifiedDate;
+        this.datastreams = Collections.unmodifiableList(datastreams);
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return A(ctive), I(nactive) or D(eleted)
+     */
+    public String getState() {
+        return state;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public String getLastModifiedDate() {
+        return lastModifiedDate;
+    }
+
+    public List<Datastream> getDatastreams() {
+        return datastreams;
+    }
+
+    /**
+     * @return the datastream with that ID, or null if the object has none
+     */
+    public Datastream getDatastream(String dsId) {
+        for (int i=0; i<datastreams.size(); i++) {
+            if (datastreams.get(i).getId().equals(dsId))
+                return datastreams.get(i);
+        }
+        return null;
+    }
+
+    public String toString() {
+        return "ObjectInfo pid=" + pid + " repository=" + repositoryName + " state=" + state
+                + " lastModifiedDate=" + lastModifiedDate + " datastreams=" + datastreams.size();
+    }
+
+    /**
+     * A datastream of the object, as listed by listDatastreams.
+     */
+    public static class Datastream {
+
+        private final String id;
+
+        private final String label;
+
+        private final String mimeType;
+
+        public Datastream(String id, String label, String mimeType) {
+            this.id = id;
+            this.label = label;
+            this.mimeType = mimeType;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.phaidra.fedora.subscriber.fedora;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.metrics.MetricSource;
+import org.phaidra.fedora.subscriber.metrics.MetricsRegistry;
+
+/**
+ * A size and TTL bounded cache of ObjectInfo keyed by PID, in front of
+ * another ObjectInfoSource.
+ *
+ * Eviction follows W-TinyLFU: new entries go into a small LRU window;
+ * an entry leaving the window is only admitted to the main area if a
+ * FrequencySketch has seen its PID more often than the PID it would
+ * evict. The main area is a segmented LRU, entries hit again while on
+ * probation move to the protected segment. So the objects touched over
+ * and over during a collection rebuild stay, while a scan over many
+ * objects seen once does not flush them out.
+ *
+ * Entries are invalidated by PID from the APIM message stream, see
+ * onMessage, and expire ttlMillis after they were loaded. Loads happen
+ * outside the lock. Every invalidation of a PID bumps its generation,
+ * and a load is only cached if the generation it started in is still
+ * the current one, so a load that an invalidation overtook is returned
+ * but not cached, even while a later load of the PID is in flight. A
+ * maxSize of 0 switches caching off.
+ *
+ * getInstance() returns the cache shared by the webapp, in front of the
+ * FOXML files of the object store, or the Fedora SOAP API where these
+ * cannot be read, and sized by pfs.objectCacheSize and
+ * pfs.objectCacheTtlMillis. It is created for the first ObjectInfoSink
+ * that uses it, and kept current by the listener from then on.
+ */
+public class ObjectInfoCache implements ObjectInfoSource, MetricSource {
+
+    /**
+     * APIM methods that do not change an object. All other methods
+     * invalidate the cached info of the PID.
+     */
+    private static final String[] READ_ONLY_METHODS = {
+        "getObjectXML", "export", "getDatastream", "getDatastreams",
+        "getDatastreamHistory", "getRelationships", "compareDatastreamChecksum",
+        "getNextPID", "validate"
+    };
+
+    private static volatile ObjectInfoCache instance = null;
+
+    private final Logger logger = Logger.getLogger(ObjectInfoCache.class);
+
+    private final ObjectInfoSource source;
+
+    private final int maxSize;
+
+    private final long ttlMillis;
+
+    private final int maxWindow;
+
+    private final int maxProtected;
+
+    private final int maxMain;
+
+    private final FrequencySketch sketch;
+
+    // access ordered, eldest first
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // PIDs being loaded, with the loads in flight and their generation
+    private final Map<String, Load> loading = new HashMap<String, Load>();
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long loadFailures = 0;
+
+    private long evictions = 0;
+
+    private long expirations = 0;
+
+    private long invalidations = 0;
+
+    public ObjectInfoCache(ObjectInfoSource source, int maxSize, long ttlMillis) {
+        this.source = source;
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.maxWindow = Math.max(1, maxSize / 100);
+        this.maxMain = Math.max(1, maxSize - maxWindow);
+        this.maxProtected = maxMain * 4 / 5;
+        this.sketch = new FrequencySketch(maxSize);
+    }
+
+    /**
+     * @return the cache shared by the webapp, created from the current
+     *         Config when it is first used
+     */
+    public static synchronized ObjectInfoCache getInstance() throws ConfigException {
+        if (instance == null) {
+            Config config = Config.getCurrentConfig();
+            FoxmlObjectInfoSource foxmlSource = new FoxmlObjectInfoSource(new SoapObjectInfoSource());
+            instance = new ObjectInfoCache(foxmlSource,
+                    config.getObjectCacheSize(), config.getObjectCacheTtlMillis());
+            MetricsRegistry.getInstance().registerSource("Cache", "objectInfo",
+                    "Fedora object info cache", instance);
+            MetricsRegistry.getInstance().registerSource("ObjectSource", "foxml",
+                    "Fedora object info read from FOXML files", foxmlSource);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the cache shared by the webapp, or null while no sink
+     *         uses it
+     */
+    public static ObjectInfoCache getInstanceIfCreated() {
+        return instance;
+    }
+
+    public ObjectInfo getObjectInfo(String repositoryName, String pid) throws PhaidraFedoraSubscriberException {
+        Load load;
+        long generation;
+        synchronized (this) {
+            sketch.increment(pid);
+            Entry entry = lookup(pid);
+            if (entry != null && entry.info.getRepositoryName().equals(repositoryName)) {
+                hits++;
+                return entry.info;
+            }
+            misses++;
+            load = loading.get(pid);
+            if (load == null) {
+                load = new Load();
+                loading.put(pid, load);
+            }
+            load.inFlight++;
+            generation = load.generation;
+        }
+        ObjectInfo info;
+        try {
+            info = source.getObjectInfo(repositoryName, pid);
+        } catch (PhaidraFedoraSubscriberException pfse) {
+            synchronized (this) {
+                loadFailures++;
+                loaded(pid, load);
+            }
+            throw pfse;
+        }
+        synchronized (this) {
+            // not invalidated since the load started
+            if (load.generation == generation)
+                add(pid, new Entry(info, System.currentTimeMillis()));
+            loaded(pid, load);
+        }
+        return info;
+    }
+
+    /**
+     * Drops the cached info of the PID of an APIM message, unless the
+     * method leaves the object unchanged. The next lookup reloads it.
+     */
+    public void onMessage(String pid, String methodName) {
+        if (pid == null)
+            return;
+        for (int i=0; i<READ_ONLY_METHODS.length; i++) {
+            if (READ_ONLY_METHODS[i].equals(methodName))
+                return;
+        }
+        invalidate(pid);
+    }
+
+    public synchronized void invalidate(String pid) {
+        Load load = loading.get(pid);
+        if (load != null)
+            load.generation++;
+        if (window.remove(pid) != null || probation.remove(pid) != null
+                || protectedSegment.remove(pid) != null) {
+            invalidations++;
+            if (logger.isDebugEnabled())
+                logger.debug("Invalidated cached object info of " + pid);
+        }
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        Iterator<Load> it = loading.values().iterator();
+        while (it.hasNext()) {
+            it.next().generation++;
+        }
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("size", Long.valueOf(size()));
+        metrics.put("hits", Long.valueOf(hits));
+        metrics.put("misses", Long.valueOf(misses));
+        metrics.put("hitRate", Double.valueOf(hits + misses == 0 ? 0 : (double) hits / (hits + misses)));
+        metrics.put("loadFailures", Long.valueOf(loadFailures));
+        metrics.put("evictions", Long.valueOf(evictions));
+        metrics.put("expirations", Long.valueOf(expirations));
+        metrics.put("invalidations", Long.valueOf(invalidations));
+        return metrics;
+    }
+
+    private Entry lookup(String pid) {
+        Entry entry = window.get(pid);
+        if (entry == null) {
+            entry = protectedSegment.get(pid);
+            if (entry == null) {
+                entry = probation.remove(pid);
+                if (entry != null) {
+                    // hit on probation, promote
+                    protectedSegment.put(pid, entry);
+                    if (protectedSegment.size() > maxProtected) {
+                        String demoted = eldest(protectedSegment);
+                        probation.put(demoted, protectedSegment.remove(demoted));
+                    }
+                }
+            }
+        }
+        if (entry != null && System.currentTimeMillis() - entry.loadedMillis > ttlMillis) {
+            window.remove(pid);
+            probation.remove(pid);
+            protectedSegment.remove(pid);
+            expirations++;
+            return null;
+        }
+        return entry;
+    }
+
+    private void add(String pid, Entry entry) {
+        if (maxSize == 0)
+            return;
+        window.remove(pid);
+        probation.remove(pid);
+        protectedSegment.remove(pid);
+        window.put(pid, entry);
+        if (window.size() <= maxWindow)
+            return;
+        String candidate = eldest(window);
+        Entry candidateEntry = window.remove(candidate);
+        if (probation.size() + protectedSegment.size() < maxMain) {
+            probation.put(candidate, candidateEntry);
+            return;
+        }
+        String victim = eldest(probation.isEmpty() ? protectedSegment : probation);
+        evictions++;
+        if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+            probation.remove(victim);
+            protectedSegment.remove(victim);
+            probation.put(candidate, candidateEntry);
+        }
+    }
+
+    private void loaded(String pid, Load load) {
+        if (--load.inFlight == 0)
+            loading.remove(pid);
+    }
+
+    private static String eldest(LinkedHashMap<String, Entry> segment) {
+        return segment.keySet().iterator().next();
+    }
+
+    private static class Load {
+
+        int inFlight = 0;
+
+        long generation = 0;
+    }
+
+    private static class Entry {
+
+        final ObjectInfo info;
+
+        final long loadedMillis;
+
+        Entry(ObjectInfo info, long loadedMillis) {
+            this.info = info;
+            this.loadedMillis = loadedMillis;
+        }
+    }
+}
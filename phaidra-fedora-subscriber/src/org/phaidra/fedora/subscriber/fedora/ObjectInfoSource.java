@@ -0,0 +1,15 @@
+package org.phaidra.fedora.subscriber.fedora;
+
+import org.phaidra.fedora.subscriber.errors.FedoraObjectNotFoundException;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+
+/**
+ * Looks up the ObjectInfo of a Fedora object.
+ */
+public interface ObjectInfoSource {
+
+    /**
+     * @throws FedoraObjectNotFoundException if the repository has no object with that PID
+     */
+    ObjectInfo getObjectInfo(String repositoryName, String pid) throws PhaidraFedoraSubscriberException;
+}
@@ -0,0 +1,69 @@
+package org.phaidra.fedora.subscriber.fedora;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fcrepo.server.access.FedoraAPIA;
+import org.fcrepo.server.types.gen.DatastreamDef;
+import org.fcrepo.server.types.gen.ObjectProfile;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.RepositoryConfig;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.errors.FedoraObjectNotFoundException;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.guard.RepositoryGuard;
+import org.phaidra.fedora.subscriber.guard.RepositoryGuards;
+
+/**
+ * Reads the object profile and datastream list from the Fedora
+ * API-A SOAP service of the repository, with a client borrowed from
+ * the FedoraClientPool of the repository. Calls go through the Fedora
+ * RepositoryGuard of the repository, so a Fedora that fails or slows
+ * down is called less, or not at all while its breaker is open.
+ */
+public class SoapObjectInfoSource implements ObjectInfoSource {
+
+    public ObjectInfo getObjectInfo(String repositoryName, String pid) throws PhaidraFedoraSubscriberException {
+        RepositoryConfig repositoryConfig = Config.getCurrentConfig().getRepositoryConfig(repositoryName);
+        if (repositoryConfig == null)
+            throw new ConfigException("Repository " + repositoryName + " is not configured");
+        RepositoryGuard guard = RepositoryGuards.getFedoraGuards().getGuard(repositoryName);
+        long start = guard.acquire();
+        boolean healthy = false;
+        ObjectProfile profile;
+        List<DatastreamDef> datastreamDefs;
+        try {
+            FedoraClientPool pool = FedoraClientPool.getPool(repositoryConfig);
+            FedoraAPIA apia = pool.borrowAPIA();
+            try {
+                profile = apia.getObjectProfile(pid, null);
+                datastreamDefs = apia.listDatastreams(pid, null);
+            } catch (Exception e) {
+                if (e.toString().indexOf("ObjectNotInLowlevelStorage") > -1
+                        || e.toString().indexOf("ObjectNotFound") > -1) {
+                    pool.release(apia);
+                    // Fedora answered, it is not in trouble
+                    healthy = true;
+                    throw new FedoraObjectNotFoundException("Object " + pid + " not found in repository "
+                            + repositoryName, e);
+                }
+                // the connection may be broken, do not reuse the client
+                pool.discard(apia);
+                throw new PhaidraFedoraSubscriberException("Could not read object " + pid
+                        + " from repository " + repositoryName + ": " + e.toString(), e);
+            }
+            pool.release(apia);
+            healthy = true;
+        } finally {
+            guard.release(start, healthy);
+        }
+        List<ObjectInfo.Datastream> datastreams = new ArrayList<ObjectInfo.Datastream>();
+        for (int i=0; datastreamDefs != null && i<datastreamDefs.size(); i++) {
+            DatastreamDef def = datastreamDefs.get(i);
+            datastreams.add(new ObjectInfo.Datastream(def.getID(), def.getLabel(), def.getMIMEType()));
+        }
+        return new ObjectInfo(repositoryName, pid, profile.getObjLabel(), profile.getObjState(),
+                profile.getObjOwnerId(), profile.getObjLastModDate(), datastreams);
+    }
+}
@@ -0,0 +1,104 @@
+package org.phaidra.fedora.subscriber.guard;
+
+/**
+ * Stops calls to a backend that keeps failing.
+ *
+ * The breaker opens after failureThreshold failed calls in a row.
+ * While it is open no calls are allowed. After openMillis it lets one
+ * trial call through (half open): if that succeeds the breaker closes,
+ * if it fails the breaker opens for another openMillis.
+ */
+public class CircuitBreaker {
+
+    public static final String CLOSED = "closed";
+
+    public static final String OPEN = "open";
+
+    public static final String HALF_OPEN = "halfOpen";
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private String state = CLOSED;
+
+    private int consecutiveFailures = 0;
+
+    private long openedMillis = 0;
+
+    private boolean trialInFlight = false;
+
+    private long openedCount = 0;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Asks to make a call. A caller that is allowed has to report the
+     * outcome with record, or with cancel if it does not make the call
+     * after all.
+     */
+    public synchronized boolean allowRequest() {
+        if (CLOSED.equals(state))
+            return true;
+        if (OPEN.equals(state) && System.currentTimeMillis() - openedMillis >= openMillis) {
+            state = HALF_OPEN;
+            trialInFlight = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports that an allowed call was not made.
+     */
+    public synchronized void cancel() {
+        if (HALF_OPEN.equals(state) && trialInFlight) {
+            trialInFlight = false;
+            // the next caller makes the trial
+            state = OPEN;
+            openedMillis = System.currentTimeMillis() - openMillis;
+        }
+    }
+
+    public synchronized void record(boolean success) {
+        if (success) {
+            consecutiveFailures = 0;
+            if (HALF_OPEN.equals(state)) {
+                state = CLOSED;
+                trialInFlight = false;
+            }
+            return;
+        }
+        consecutiveFailures++;
+        if (HALF_OPEN.equals(state) || (CLOSED.equals(state) && consecutiveFailures >= failureThreshold)) {
+            state = OPEN;
+            openedMillis = System.currentTimeMillis();
+            trialInFlight = false;
+            openedCount++;
+        }
+    }
+
+    /**
+     * @return true while calls are not allowed: the breaker is open and
+     *         openMillis have not passed, or the trial call is in flight
+     */
+    public synchronized boolean isOpen() {
+        if (OPEN.equals(state))
+            return System.currentTimeMillis() - openedMillis < openMillis;
+        return HALF_OPEN.equals(state) && trialInFlight;
+    }
+
+    public synchronized String getState() {
+        return state;
+    }
+
+    /**
+     * @return how often the breaker has opened
+     */
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+}
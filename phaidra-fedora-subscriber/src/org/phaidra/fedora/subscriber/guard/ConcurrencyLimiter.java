@@ -0,0 +1,133 @@
+package org.phaidra.fedora.subscriber.guard;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the calls in flight to a backend to what it can sustain,
+ * found by additive increase, multiplicative decrease (AIMD).
+ *
+ * Every successful call raises the limit by 1/limit, so by about one
+ * per round of limit calls, as long as the calls in flight come close
+ * to the limit; a limit that is not used is not raised. Every failed
+ * or slow call cuts the limit by BACKOFF_RATIO. The limit stays
+ * between minLimit and maxLimit.
+ *
+ * Waiting callers wait on a lock condition rather than a monitor, so a
+ * virtual thread waiting for a permit gives its carrier thread up.
+ */
+public class ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private double limit;
+
+    private int inFlight = 0;
+
+    private int waiting = 0;
+
+    private long drops = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    public ConcurrencyLimiter(int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Waits up to waitMillis until fewer calls than the limit are in
+     * flight. A caller that gets a permit has to give it back with
+     * release.
+     *
+     * @return false if no permit became free in time
+     */
+    public boolean acquire(long waitMillis) throws InterruptedException {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        lock.lockInterruptibly();
+        try {
+            waiting++;
+            try {
+                while (inFlight >= (int) limit) {
+                    if (remainingNanos <= 0)
+                        return false;
+                    remainingNanos = released.awaitNanos(remainingNanos);
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param success false if the call failed or was too slow
+     */
+    public void release(boolean success) {
+        lock.lock();
+        try {
+            if (success) {
+                // only grow a limit that is used
+                if (inFlight * 2 >= limit)
+                    limit = Math.min(maxLimit, limit + 1.0 / limit);
+            } else {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                drops++;
+            }
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how often the limit has been cut
+     */
+    public long getDrops() {
+        lock.lock();
+        try {
+            return drops;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
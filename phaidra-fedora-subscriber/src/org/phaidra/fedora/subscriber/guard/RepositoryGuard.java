@@ -0,0 +1,154 @@
+package org.phaidra.fedora.subscriber.guard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.phaidra.fedora.subscriber.RepositoryConfig;
+import org.phaidra.fedora.subscriber.errors.RepositoryUnavailableException;
+import org.phaidra.fedora.subscriber.metrics.LatencyHistogram;
+import org.phaidra.fedora.subscriber.metrics.MetricSource;
+
+/**
+ * A circuit breaker and a concurrency limiter for the calls to one
+ * backend of one repository, set up from the repository config:
+ * pfsrepository.breakerFailures failed calls in a row open the breaker
+ * for pfsrepository.breakerOpenMillis, and the limiter keeps between
+ * pfsrepository.concurrencyMinLimit and concurrencyMaxLimit calls in
+ * flight. Calls slower than pfsrepository.slowCallMillis count as
+ * failed, so a backend that slows down is backed off from before it
+ * times out.
+ *
+ * A call is made like this:
+ *
+ * <pre>
+ * long start = guard.acquire();
+ * boolean healthy = false;
+ * try {
+ *     ... call the backend ...
+ *     healthy = true;
+ * } finally {
+ *     guard.release(start, healthy);
+ * }
+ * </pre>
+ */
+public class RepositoryGuard implements MetricSource {
+
+    private final RepositoryConfig repositoryConfig;
+
+    private final String description;
+
+    private final CircuitBreaker breaker;
+
+    private final ConcurrencyLimiter limiter;
+
+    private final long slowCallMillis;
+
+    private final long waitMillis;
+
+    private final LatencyHistogram callMicros = new LatencyHistogram();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong slowCalls = new AtomicLong();
+
+    /**
+     * @param description the backend, for error messages
+     * @param waitMillis how long acquire waits for room under the concurrency limit
+     */
+    public RepositoryGuard(RepositoryConfig repositoryConfig, String description, long waitMillis) {
+        this.repositoryConfig = repositoryConfig;
+        this.description = description;
+        breaker = new CircuitBreaker(repositoryConfig.getBreakerFailures(), repositoryConfig.getBreakerOpenMillis());
+        limiter = new ConcurrencyLimiter(repositoryConfig.getConcurrencyMinLimit(),
+                repositoryConfig.getConcurrencyMaxLimit());
+        slowCallMillis = repositoryConfig.getSlowCallMillis();
+        this.waitMillis = waitMillis;
+    }
+
+    public RepositoryConfig getRepositoryConfig() {
+        return repositoryConfig;
+    }
+
+    /**
+     * @return true while the breaker is open and calls would be refused
+     */
+    public boolean isOpen() {
+        return breaker.isOpen();
+    }
+
+    /**
+     * @return true if the breaker is closed, false while it is open or
+     *         waiting for the outcome of its trial call
+     */
+    public boolean isClosed() {
+        return CircuitBreaker.CLOSED.equals(breaker.getState());
+    }
+
+    /**
+     * Waits for a call to be allowed.
+     *
+     * @return the start of the call, to be passed to release
+     * @throws RepositoryUnavailableException if the breaker is open or
+     *         the limiter had no room within the wait of the guard
+     */
+    public long acquire() throws RepositoryUnavailableException {
+        if (!breaker.allowRequest()) {
+            rejected.incrementAndGet();
+            throw new RepositoryUnavailableException("Circuit breaker of " + description + " of repository "
+                    + repositoryConfig.getRepositoryName() + " is open");
+        }
+        boolean acquired;
+        try {
+            acquired = limiter.acquire(waitMillis);
+        } catch (InterruptedException ie) {
+            breaker.cancel();
+            Thread.currentThread().interrupt();
+            throw new RepositoryUnavailableException("Interrupted waiting to call " + description
+                    + " of repository " + repositoryConfig.getRepositoryName(), ie);
+        }
+        if (!acquired) {
+            breaker.cancel();
+            rejected.incrementAndGet();
+            throw new RepositoryUnavailableException("Concurrency limit of " + description + " of repository "
+                    + repositoryConfig.getRepositoryName() + " not freed within " + waitMillis + " ms");
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * @param healthy false if the call failed in a way that says the
+     *        backend is in trouble
+     */
+    public void release(long startNanos, boolean healthy) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        callMicros.record(micros);
+        boolean slow = slowCallMillis > 0 && micros > slowCallMillis * 1000;
+        if (slow)
+            slowCalls.incrementAndGet();
+        if (!healthy)
+            failed.incrementAndGet();
+        limiter.release(healthy && !slow);
+        breaker.record(healthy && !slow);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("open", Long.valueOf(breaker.isOpen() ? 1 : 0));
+        metrics.put("opened", Long.valueOf(breaker.getOpenedCount()));
+        metrics.put("limit", Double.valueOf(limiter.getLimit()));
+        metrics.put("inFlight", Long.valueOf(limiter.getInFlight()));
+        metrics.put("waiting", Long.valueOf(limiter.getWaiting()));
+        metrics.put("drops", Long.valueOf(limiter.getDrops()));
+        metrics.put("rejected", Long.valueOf(rejected.get()));
+        metrics.put("failed", Long.valueOf(failed.get()));
+        metrics.put("slowCalls", Long.valueOf(slowCalls.get()));
+        metrics.put("callMicros.count", Long.valueOf(callMicros.getCount()));
+        metrics.put("callMicros.mean", Double.valueOf(callMicros.getMean()));
+        metrics.put("callMicros.p99", Long.valueOf(callMicros.getPercentile(99)));
+        metrics.put("callMicros.max", Long.valueOf(callMicros.getMax()));
+        return metrics;
+    }
+}
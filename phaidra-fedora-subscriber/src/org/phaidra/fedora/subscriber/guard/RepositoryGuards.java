@@ -0,0 +1,84 @@
+package org.phaidra.fedora.subscriber.guard;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.RepositoryConfig;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.metrics.MetricsRegistry;
+
+/**
+ * The RepositoryGuard of every repository for one kind of backend,
+ * keyed by the repository name Config.getRepositoryNameFromUrl
+ * resolves. A guard is created on first use and replaced, with a
+ * closed breaker, when the config of its repository has changed.
+ *
+ * getFedoraGuards() returns the guards of the Fedora SOAP services,
+ * shared by the webapp, which wait pfsrepository.soapPoolWaitMillis of
+ * their repository for room under the concurrency limit. Every sink of
+ * an updater has guards of its own, which wait the guardWaitMillis of
+ * the sink.
+ */
+public class RepositoryGuards {
+
+    private static final RepositoryGuards fedoraGuards = new RepositoryGuards("fedora", "Fedora SOAP service");
+
+    private final String name;
+
+    private final String description;
+
+    // negative for the soapPoolWaitMillis of each repository
+    private final long waitMillis;
+
+    private final ConcurrentHashMap<String, RepositoryGuard> guards =
+            new ConcurrentHashMap<String, RepositoryGuard>();
+
+    /**
+     * @param name the metrics of the guards are published as
+     *        repositoryGuard.name.repositoryName
+     * @param description the backend, for error messages
+     */
+    public RepositoryGuards(String name, String description) {
+        this(name, description, -1);
+    }
+
+    /**
+     * @param waitMillis how long a call waits for room under the
+     *        concurrency limit, whatever the repository
+     */
+    public RepositoryGuards(String name, String description, long waitMillis) {
+        this.name = name;
+        this.description = description;
+        this.waitMillis = waitMillis;
+    }
+
+    public static RepositoryGuards getFedoraGuards() {
+        return fedoraGuards;
+    }
+
+    /**
+     * @return the guard of the repository, or null if the repository is
+     *         not configured, for example because the URL of a message
+     *         could not be resolved
+     */
+    public RepositoryGuard getGuard(String repositoryName) throws ConfigException {
+        RepositoryConfig repositoryConfig = Config.getCurrentConfig().getRepositoryConfig(repositoryName);
+        if (repositoryConfig == null)
+            return null;
+        RepositoryGuard guard = guards.get(repositoryName);
+        if (guard != null && guard.getRepositoryConfig().equals(repositoryConfig))
+            return guard;
+        synchronized (guards) {
+            guard = guards.get(repositoryName);
+            if (guard != null && guard.getRepositoryConfig().equals(repositoryConfig))
+                return guard;
+            guard = new RepositoryGuard(repositoryConfig, description,
+                    waitMillis < 0 ? repositoryConfig.getSoapPoolWaitMillis() : waitMillis);
+            guards.put(repositoryName, guard);
+            MetricsRegistry.getInstance().registerSource("RepositoryGuard", name + "." + repositoryName,
+                    "Circuit breaker and concurrency limit of " + description + " of repository "
+                    + repositoryName, guard);
+            return guard;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.phaidra.fedora.subscriber.message;
+
+/**
+ * The fields of a Fedora APIM message the subscriber works with.
+ *
+ * Unlike AtomAPIMMessage this keeps no parsed Atom entry around, only
+ * six strings, so it is cheap to create for every received message
+ * and to hold on to while the update is queued.
+ */
+public class ApimMessage {
+
+    private final String pid;
+
+    private final String methodName;
+
+    private final String baseUrl;
+
+    private final String dsId;
+
+    private final String timestamp;
+
+    private final String author;
+
+    public ApimMessage(String pid, String methodName, String baseUrl, String dsId, String timestamp) {
+        this(pid, methodName, baseUrl, dsId, timestamp, null);
+    }
+
+    public ApimMessage(String pid, String methodName, String baseUrl, String dsId, String timestamp,
+            String author) {
+        this.pid = pid;
+        this.methodName = methodName;
+        this.baseUrl = baseUrl;
+        this.dsId = dsId;
+        this.timestamp = timestamp;
+        this.author = author;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * @return the datastream ID for datastream methods, otherwise null
+     */
+    public String getDsId() {
+        return dsId;
+    }
+
+    /**
+     * @return the Atom author name, the Fedora user who made the API-M
+     *         call, or null if not known
+     */
+    public String getAuthor() {
+        return author;
+    }
+
+    /**
+     * @return the Atom updated element, an xsd:dateTime in UTC
+     */
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The timestamp as milliseconds since the epoch, or -1 if there is
+     * no timestamp or it is not of the form yyyy-MM-ddTHH:mm:ss[.SSS]Z.
+     */
+    public long getTimestampMillis() {
+        String t = timestamp;
+        if (t == null || t.length() < 20 || t.charAt(4) != '-' || t.charAt(7) != '-'
+                || t.charAt(10) != 'T' || t.charAt(13) != ':' || t.charAt(16) != ':'
+                || t.charAt(t.length()-1) != 'Z')
+            return -1;
+        try {
+            int year = Integer.parseInt(t.substring(0, 4));
+            int month = Integer.parseInt(t.substring(5, 7));
+            int day = Integer.parseInt(t.substring(8, 10));
+            int hour = Integer.parseInt(t.substring(11, 13));
+            int minute = Integer.parseInt(t.substring(14, 16));
+            int second = Integer.parseInt(t.substring(17, 19));
+            int millis = 0;
+            if (t.charAt(19) == '.') {
+                String fraction = (t.substring(20, t.length()-1) + "00").substring(0, 3);
+                millis = Integer.parseInt(fraction);
+            }
+            return ((daysFromEpoch(year, month, day) * 24 + hour) * 60 + minute) * 60000L
+                    + second * 1000L + millis;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String toString() {
+        return "ApimMessage pid=" + pid + " method=" + methodName + " dsId=" + dsId
+                + " baseUrl=" + baseUrl + " timestamp=" + timestamp + " author=" + author;
+    }
+
+    // days since 1970-01-01 of a proleptic Gregorian date
+    private static long daysFromEpoch(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,135 @@
+package org.phaidra.fedora.subscriber.message;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+import org.fcrepo.server.messaging.APIMMessage;
+import org.fcrepo.server.messaging.AtomAPIMMessage;
+
+/**
+ * Reads the fields of an ApimMessage from the Atom entry Fedora 3
+ * sends for every API-M call, with a StAX reader.
+ *
+ * Only the elements needed are looked at: updated (timestamp), the
+ * author name (user) and uri (base url), title (method name), the category with scheme
+ * fedora-types:dsID and summary (PID). Fedora writes the summary after
+ * all method argument categories, so reading stops there and the
+ * content and trailing categories are never parsed.
+ *
+ * Messages the reader cannot handle are parsed with AtomAPIMMessage
+ * instead. An instance may be shared between threads.
+ */
+public class ApimMessageParser {
+
+    private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+
+    private final Logger logger = Logger.getLogger(ApimMessageParser.class);
+
+    // XMLInputFactory implementations are not guaranteed to be thread safe
+    private final ThreadLocal<XMLInputFactory> inputFactory = new ThreadLocal<XMLInputFactory>() {
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            return factory;
+        }
+    };
+
+    public ApimMessage parse(String messageText) {
+        try {
+            ApimMessage message = parseStreaming(messageText);
+            if (message.getPid() != null && message.getMethodName() != null)
+                return message;
+            if (logger.isDebugEnabled())
+                logger.debug("Streaming parse found no PID or method, falling back to AtomAPIMMessage");
+        } catch (XMLStreamException xse) {
+            if (logger.isDebugEnabled())
+                logger.debug("Streaming parse failed, falling back to AtomAPIMMessage: " + xse.getMessage());
+        }
+        return parseAtom(messageText);
+    }
+
+    ApimMessage parseStreaming(String messageText) throws XMLStreamException {
+        String pid = null;
+        String methodName = null;
+        String baseUrl = null;
+        String dsId = null;
+        String timestamp = null;
+        String author = null;
+
+        XMLStreamReader reader = inputFactory.get().createXMLStreamReader(new StringReader(messageText));
+        try {
+            // depth 1 is the entry element, its children are at depth 2
+            int depth = 0;
+            boolean inAuthor = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 2 && inAuthor)
+                        inAuthor = false;
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                depth++;
+                String ns = reader.getNamespaceURI();
+                if (ns != null && !ATOM_NS.equals(ns))
+                    continue;
+                String name = reader.getLocalName();
+                if (depth == 2) {
+                    if ("title".equals(name)) {
+                        methodName = trim(reader.getElementText());
+                        depth--;
+                    } else if ("updated".equals(name)) {
+                        timestamp = trim(reader.getElementText());
+                        depth--;
+                    } else if ("author".equals(name)) {
+                        inAuthor = true;
+                    } else if ("category".equals(name)) {
+                        String scheme = reader.getAttributeValue(null, "scheme");
+                        if (dsId == null && scheme != null && scheme.endsWith(":dsID"))
+                            dsId = trim(reader.getAttributeValue(null, "term"));
+                    } else if ("summary".equals(name)) {
+                        pid = trim(reader.getElementText());
+                        break;
+                    }
+                } else if (depth == 3 && inAuthor && "uri".equals(name)) {
+                    baseUrl = trim(reader.getElementText());
+                    depth--;
+                } else if (depth == 3 && inAuthor && "name".equals(name)) {
+                    author = trim(reader.getElementText());
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new ApimMessage(pid, methodName, baseUrl, dsId, timestamp, author);
+    }
+
+    private ApimMessage parseAtom(String messageText) {
+        try {
+            APIMMessage apimMessage = new AtomAPIMMessage(messageText);
+            return new ApimMessage(apimMessage.getPID(), apimMessage.getMethodName(),
+                    apimMessage.getBaseUrl(), null, null);
+        } catch (RuntimeException re) {
+            logger.warn("Could not parse APIM message: " + re.getMessage());
+            return new ApimMessage(null, null, null, null, null);
+        }
+    }
+
+    private static String trim(String value) {
+        if (value == null)
+            return null;
+        value = value.trim();
+        return value.length() == 0 ? null : value;
+    }
+}
@@ -0,0 +1,73 @@
+package org.phaidra.fedora.subscriber.messaging;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.metrics.MetricsRegistry;
+import org.phaidra.fedora.subscriber.pipeline.NamedThreadFactory;
+
+/**
+ * Starts the messaging clients of the updaters in the background, up
+ * to pfs.messagingStartThreads at the same time, so that a slow or
+ * unreachable broker holds up neither the servlet container nor the
+ * other updaters. Clients that fail to start are started again with
+ * backoff, see SupervisedClient. The state of every client is published
+ * as messagingClient.clientId in the metrics.
+ */
+public class ClientSupervisor {
+
+    private final Logger logger = Logger.getLogger(ClientSupervisor.class);
+
+    private final ScheduledExecutorService executor;
+
+    public ClientSupervisor(int threads) {
+        executor = Executors.newScheduledThreadPool(threads, new NamedThreadFactory("pfs-messaging"));
+    }
+
+    /**
+     * Starts the client on a supervisor thread and returns at once.
+     */
+    public void start(SupervisedClient client) {
+        MetricsRegistry.getInstance().registerSource("MessagingClient", client.getClientId(),
+                "Messaging client " + client.getClientId() + " of updater " + client.getUpdaterName(), client);
+        client.schedule(executor, 0);
+    }
+
+    /**
+     * Waits up to timeoutMillis in all for the first attempt to start
+     * each of the clients to succeed or fail.
+     *
+     * @return the number of clients running
+     */
+    public int awaitStarted(List<SupervisedClient> clients, long timeoutMillis) {
+        long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        int running = 0;
+        int starting = 0;
+        try {
+            for (int i=0; i<clients.size(); i++) {
+                String state = clients.get(i).awaitStarted(deadlineMillis);
+                if (SupervisedClient.RUNNING.equals(state))
+                    ++running;
+                else if (SupervisedClient.STARTING.equals(state))
+                    ++starting;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (starting > 0)
+            logger.warn(starting + " of " + clients.size() + " messaging clients did not start within "
+                    + timeoutMillis + " ms, they carry on starting in the background");
+        return running;
+    }
+
+    /**
+     * Stops the pending attempts to start clients. The clients have to
+     * be stopped first.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,261 @@
+package org.phaidra.fedora.subscriber.messaging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import org.fcrepo.client.messaging.JmsMessagingClient;
+import org.fcrepo.client.messaging.MessagingClient;
+import org.fcrepo.client.messaging.MessagingListener;
+
+import org.phaidra.fedora.subscriber.metrics.MetricSource;
+import org.phaidra.fedora.subscriber.pipeline.RetryPolicy;
+
+/**
+ * One messaging client of an updater, started on a thread of the
+ * ClientSupervisor rather than the thread that asks for it. A client
+ * that fails to start is started again after a backoff delay, for as
+ * long as it is not stopped, unless reconnecting is switched off for
+ * the updater; then it stays failed, as before.
+ *
+ * The state is starting until the first attempt has succeeded or
+ * failed, then running, retrying, failed or, once stop() was called,
+ * stopped. Once running, a lost broker connection is taken care of by
+ * the failover URL of UpdaterConfig.toMessagingProperties().
+ */
+public class SupervisedClient implements MetricSource {
+
+    public static final String STARTING = "starting";
+
+    public static final String RUNNING = "running";
+
+    public static final String RETRYING = "retrying";
+
+    public static final String FAILED = "failed";
+
+    public static final String STOPPED = "stopped";
+
+    private final Logger logger = Logger.getLogger(SupervisedClient.class);
+
+    private final String clientId;
+
+    private final String updaterName;
+
+    private final MessagingListener listener;
+
+    private final Properties properties;
+
+    private final boolean durable;
+
+    private final boolean retry;
+
+    private final RetryPolicy backoff;
+
+    private final Random random = new Random();
+
+    private ScheduledExecutorService executor = null;
+
+    private ScheduledFuture<?> pendingStart = null;
+
+    // the client being started or running
+    private MessagingClient client = null;
+
+    private String state = STARTING;
+
+    private int failedInARow = 0;
+
+    private long startCount = 0;
+
+    private long failureCount = 0;
+
+    private long nextAttemptMillis = 0;
+
+    /**
+     * @param retry whether to start the client again after it failed
+     * @param initialDelayMillis, maxDelayMillis the bounds of the delay
+     *        between attempts, which doubles with every failed attempt
+     */
+    public SupervisedClient(String clientId, String updaterName, MessagingListener listener,
+            Properties properties, boolean durable, boolean retry, long initialDelayMillis,
+            long maxDelayMillis) {
+        this.clientId = clientId;
+        this.updaterName = updaterName;
+        this.listener = listener;
+        this.properties = properties;
+        this.durable = durable;
+        this.retry = retry;
+        this.backoff = new RetryPolicy(Integer.MAX_VALUE, initialDelayMillis, maxDelayMillis);
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getUpdaterName() {
+        return updaterName;
+    }
+
+    public synchronized String getState() {
+        return state;
+    }
+
+    /**
+     * Stops the client, or the pending attempt to start it. It is not
+     * started again.
+     */
+    public void stop() {
+        MessagingClient stopping;
+        synchronized (this) {
+            setState(STOPPED);
+            if (pendingStart != null)
+                pendingStart.cancel(false);
+            pendingStart = null;
+            stopping = client;
+            client = null;
+        }
+        if (stopping != null)
+            stopClient(stopping);
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("state", state);
+        metrics.put("running", Long.valueOf(RUNNING.equals(state) ? 1 : 0));
+        metrics.put("starts", Long.valueOf(startCount));
+        metrics.put("failures", Long.valueOf(failureCount));
+        metrics.put("failedInARow", Long.valueOf(failedInARow));
+        metrics.put("retryInMillis", Long.valueOf(RETRYING.equals(state)
+                ? Math.max(0, nextAttemptMillis - System.currentTimeMillis()) : 0));
+        return metrics;
+    }
+
+    /**
+     * Creates the client. JmsMessagingClient takes the topic.* and
+     * queue.* destinations from the properties.
+     */
+    protected MessagingClient createClient() throws Exception {
+        return new JmsMessagingClient(clientId, listener, properties, durable);
+    }
+
+    /**
+     * Starts the client on a thread of the executor after delayMillis.
+     */
+    synchronized void schedule(ScheduledExecutorService executor, long delayMillis) {
+        if (STOPPED.equals(state))
+            return;
+        this.executor = executor;
+        nextAttemptMillis = System.currentTimeMillis() + delayMillis;
+        try {
+            pendingStart = executor.schedule(new Runnable() {
+                public void run() {
+                    attempt();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // the supervisor is shut down
+            setState(STOPPED);
+        }
+    }
+
+    /**
+     * Waits until the first attempt to start the client has succeeded
+     * or failed, or until deadlineMillis.
+     *
+     * @return the state of the client
+     */
+    synchronized String awaitStarted(long deadlineMillis) throws InterruptedException {
+        long remaining;
+        while (STARTING.equals(state) && (remaining = deadlineMillis - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return state;
+    }
+
+    private void attempt() {
+        MessagingClient starting;
+        synchronized (this) {
+            pendingStart = null;
+            if (STOPPED.equals(state))
+                return;
+            try {
+                starting = createClient();
+            } catch (Exception e) {
+                failed(e);
+                return;
+            }
+            client = starting;
+        }
+        try {
+            // waits until the client has connected to the broker or gave up
+            starting.start(true);
+        } catch (Exception e) {
+            stopClient(starting);
+            synchronized (this) {
+                if (client == starting) {
+                    client = null;
+                    failed(e);
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            // stop() has stopped it already
+            if (client != starting)
+                return;
+            ++startCount;
+            if (failedInARow > 0)
+                logger.info("Messaging client " + clientId + " of updater " + updaterName
+                        + " started after " + failedInARow + " failed attempts");
+            else
+                logger.info("Messaging client " + clientId + " of updater " + updaterName + " started");
+            failedInARow = 0;
+            setState(RUNNING);
+        }
+    }
+
+    // called holding the lock
+    private void failed(Exception e) {
+        ++failureCount;
+        ++failedInARow;
+        String errorMessage = "Messaging exception encountered attempting to start messaging client with id "
+                + clientId + ". Error message was: " + e.getMessage();
+        if (!retry) {
+            logger.error(errorMessage, e);
+            setState(FAILED);
+            return;
+        }
+        long delayMillis = backoff.getDelayMillis(failedInARow, random);
+        // the stack trace once, not on every attempt
+        if (failedInARow == 1)
+            logger.error(errorMessage + ". Trying again in " + delayMillis + " ms", e);
+        else
+            logger.warn(errorMessage + ". Attempt " + failedInARow + " failed, trying again in "
+                    + delayMillis + " ms");
+        setState(RETRYING);
+        schedule(executor, delayMillis);
+    }
+
+    private void stopClient(MessagingClient stopping) {
+        try {
+            stopping.stop(false);
+        } catch (Exception e) {
+            logger.warn("Messaging exception encountered stopping the "
+                      + "messaging client " + clientId + ": " + e.getMessage() + ". This "
+                      + "error is expected and can be ignored if the message "
+                      + "broker was shut down prior to the UpdateListener.");
+        }
+    }
+
+    // called holding the lock
+    private void setState(String state) {
+        this.state = state;
+        notifyAll();
+    }
+}
@@ -0,0 +1,9 @@
+package org.phaidra.fedora.subscriber.metrics;
+
+/**
+ * A value that is read when the metrics are read, such as a queue depth.
+ */
+public interface Gauge {
+
+    long getValue();
+}
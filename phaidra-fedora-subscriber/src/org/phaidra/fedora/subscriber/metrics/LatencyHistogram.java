@@ -0,0 +1,97 @@
+package org.phaidra.fedora.subscriber.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, laid out like
+ * HdrHistogram: values below 32 are counted exactly, larger values in
+ * 16 buckets per power of two, so every percentile is accurate to
+ * about 6 percent over the whole long range.
+ *
+ * Recording is a few atomic increments and can happen on any thread;
+ * percentiles are computed from a scan of the buckets when read.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 16;
+
+    private static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+
+    private static final int BUCKETS = EXACT_LIMIT + (63 - 5) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value in the bucket the percentile falls in,
+     *         or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < EXACT_LIMIT)
+            return (int) value;
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - 4;
+        int mantissa = (int) (value >>> shift); // 16..31
+        return EXACT_LIMIT + (highestBit - 5) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < EXACT_LIMIT)
+            return index;
+        int highestBit = (index - EXACT_LIMIT) / SUB_BUCKETS + 5;
+        int mantissa = (index - EXACT_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = highestBit - 4;
+        return (((long) mantissa + 1) << shift) - 1;
+    }
+}
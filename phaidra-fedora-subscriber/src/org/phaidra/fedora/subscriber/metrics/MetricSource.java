@@ -0,0 +1,16 @@
+package org.phaidra.fedora.subscriber.metrics;
+
+import java.util.Map;
+
+/**
+ * A named group of metrics, published as one MBean and as one section
+ * of the metrics servlet.
+ */
+public interface MetricSource {
+
+    /**
+     * @return the current values by metric name, in a stable order;
+     *         values are Longs or Doubles
+     */
+    Map<String, Object> getMetrics();
+}
@@ -0,0 +1,73 @@
+package org.phaidra.fedora.subscriber.metrics;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes a MetricSource over JMX, one read-only attribute per metric.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+    private final String description;
+
+    private final MetricSource source;
+
+    public MetricsMBean(String description, MetricSource source) {
+        this.description = description;
+        this.source = source;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = source.getMetrics().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> metrics = source.getMetrics();
+        AttributeList list = new AttributeList();
+        for (int i=0; i<attributes.length; i++) {
+            Object value = metrics.get(attributes[i]);
+            if (value != null)
+                list.add(new Attribute(attributes[i], value));
+        }
+        return list;
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> metrics = source.getMetrics();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+        Iterator<Map.Entry<String, Object>> it = metrics.entrySet().iterator();
+        for (int i=0; it.hasNext(); i++) {
+            Map.Entry<String, Object> metric = it.next();
+            attributes[i] = new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(),
+                    metric.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), description, attributes,
+                null, new MBeanOperationInfo[0], null);
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws MBeanException, ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+}
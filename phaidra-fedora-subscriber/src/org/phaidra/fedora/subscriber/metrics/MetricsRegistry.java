@@ -0,0 +1,135 @@
+package org.phaidra.fedora.subscriber.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the metrics of all updaters and repositories and registers
+ * each as an MBean under org.phaidra.fedora.subscriber:type=Updater or
+ * type=Repository. The metrics of an updater are kept when it is
+ * restarted after a config reload.
+ */
+public class MetricsRegistry {
+
+    public static final String DOMAIN = "org.phaidra.fedora.subscriber";
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final Logger logger = Logger.getLogger(MetricsRegistry.class);
+
+    private final ConcurrentHashMap<String, UpdaterMetrics> updaters =
+            new ConcurrentHashMap<String, UpdaterMetrics>();
+
+    private final ConcurrentHashMap<String, RepositoryMetrics> repositories =
+            new ConcurrentHashMap<String, RepositoryMetrics>();
+
+    private final ConcurrentHashMap<String, MetricSource> sources =
+            new ConcurrentHashMap<String, MetricSource>();
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    public UpdaterMetrics getUpdaterMetrics(String updaterName) {
+        UpdaterMetrics metrics = updaters.get(updaterName);
+        if (metrics == null) {
+            metrics = new UpdaterMetrics(updaterName, this);
+            UpdaterMetrics existing = updaters.putIfAbsent(updaterName, metrics);
+            if (existing != null)
+                return existing;
+            register("Updater", updaterName, "Metrics of updater " + updaterName, metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * @param repositoryName the repository, "" for updates whose
+     *        repository could not be resolved
+     */
+    public RepositoryMetrics getRepositoryMetrics(String repositoryName) {
+        String name = repositoryName == null ? "" : repositoryName;
+        RepositoryMetrics metrics = repositories.get(name);
+        if (metrics == null) {
+            metrics = new RepositoryMetrics(name);
+            RepositoryMetrics existing = repositories.putIfAbsent(name, metrics);
+            if (existing != null)
+                return existing;
+            register("Repository", name.length() == 0 ? "unknown" : name,
+                    "Metrics of repository " + name, metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the updater metrics sorted by updater name
+     */
+    public Map<String, UpdaterMetrics> getUpdaterMetrics() {
+        return new TreeMap<String, UpdaterMetrics>(updaters);
+    }
+
+    /**
+     * @return the repository metrics sorted by repository name
+     */
+    public Map<String, RepositoryMetrics> getRepositoryMetrics() {
+        return new TreeMap<String, RepositoryMetrics>(repositories);
+    }
+
+    /**
+     * Publishes the metrics of another part of the subscriber, such as
+     * a cache, as an MBean of the given type and in the metrics servlet
+     * as type.name, both lower case first.
+     */
+    public void registerSource(String type, String name, String description, MetricSource source) {
+        String key = Character.toLowerCase(type.charAt(0)) + type.substring(1) + "." + name;
+        sources.put(key, source);
+        register(type, name, description, source);
+    }
+
+    /**
+     * @return the sources added with registerSource, sorted by type.name
+     */
+    public Map<String, MetricSource> getSources() {
+        return new TreeMap<String, MetricSource>(sources);
+    }
+
+    /**
+     * Unregisters all MBeans, so that a redeployed webapp can register
+     * its own. The metrics are discarded.
+     */
+    public void unregisterAll() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            Iterator<ObjectName> names = server.queryNames(
+                    new ObjectName(DOMAIN + ":*"), null).iterator();
+            while (names.hasNext()) {
+                server.unregisterMBean(names.next());
+            }
+        } catch (Exception e) {
+            logger.warn("Could not unregister metrics MBeans: " + e.toString());
+        }
+        updaters.clear();
+        repositories.clear();
+        sources.clear();
+    }
+
+    private void register(String type, String name, String description, MetricSource source) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type
+                    + ",name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(new MetricsMBean(description, source), objectName);
+        } catch (Exception e) {
+            logger.warn("Could not register metrics MBean for " + type + " " + name + ": " + e.toString());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.phaidra.fedora.subscriber.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and lag of the updates of one repository, over all updaters.
+ */
+public class RepositoryMetrics implements MetricSource {
+
+    private final String repositoryName;
+
+    private final AtomicLong processed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final LatencyHistogram endToEndLagMillis = new LatencyHistogram();
+
+    RepositoryMetrics(String repositoryName) {
+        this.repositoryName = repositoryName;
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    /**
+     * @param lagMillis time from the APIM message timestamp to the end of
+     *        processing, or -1 if the message had no timestamp
+     */
+    public void processed(long lagMillis) {
+        processed.incrementAndGet();
+        if (lagMillis >= 0)
+            endToEndLagMillis.record(lagMillis);
+    }
+
+    public void failed() {
+        failed.incrementAndGet();
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("processed", Long.valueOf(processed.get()));
+        metrics.put("failed", Long.valueOf(failed.get()));
+        UpdaterMetrics.putHistogram(metrics, "endToEndLagMillis", endToEndLagMillis);
+        return metrics;
+    }
+}
@@ -0,0 +1,190 @@
+package org.phaidra.fedora.subscriber.metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, latencies and queue gauges of one updater.
+ *
+ * The latencies split the time from the APIM message timestamp to the
+ * processed update into its parts: brokerLagMillis until the message
+ * is received, parseMicros on the JMS delivery thread, queueMillis in
+ * the coalescer, the lanes and the batch, and sinkMillis for the batch
+ * in the sink. endToEndLagMillis covers all of it.
+ */
+public class UpdaterMetrics implements MetricSource {
+
+    private final String updaterName;
+
+    private final MetricsRegistry registry;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong nonText = new AtomicLong();
+
+    private final AtomicLong noPid = new AtomicLong();
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private final AtomicLong ignored = new AtomicLong();
+
+    private final AtomicLong urlErrors = new AtomicLong();
+
+    private final AtomicLong processed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong interactiveProcessed = new AtomicLong();
+
+    private final LatencyHistogram parseMicros = new LatencyHistogram();
+
+    private final LatencyHistogram brokerLagMillis = new LatencyHistogram();
+
+    private final LatencyHistogram queueMillis = new LatencyHistogram();
+
+    private final LatencyHistogram sinkMillis = new LatencyHistogram();
+
+    private final LatencyHistogram endToEndLagMillis = new LatencyHistogram();
+
+    private final LatencyHistogram interactiveQueueMillis = new LatencyHistogram();
+
+    private final LatencyHistogram interactiveEndToEndLagMillis = new LatencyHistogram();
+
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+
+    UpdaterMetrics(String updaterName, MetricsRegistry registry) {
+        this.updaterName = updaterName;
+        this.registry = registry;
+    }
+
+    public String getUpdaterName() {
+        return updaterName;
+    }
+
+    /**
+     * Adds a gauge, or replaces the gauge of that name when an updater
+     * is restarted with a new pipeline.
+     */
+    public void registerGauge(String name, Gauge gauge) {
+        synchronized (gauges) {
+            gauges.put(name, gauge);
+        }
+    }
+
+    public void received() {
+        received.incrementAndGet();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public void nonText() {
+        nonText.incrementAndGet();
+    }
+
+    public void noPid() {
+        noPid.incrementAndGet();
+    }
+
+    public void duplicate() {
+        duplicates.incrementAndGet();
+    }
+
+    /**
+     * Counts an update dropped by its route.
+     */
+    public void ignored() {
+        ignored.incrementAndGet();
+    }
+
+    /**
+     * @param brokerLagMillis time from the APIM message timestamp until
+     *        the message was received, or -1 if it had no timestamp
+     */
+    public void parsed(long micros, long brokerLagMillis) {
+        parseMicros.record(micros);
+        if (brokerLagMillis >= 0)
+            this.brokerLagMillis.record(brokerLagMillis);
+    }
+
+    public void urlError() {
+        urlErrors.incrementAndGet();
+    }
+
+    /**
+     * @param queueMillis time from receiving the update until its batch
+     *        was handed to the sink
+     * @param lagMillis time from the APIM message timestamp until now,
+     *        or -1 if the message had no timestamp
+     */
+    public void processed(String repositoryName, long queueMillis, long lagMillis) {
+        processed.incrementAndGet();
+        this.queueMillis.record(queueMillis);
+        if (lagMillis >= 0)
+            endToEndLagMillis.record(lagMillis);
+        registry.getRepositoryMetrics(repositoryName).processed(lagMillis);
+    }
+
+    /**
+     * Records the latencies of an interactive update once more, apart
+     * from the bulk ones, after processed().
+     */
+    public void interactiveProcessed(long queueMillis, long lagMillis) {
+        interactiveProcessed.incrementAndGet();
+        interactiveQueueMillis.record(queueMillis);
+        if (lagMillis >= 0)
+            interactiveEndToEndLagMillis.record(lagMillis);
+    }
+
+    public void failed(String repositoryName) {
+        failed.incrementAndGet();
+        registry.getRepositoryMetrics(repositoryName).failed();
+    }
+
+    /**
+     * Records how long the sink took for one batch.
+     */
+    public void batchProcessed(long millis) {
+        sinkMillis.record(millis);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("received", Long.valueOf(received.get()));
+        metrics.put("nonText", Long.valueOf(nonText.get()));
+        metrics.put("noPid", Long.valueOf(noPid.get()));
+        metrics.put("duplicates", Long.valueOf(duplicates.get()));
+        metrics.put("ignored", Long.valueOf(ignored.get()));
+        metrics.put("urlErrors", Long.valueOf(urlErrors.get()));
+        metrics.put("processed", Long.valueOf(processed.get()));
+        metrics.put("failed", Long.valueOf(failed.get()));
+        metrics.put("interactiveProcessed", Long.valueOf(interactiveProcessed.get()));
+        synchronized (gauges) {
+            Iterator<Map.Entry<String, Gauge>> it = gauges.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Gauge> gauge = it.next();
+                metrics.put(gauge.getKey(), Long.valueOf(gauge.getValue().getValue()));
+            }
+        }
+        putHistogram(metrics, "parseMicros", parseMicros);
+        putHistogram(metrics, "brokerLagMillis", brokerLagMillis);
+        putHistogram(metrics, "queueMillis", queueMillis);
+        putHistogram(metrics, "sinkMillis", sinkMillis);
+        putHistogram(metrics, "endToEndLagMillis", endToEndLagMillis);
+        putHistogram(metrics, "interactiveQueueMillis", interactiveQueueMillis);
+        putHistogram(metrics, "interactiveEndToEndLagMillis", interactiveEndToEndLagMillis);
+        return metrics;
+    }
+
+    static void putHistogram(Map<String, Object> metrics, String name, LatencyHistogram histogram) {
+        metrics.put(name + ".count", Long.valueOf(histogram.getCount()));
+        metrics.put(name + ".mean", Double.valueOf(histogram.getMean()));
+        metrics.put(name + ".p50", Long.valueOf(histogram.getPercentile(50)));
+        metrics.put(name + ".p99", Long.valueOf(histogram.getPercentile(99)));
+        metrics.put(name + ".p999", Long.valueOf(histogram.getPercentile(99.9)));
+        metrics.put(name + ".max", Long.valueOf(histogram.getMax()));
+    }
+}
@@ -0,0 +1,412 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A fixed number of worker threads fed from a bounded queue.
+ *
+ * The JMS delivery thread only calls submit(); processing of the
+ * update happens on the workers. When the queue is full the
+ * configured OverflowPolicy decides what happens to the new update.
+ *
+ * With a PriorityPolicy interactive and bulk updates have a queue of
+ * queueDepth each, see PriorityLaneQueue, and only bulk updates queue
+ * up behind spilled ones. An interactive update for a PID that still
+ * has bulk updates queued or spilled in the pool is made bulk, and a
+ * bulk update for a PID that has interactive updates queued is made
+ * interactive, so the updates of one PID stay in arrival order. The
+ * queue itself never takes an update ahead of an earlier one of its
+ * PID in the other class either.
+ */
+public class BoundedWorkerPool {
+
+    private static final long SPILL_DRAIN_INTERVAL_MILLIS = 500;
+
+    private static final int DROP_OLDEST_ATTEMPTS = 3;
+
+    private final Logger logger = Logger.getLogger(BoundedWorkerPool.class);
+
+    private final String name;
+
+    private final int queueDepth;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final UpdateHandler handler;
+
+    private final ThreadPoolExecutor executor;
+
+    private final PriorityLaneQueue priorityQueue;
+
+    /** the bulk updates queued or spilled, by PID; only with a priority policy */
+    private final Map<String, int[]> bulkPending = new HashMap<String, int[]>();
+
+    /** the interactive updates queued, by PID; guarded by bulkPending */
+    private final Map<String, int[]> interactivePending = new HashMap<String, int[]>();
+
+    private final AtomicLong demotedCount = new AtomicLong();
+
+    private final AtomicLong promotedCount = new AtomicLong();
+
+    private SpillDirectory spillDirectory = null;
+
+    private ScheduledExecutorService spillDrainer = null;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    /**
+     * @param priorityPolicy how interactive updates go ahead of bulk
+     *        ones, null to process all in arrival order
+     */
+    public BoundedWorkerPool(String name, int workers, int queueDepth,
+            OverflowPolicy overflowPolicy, File spillDir, PriorityPolicy priorityPolicy,
+            UpdateHandler handler) throws IOException {
+        this.name = name;
+        this.queueDepth = queueDepth;
+        this.overflowPolicy = overflowPolicy;
+        this.handler = handler;
+        this.priorityQueue = priorityPolicy == null ? null : new PriorityLaneQueue(queueDepth, priorityPolicy);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                priorityQueue == null ? new ArrayBlockingQueue<Runnable>(queueDepth) : priorityQueue,
+                new NamedThreadFactory("pfs-" + name + "-worker"),
+                new OverflowHandler());
+        // spilled updates are put straight into the queue, so the workers must exist
+        this.executor.prestartAllCoreThreads();
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            if (spillDir == null)
+                throw new IOException("overflow policy SPILL needs a spill directory for " + name);
+            spillDirectory = new SpillDirectory(spillDir);
+            spillDrainer = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("pfs-" + name + "-spill"));
+            spillDrainer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    drainSpill();
+                }
+            }, SPILL_DRAIN_INTERVAL_MILLIS, SPILL_DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (logger.isInfoEnabled())
+            logger.info("Worker pool " + name + " started with " + workers + " workers, queue depth "
+                    + queueDepth + ", overflow policy " + overflowPolicy
+                    + (priorityPolicy == null ? "" : ", priority " + priorityPolicy.getMode()));
+    }
+
+    /**
+     * Queues the update for processing by one of the workers.
+     */
+    public void submit(IndexUpdate update) {
+        if (priorityQueue != null && !admitPriority(update))
+            return;
+        if (spillDirectory != null && !update.isInteractive()) {
+            // Keep arrival order: once spilling has started, new updates
+            // queue up behind the spilled ones until the spill is drained.
+            synchronized (spillDirectory) {
+                if (!spillDirectory.isEmpty()) {
+                    spill(update);
+                    return;
+                }
+            }
+        }
+        try {
+            executor.execute(new UpdateRunnable(update));
+        } catch (RejectedExecutionException ree) {
+            logger.error("Worker pool " + name + " is shut down, update not processed: " + update);
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the interactive updates queued, 0 without a priority policy
+     */
+    public int getInteractiveQueueDepth() {
+        return priorityQueue == null ? 0 : priorityQueue.getInteractiveSize();
+    }
+
+    /**
+     * @return the interactive updates made bulk because bulk updates of
+     *         their PID were waiting
+     */
+    public long getDemotedCount() {
+        return demotedCount.get();
+    }
+
+    /**
+     * @return the bulk updates made interactive because interactive
+     *         updates of their PID were queued
+     */
+    public long getPromotedCount() {
+        return promotedCount.get();
+    }
+
+    /**
+     * @return the bulk updates that went ahead of interactive ones after
+     *         waiting maxBulkWaitMillis
+     */
+    public long getStarvedCount() {
+        return priorityQueue == null ? 0 : priorityQueue.getStarvedCount();
+    }
+
+    public int getQueueCapacity() {
+        return queueDepth;
+    }
+
+    public int getSpilledDepth() {
+        return spillDirectory == null ? 0 : spillDirectory.size();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Stops accepting updates and waits up to timeoutMillis for the
+     * queued ones to be processed. Spilled updates stay on disk, as do
+     * those read back into the queue and not handled yet.
+     */
+    public void shutdown(long timeoutMillis) {
+        if (spillDrainer != null)
+            spillDrainer.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                int remaining = executor.shutdownNow().size();
+                logger.warn("Worker pool " + name + " did not finish within " + timeoutMillis
+                        + " ms, " + remaining + " queued updates were not processed");
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void spill(IndexUpdate update) {
+        try {
+            spillDirectory.write(update);
+            // the spool entry stays pending until the update read back is done
+            spilledCount.incrementAndGet();
+        } catch (IOException ioe) {
+            droppedCount.incrementAndGet();
+            pendingDone(update, false);
+            logger.error("Worker pool " + name + " could not spill update, update dropped: "
+                    + update, ioe);
+        }
+    }
+
+    /**
+     * Makes the update bulk if its PID has bulk updates waiting, else
+     * interactive if its PID has interactive updates queued, and counts
+     * it in its class.
+     *
+     * @return false if the pool is shut down
+     */
+    private boolean admitPriority(IndexUpdate update) {
+        if (executor.isShutdown()) {
+            logger.error("Worker pool " + name + " is shut down, update not processed: " + update);
+            return false;
+        }
+        String pid = pidOf(update);
+        synchronized (bulkPending) {
+            if (bulkPending.containsKey(pid)) {
+                if (update.isInteractive()) {
+                    update.setInteractive(false);
+                    demotedCount.incrementAndGet();
+                }
+            } else if (interactivePending.containsKey(pid) && !update.isInteractive()) {
+                update.setInteractive(true);
+                promotedCount.incrementAndGet();
+            }
+            countPending(update.isInteractive() ? interactivePending : bulkPending, pid);
+        }
+        return true;
+    }
+
+    /**
+     * Counts an update of the class it was queued as that is no longer
+     * queued or spilled.
+     */
+    private void pendingDone(IndexUpdate update, boolean interactive) {
+        if (priorityQueue == null)
+            return;
+        String pid = pidOf(update);
+        synchronized (bulkPending) {
+            Map<String, int[]> pendingOfClass = interactive ? interactivePending : bulkPending;
+            int[] pending = pendingOfClass.get(pid);
+            // spilled by an earlier run, not counted
+            if (pending != null && --pending[0] <= 0)
+                pendingOfClass.remove(pid);
+        }
+    }
+
+    // called holding the bulkPending lock
+    private static void countPending(Map<String, int[]> pendingOfClass, String pid) {
+        int[] pending = pendingOfClass.get(pid);
+        if (pending == null)
+            pendingOfClass.put(pid, new int[] { 1 });
+        else
+            ++pending[0];
+    }
+
+    private static String pidOf(IndexUpdate update) {
+        return update.getPid() == null ? "" : update.getPid();
+    }
+
+    private void drainSpill() {
+        try {
+            synchronized (spillDirectory) {
+                BlockingQueue<Runnable> queue = executor.getQueue();
+                while (queue.remainingCapacity() > 0) {
+                    IndexUpdate update = spillDirectory.peek();
+                    if (update == null)
+                        break;
+                    UpdateRunnable runnable = new UpdateRunnable(update);
+                    if (!queue.offer(runnable))
+                        break;
+                    // the worker deletes the file once it has handled the update
+                    runnable.setSpillFile(spillDirectory.remove());
+                }
+            }
+        } catch (IOException ioe) {
+            logger.error("Worker pool " + name + " could not read back spilled updates", ioe);
+        }
+    }
+
+    private class UpdateRunnable implements PriorityLaneQueue.Entry {
+
+        private final IndexUpdate update;
+
+        private final boolean interactive;
+
+        private final long queuedMillis = System.currentTimeMillis();
+
+        // the spill file of an update read back, deleted once it is handled
+        private File spillFile = null;
+
+        private boolean handled = false;
+
+        UpdateRunnable(IndexUpdate update) {
+            this.update = update;
+            this.interactive = update.isInteractive();
+        }
+
+        synchronized void setSpillFile(File spillFile) {
+            // a worker may have taken it from the queue already
+            if (handled)
+                spillDirectory.delete(spillFile);
+            else
+                this.spillFile = spillFile;
+        }
+
+        public boolean isInteractive() {
+            return interactive;
+        }
+
+        public long getQueuedMillis() {
+            return queuedMillis;
+        }
+
+        public String getPid() {
+            return pidOf(update);
+        }
+
+        public void run() {
+            try {
+                handler.handle(update);
+            } catch (RuntimeException re) {
+                logger.error("Unexpected exception processing " + update + " in worker pool " + name, re);
+            } finally {
+                pendingDone(update, interactive);
+                File handledFile;
+                synchronized (this) {
+                    handled = true;
+                    handledFile = spillFile;
+                }
+                if (handledFile != null)
+                    spillDirectory.delete(handledFile);
+            }
+        }
+    }
+
+    private class OverflowHandler implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("worker pool " + name + " is shut down");
+            IndexUpdate update = ((UpdateRunnable) runnable).update;
+            switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    executor.getQueue().put(runnable);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    pendingDone(update, ((UpdateRunnable) runnable).interactive);
+                    logger.error("Interrupted while waiting for space in worker pool " + name
+                            + ", update dropped: " + update);
+                }
+                break;
+            case DROP_OLDEST:
+                // other threads may take the freed place first, so only try a few times
+                for (int attempt=0; !executor.getQueue().offer(runnable); attempt++) {
+                    Runnable oldest = null;
+                    if (attempt < DROP_OLDEST_ATTEMPTS) {
+                        oldest = priorityQueue == null ? executor.getQueue().poll()
+                                : priorityQueue.pollOldest(runnable);
+                    }
+                    if (oldest == null) {
+                        droppedCount.incrementAndGet();
+                        pendingDone(update, ((UpdateRunnable) runnable).interactive);
+                        logger.error("Worker pool " + name + " stayed full after dropping " + attempt
+                                + " older updates, update dropped: " + update);
+                        break;
+                    }
+                    droppedCount.incrementAndGet();
+                    pendingDone(((UpdateRunnable) oldest).update, ((UpdateRunnable) oldest).interactive);
+                    ((UpdateRunnable) oldest).update.markDone();
+                    logger.warn("Worker pool " + name + " is full, dropped oldest update: "
+                            + ((UpdateRunnable) oldest).update);
+                }
+                break;
+            case SPILL:
+                if (((UpdateRunnable) runnable).interactive) {
+                    // it comes back from the spill as a bulk update
+                    pendingDone(update, true);
+                    update.setInteractive(false);
+                    demotedCount.incrementAndGet();
+                    synchronized (bulkPending) {
+                        countPending(bulkPending, pidOf(update));
+                    }
+                }
+                synchronized (spillDirectory) {
+                    spill(update);
+                }
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the updates that failed in the sink and were not retried, or
+ * failed every retry, so that they can be looked at and replayed once
+ * the cause is fixed.
+ *
+ * Each update is written to its own file, named by an increasing
+ * sequence number that is also its id, together with the failure
+ * class, the reason, the number of attempts and when it failed.
+ */
+public class DeadLetterStore {
+
+    private static final String SUFFIX = ".dead";
+
+    // writeUTF takes at most 64k bytes
+    private static final int MAX_REASON_LENGTH = 2000;
+
+    private final Logger logger = Logger.getLogger(DeadLetterStore.class);
+
+    private final File directory;
+
+    private long nextSequence = 0;
+
+    public DeadLetterStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("dead letter directory " + directory + " could not be created");
+        }
+        File[] existing = listFiles();
+        if (existing.length > 0) {
+            String lastName = existing[existing.length-1].getName();
+            nextSequence = Long.parseLong(lastName.substring(0, lastName.length()-SUFFIX.length())) + 1;
+            logger.warn("Found " + existing.length + " dead letters in " + directory);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the id of the dead letter
+     */
+    public synchronized long write(IndexUpdate update, String failureClass, String reason) throws IOException {
+        long id = nextSequence++;
+        if (reason == null)
+            reason = "";
+        if (reason.length() > MAX_REASON_LENGTH)
+            reason = reason.substring(0, MAX_REASON_LENGTH);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file(id))));
+        try {
+            out.writeUTF(failureClass);
+            out.writeUTF(reason);
+            out.writeInt(update.getFailedAttempts());
+            out.writeLong(System.currentTimeMillis());
+            UpdateCodec.write(out, update);
+        } finally {
+            out.close();
+        }
+        return id;
+    }
+
+    public synchronized int size() {
+        return listFiles().length;
+    }
+
+    /**
+     * @return the dead letters, oldest first
+     */
+    public synchronized List<DeadLetter> list() {
+        File[] files = listFiles();
+        List<DeadLetter> deadLetters = new ArrayList<DeadLetter>(files.length);
+        for (int i=0; i<files.length; i++) {
+            try {
+                deadLetters.add(read(files[i]));
+            } catch (IOException ioe) {
+                logger.error("Could not read dead letter " + files[i], ioe);
+            }
+        }
+        return deadLetters;
+    }
+
+    /**
+     * @return the dead letter with the id, or null if there is none
+     */
+    public synchronized DeadLetter get(long id) throws IOException {
+        File file = file(id);
+        return file.isFile() ? read(file) : null;
+    }
+
+    /**
+     * @return false if there was no dead letter with the id
+     */
+    public synchronized boolean delete(long id) {
+        File file = file(id);
+        if (!file.isFile())
+            return false;
+        if (!file.delete()) {
+            logger.warn("Could not delete dead letter " + file);
+            return false;
+        }
+        return true;
+    }
+
+    private File file(long id) {
+        return new File(directory, String.format("%019d", Long.valueOf(id)) + SUFFIX);
+    }
+
+    private File[] listFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    private DeadLetter read(File file) throws IOException {
+        String name = file.getName();
+        long id = Long.parseLong(name.substring(0, name.length()-SUFFIX.length()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            String failureClass = in.readUTF();
+            String reason = in.readUTF();
+            int attempts = in.readInt();
+            long failedMillis = in.readLong();
+            return new DeadLetter(id, failureClass, reason, attempts, failedMillis, UpdateCodec.read(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * One update in the dead letter store.
+     */
+    public static class DeadLetter {
+
+        private final long id;
+
+        private final String failureClass;
+
+        private final String reason;
+
+        private final int attempts;
+
+        private final long failedMillis;
+
+        private final IndexUpdate update;
+
+        DeadLetter(long id, String failureClass, String reason, int attempts, long failedMillis,
+                IndexUpdate update) {
+            this.id = id;
+            this.failureClass = failureClass;
+            this.reason = reason;
+            this.attempts = attempts;
+            this.failedMillis = failedMillis;
+            this.update = update;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getFailureClass() {
+            return failureClass;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getFailedMillis() {
+            return failedMillis;
+        }
+
+        public IndexUpdate getUpdate() {
+            return update;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.Arrays;
+
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+
+/**
+ * Recognizes APIM messages an updater has seen before, such as
+ * messages redelivered by the broker or received by more than one
+ * consumer, so that they are dropped before any work is done for them.
+ *
+ * A message is identified by its base URL, PID, method, datastream and
+ * timestamp. Messages without a timestamp are never taken for
+ * duplicates, they cannot be told apart from a later change.
+ *
+ * The identities are kept in a rotating pair of Bloom filters of
+ * fixed size. A new generation is started when the current one holds
+ * capacity identities or is windowMillis old, and the generation before
+ * the previous one is dropped, so a message is recognized for at least
+ * windowMillis unless more than capacity messages arrive in that time.
+ * Each filter is sized for falsePositiveRate at capacity identities; as
+ * two are asked, a new message is taken for a duplicate with up to
+ * about twice that rate.
+ */
+public class DuplicateFilter {
+
+    private final int capacity;
+
+    private final long windowMillis;
+
+    private final int bitCount;
+
+    private final int hashCount;
+
+    private long[] current;
+
+    private long[] previous;
+
+    private int currentCount = 0;
+
+    private long currentStartMillis;
+
+    public DuplicateFilter(int capacity, long windowMillis, double falsePositiveRate) {
+        this.capacity = capacity;
+        this.windowMillis = windowMillis;
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * ln2));
+        current = new long[(bitCount + 63) / 64];
+        previous = new long[current.length];
+        currentStartMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Remembers the message and tells whether it had been seen before.
+     */
+    public boolean isDuplicate(ApimMessage message) {
+        if (message.getTimestamp() == null || message.getTimestamp().length() == 0)
+            return false;
+        long hash = hash(message);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        synchronized (this) {
+            long nowMillis = System.currentTimeMillis();
+            if (currentCount >= capacity || nowMillis - currentStartMillis >= windowMillis) {
+                long[] dropped = previous;
+                previous = current;
+                Arrays.fill(dropped, 0);
+                current = dropped;
+                currentCount = 0;
+                currentStartMillis = nowMillis;
+            }
+            boolean inCurrent = true;
+            boolean inPrevious = true;
+            for (int i=0; i<hashCount; i++) {
+                int bit = index(hash1 + i * hash2);
+                long mask = 1L << (bit & 63);
+                if ((current[bit >>> 6] & mask) == 0) {
+                    inCurrent = false;
+                    current[bit >>> 6] |= mask;
+                }
+                if ((previous[bit >>> 6] & mask) == 0)
+                    inPrevious = false;
+            }
+            if (!inCurrent)
+                currentCount++;
+            return inCurrent || inPrevious;
+        }
+    }
+
+    /**
+     * @return the bytes taken by the filters
+     */
+    public long getSizeBytes() {
+        return 2L * current.length * 8;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    private int index(int combinedHash) {
+        // the sign bit would make the remainder negative
+        return (combinedHash & Integer.MAX_VALUE) % bitCount;
+    }
+
+    private static long hash(ApimMessage message) {
+        long hash = 1125899906842597L;
+        hash = hash(hash, message.getBaseUrl());
+        hash = hash(hash, message.getPid());
+        hash = hash(hash, message.getMethodName());
+        hash = hash(hash, message.getDsId());
+        hash = hash(hash, message.getTimestamp());
+        // the MurmurHash3 finalizer spreads the bits over both halves
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            for (int i=0; i<value.length(); i++) {
+                hash = 31 * hash + value.charAt(i);
+            }
+        }
+        // separates the fields, so "ab","c" and "a","bc" differ
+        return 31 * hash + 0x1f;
+    }
+}
@@ -0,0 +1,321 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+
+/**
+ * A unit of index work travelling through the update pipeline.
+ *
+ * Created on the JMS delivery thread from the received message text
+ * and its parsed APIM fields, then handed to the pipeline of the
+ * updater the message arrived on.
+ */
+public class IndexUpdate {
+
+    public static final String PURGE_OBJECT = "purgeObject";
+
+    /**
+     * The method name of updates created by a reindex, not by a message.
+     */
+    public static final String REINDEX = "reindex";
+
+    /**
+     * The JMS priority of a message sent without one.
+     */
+    public static final int DEFAULT_JMS_PRIORITY = 4;
+
+    private final String clientId;
+
+    private final String messageText;
+
+    private final long receivedMillis;
+
+    private final ApimMessage message;
+
+    private final int messageCount;
+
+    private String repositoryName = null;
+
+    private MessageSpool.Entry spoolEntry = null;
+
+    // run once the update is done, like the spool entry
+    private Runnable doneAction = null;
+
+    private int failedAttempts = 0;
+
+    private volatile UpdateRoute route = null;
+
+    private volatile int jmsPriority = DEFAULT_JMS_PRIORITY;
+
+    private volatile boolean interactive = false;
+
+    // shared by the copies of an update for several sinks
+    private AtomicInteger pendingCopies = null;
+
+    private boolean copyDone = false;
+
+    public IndexUpdate(String clientId, String messageText, ApimMessage message) {
+        this(clientId, messageText, message, System.currentTimeMillis(), 1);
+    }
+
+    public IndexUpdate(String clientId, String messageText, ApimMessage message,
+            long receivedMillis, int messageCount) {
+        this.clientId = clientId;
+        this.messageText = messageText;
+        this.message = message;
+        this.receivedMillis = receivedMillis;
+        this.messageCount = messageCount;
+    }
+
+    /**
+     * Merges a later update for the same PID and route into this one;
+     * with different routes the merged update would miss the sinks or
+     * the action of this one. The later message wins, so a purgeObject
+     * supersedes the updates pending before it, and an ingest after a
+     * purge turns it back into an update. The receive time of the earliest message is kept, and
+     * the spool entry of the later message, which is the one that
+     * still needs processing, and its route. The merged update is
+     * interactive if either of them is.
+     */
+    public IndexUpdate merge(IndexUpdate later) {
+        IndexUpdate merged = new IndexUpdate(later.clientId, later.messageText, later.message,
+                receivedMillis, messageCount + later.messageCount);
+        merged.spoolEntry = later.spoolEntry;
+        merged.doneAction = later.doneAction;
+        merged.route = later.route;
+        merged.jmsPriority = Math.max(jmsPriority, later.jmsPriority);
+        merged.interactive = interactive || later.interactive;
+        return merged;
+    }
+
+    /**
+     * Copies the update for each of several sinks. The copies share the
+     * spool entry, which is marked done once every copy is.
+     */
+    public IndexUpdate[] copies(int count) {
+        AtomicInteger pending = new AtomicInteger(count);
+        IndexUpdate[] copies = new IndexUpdate[count];
+        for (int i=0; i<count; i++) {
+            IndexUpdate copy = new IndexUpdate(clientId, messageText, message, receivedMillis, messageCount);
+            copy.repositoryName = repositoryName;
+            copy.spoolEntry = spoolEntry;
+            copy.doneAction = doneAction;
+            copy.route = route;
+            copy.jmsPriority = jmsPriority;
+            copy.interactive = interactive;
+            copy.pendingCopies = pending;
+            copies[i] = copy;
+        }
+        return copies;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getMessageText() {
+        return messageText;
+    }
+
+    public long getReceivedMillis() {
+        return receivedMillis;
+    }
+
+    public ApimMessage getMessage() {
+        return message;
+    }
+
+    public String getPid() {
+        return message.getPid();
+    }
+
+    public String getMethodName() {
+        return message.getMethodName();
+    }
+
+    public String getBaseUrl() {
+        return message.getBaseUrl();
+    }
+
+    /**
+     * The number of APIM messages this update stands for,
+     * more than one when updates have been coalesced.
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * The repository the update came from, set once the update has
+     * been resolved on its lane.
+     */
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public void setRepositoryName(String repositoryName) {
+        this.repositoryName = repositoryName;
+    }
+
+    /**
+     * The route the UpdateRouter found for the message, null until the
+     * update has been routed. Not kept in the spool, recovered and
+     * spilled updates are routed again with the routes then configured.
+     */
+    public UpdateRoute getRoute() {
+        return route;
+    }
+
+    public void setRoute(UpdateRoute route) {
+        this.route = route;
+    }
+
+    /**
+     * The JMS priority of the message, 0 to 9. Not kept in the spool.
+     */
+    public int getJmsPriority() {
+        return jmsPriority;
+    }
+
+    public void setJmsPriority(int jmsPriority) {
+        this.jmsPriority = jmsPriority;
+    }
+
+    /**
+     * Whether the update goes ahead of bulk updates in the lanes, as
+     * classified by the PriorityPolicy of the updater. Updates are bulk
+     * until classified; reindex updates and updates read back from
+     * the spill directory stay bulk.
+     */
+    public boolean isInteractive() {
+        return interactive;
+    }
+
+    public void setInteractive(boolean interactive) {
+        this.interactive = interactive;
+    }
+
+    /**
+     * The record of the update in the message spool, null if the
+     * updater has no spool.
+     */
+    public MessageSpool.Entry getSpoolEntry() {
+        return spoolEntry;
+    }
+
+    public void setSpoolEntry(MessageSpool.Entry spoolEntry) {
+        this.spoolEntry = spoolEntry;
+    }
+
+    /**
+     * Sets what to run once the update is done, as its spool entry
+     * would be marked done, such as advancing the checkpoint of a
+     * reindex. Copies share it and run it once, when every copy is done.
+     */
+    public void setDoneAction(Runnable doneAction) {
+        this.doneAction = doneAction;
+    }
+
+    /**
+     * @return what markDone() needs of the update, for the spill to
+     *         keep while the update itself is on disk
+     */
+    SpoolState getSpoolState() {
+        synchronized (this) {
+            return new SpoolState(spoolEntry, doneAction, pendingCopies, copyDone);
+        }
+    }
+
+    /**
+     * Takes over the spool state of the update this one was read back
+     * from, so that marking it done marks the spilled update done.
+     */
+    void setSpoolState(SpoolState state) {
+        synchronized (this) {
+            spoolEntry = state.spoolEntry;
+            doneAction = state.doneAction;
+            pendingCopies = state.pendingCopies;
+            copyDone = state.copyDone;
+        }
+    }
+
+    /**
+     * The number of times the sink has failed to process the update.
+     * Not kept in the spool, an update recovered after a restart starts
+     * counting again.
+     */
+    public synchronized int getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    /**
+     * Counts a failed attempt to process the update.
+     *
+     * @return the failed attempts including this one
+     */
+    public synchronized int failedAttempt() {
+        return ++failedAttempts;
+    }
+
+    /**
+     * Marks the update as done in the message spool, so it is not
+     * processed again after a restart. Called once the update has been
+     * processed, dropped or merged into a later update.
+     */
+    public void markDone() {
+        if (spoolEntry == null && doneAction == null)
+            return;
+        if (pendingCopies != null) {
+            synchronized (this) {
+                if (copyDone)
+                    return;
+                copyDone = true;
+            }
+            if (pendingCopies.decrementAndGet() > 0)
+                return;
+        }
+        if (spoolEntry != null)
+            spoolEntry.done();
+        if (doneAction != null)
+            doneAction.run();
+    }
+
+    /**
+     * @return true if the update removes the object from the index: a
+     *         purgeObject, or any message its route turns into a delete
+     */
+    public boolean isDelete() {
+        UpdateRoute route = this.route;
+        return route == null ? PURGE_OBJECT.equals(message.getMethodName())
+                : route.isDelete(message.getMethodName());
+    }
+
+    /**
+     * The spool entry of a spilled update and its share of the copies.
+     */
+    static final class SpoolState {
+
+        private final MessageSpool.Entry spoolEntry;
+
+        private final Runnable doneAction;
+
+        private final AtomicInteger pendingCopies;
+
+        private final boolean copyDone;
+
+        private SpoolState(MessageSpool.Entry spoolEntry, Runnable doneAction, AtomicInteger pendingCopies,
+                boolean copyDone) {
+            this.spoolEntry = spoolEntry;
+            this.doneAction = doneAction;
+            this.pendingCopies = pendingCopies;
+            this.copyDone = copyDone;
+        }
+    }
+
+    public String toString() {
+        return "IndexUpdate pid=" + message.getPid() + " method=" + message.getMethodName()
+                + " dsId=" + message.getDsId() + " clientId=" + clientId
+                + " receivedMillis=" + receivedMillis + " messageCount=" + messageCount;
+    }
+}
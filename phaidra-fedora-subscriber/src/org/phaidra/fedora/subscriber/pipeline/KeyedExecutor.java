@@ -0,0 +1,133 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs updates on a fixed number of single threaded lanes, choosing
+ * the lane by a hash of the PID.
+ *
+ * All updates for one PID go through the same lane and are processed
+ * in arrival order, so a purgeObject can never overtake an earlier
+ * modifyDatastream for the same object. Updates for different PIDs
+ * are spread over the lanes and processed concurrently.
+ *
+ * With a PriorityPolicy every lane takes interactive updates ahead of
+ * bulk ones, see BoundedWorkerPool.
+ */
+public class KeyedExecutor implements UpdateExecutor {
+
+    private final String name;
+
+    private final BoundedWorkerPool[] lanes;
+
+    /**
+     * @param queueDepth the total queue depth, split evenly over the lanes
+     * @param spillDir parent of the per lane spill directories, may be null
+     *        unless overflowPolicy is SPILL
+     * @param priorityPolicy null to process the updates of a lane in
+     *        arrival order
+     */
+    public KeyedExecutor(String name, int laneCount, int queueDepth,
+            OverflowPolicy overflowPolicy, File spillDir, PriorityPolicy priorityPolicy,
+            UpdateHandler handler) throws IOException {
+        this.name = name;
+        this.lanes = new BoundedWorkerPool[laneCount];
+        int laneQueueDepth = Math.max(1, queueDepth / laneCount);
+        try {
+            for (int i=0; i<laneCount; i++) {
+                File laneSpillDir = spillDir == null ? null : new File(spillDir, "lane" + i);
+                lanes[i] = new BoundedWorkerPool(name + "-lane" + i, 1, laneQueueDepth,
+                        overflowPolicy, laneSpillDir, priorityPolicy, handler);
+            }
+        } catch (IOException ioe) {
+            shutdown(0);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Queues the update on the lane its PID hashes to.
+     */
+    public void submit(IndexUpdate update) {
+        lanes[laneOf(update.getPid())].submit(update);
+    }
+
+    public void handle(IndexUpdate update) {
+        submit(update);
+    }
+
+    public int laneOf(String pid) {
+        return pid == null ? 0 : (pid.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getQueueDepth() {
+        int queueDepth = 0;
+        for (int i=0; i<lanes.length; i++) {
+            queueDepth += lanes[i].getQueueDepth() + lanes[i].getSpilledDepth();
+        }
+        return queueDepth;
+    }
+
+    public long getDroppedCount() {
+        long droppedCount = 0;
+        for (int i=0; i<lanes.length; i++) {
+            droppedCount += lanes[i].getDroppedCount();
+        }
+        return droppedCount;
+    }
+
+    /**
+     * @return the interactive updates queued on the lanes
+     */
+    public int getInteractiveQueueDepth() {
+        int queueDepth = 0;
+        for (int i=0; i<lanes.length; i++) {
+            queueDepth += lanes[i].getInteractiveQueueDepth();
+        }
+        return queueDepth;
+    }
+
+    public long getDemotedCount() {
+        long demotedCount = 0;
+        for (int i=0; i<lanes.length; i++) {
+            demotedCount += lanes[i].getDemotedCount();
+        }
+        return demotedCount;
+    }
+
+    public long getPromotedCount() {
+        long promotedCount = 0;
+        for (int i=0; i<lanes.length; i++) {
+            promotedCount += lanes[i].getPromotedCount();
+        }
+        return promotedCount;
+    }
+
+    public long getStarvedCount() {
+        long starvedCount = 0;
+        for (int i=0; i<lanes.length; i++) {
+            starvedCount += lanes[i].getStarvedCount();
+        }
+        return starvedCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Shuts the lanes down one after the other, waiting up to
+     * timeoutMillis for each.
+     */
+    public void shutdown(long timeoutMillis) {
+        for (int i=0; i<lanes.length; i++) {
+            if (lanes[i] != null)
+                lanes[i].shutdown(timeoutMillis);
+        }
+    }
+}
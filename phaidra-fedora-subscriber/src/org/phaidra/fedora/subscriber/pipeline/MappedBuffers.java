@@ -0,0 +1,65 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Releases memory mapped buffers before they are garbage collected, so
+ * the mapped files and address space of deleted files are reclaimed
+ * right away. There is no API for this, so the cleaner of the buffer is
+ * looked up by reflection: sun.misc.Unsafe.invokeCleaner on Java 9 and
+ * later, the cleaner() of the buffer on Java 8.
+ */
+public class MappedBuffers {
+
+    private static final Logger logger = Logger.getLogger(MappedBuffers.class);
+
+    private static final Object unsafe;
+
+    private static final Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method invokeCleanerMethod = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (Exception e) {
+            invokeCleanerMethod = null;
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = invokeCleanerMethod;
+    }
+
+    private MappedBuffers() {
+    }
+
+    /**
+     * Unmaps the buffer. The buffer must not be used afterwards, reading
+     * or writing an unmapped buffer crashes the JVM. If the buffer can not
+     * be unmapped it is left to the garbage collector.
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            if (logger.isDebugEnabled())
+                logger.debug("Could not unmap buffer, it is released when it is garbage collected", e);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only write-ahead log of received updates, so that updates
+ * whose JMS message has been acknowledged survive a crash or restart.
+ *
+ * An update is appended on the JMS delivery thread before it enters
+ * the pipeline and marked done once the sink has processed it.
+ * Updates still pending when the spool is opened are returned by
+ * takeRecovered() and processed again, so every update is processed
+ * at least once.
+ *
+ * The log is split into memory mapped segment files of a fixed size.
+ * Each record is its length, a state byte, a sequence number that
+ * keeps the receive order when records are moved, and the update. Marking a
+ * record done only rewrites its state byte. A segment is deleted as
+ * soon as all its records are done; when a new segment is started,
+ * the few records still pending in older, mostly done segments are
+ * copied forward so that a stuck update does not keep a whole segment
+ * on disk.
+ *
+ * With a sync interval of 0 every appended update is forced to disk
+ * before append returns. With a larger interval the active segment is
+ * forced at most that often, and updates appended since the last force
+ * are lost if the machine goes down. Copies made by compaction are
+ * always forced before the records they replace are given up, and
+ * deleted segments are unmapped right away.
+ */
+public class MessageSpool {
+
+    private static final String SUFFIX = ".wal";
+
+    private static final int HEADER_BYTES = 13; // record length, state and sequence number
+
+    private static final byte PENDING = 1;
+
+    private static final byte DONE = 2;
+
+    private final Logger logger = Logger.getLogger(MessageSpool.class);
+
+    private final File directory;
+
+    private final int segmentBytes;
+
+    private final long syncMillis;
+
+    private final ScheduledExecutorService syncer;
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    private final List<IndexUpdate> recovered = new ArrayList<IndexUpdate>();
+
+    private Segment active = null;
+
+    private long nextSequence = 0;
+
+    private long nextRecord = 0;
+
+    // whether the active segment has records that are not forced yet
+    private boolean dirty = false;
+
+    public MessageSpool(String name, File directory, int segmentBytes, long syncMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncMillis = syncMillis;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("spool directory " + directory + " could not be created");
+        }
+        File[] existing = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (existing != null && existing.length > 0) {
+            Arrays.sort(existing);
+            for (int i=0; i<existing.length; i++) {
+                recover(existing[i]);
+            }
+            Collections.sort(recovered, new Comparator<IndexUpdate>() {
+                public int compare(IndexUpdate first, IndexUpdate second) {
+                    long difference = first.getSpoolEntry().sequence - second.getSpoolEntry().sequence;
+                    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+                }
+            });
+            String lastName = existing[existing.length-1].getName();
+            nextSequence = Long.parseLong(lastName.substring(0, lastName.length()-SUFFIX.length())) + 1;
+            if (logger.isInfoEnabled())
+                logger.info("Recovered " + recovered.size() + " unprocessed updates from " + directory);
+        }
+        if (syncMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("pfs-" + name + "-spool"));
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sync();
+                }
+            }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Returns the updates that were still pending when the spool was
+     * opened, in the order they were received. Each is still in the
+     * spool and has to be marked done like a new one.
+     */
+    public synchronized List<IndexUpdate> takeRecovered() {
+        List<IndexUpdate> updates = new ArrayList<IndexUpdate>(recovered);
+        recovered.clear();
+        return updates;
+    }
+
+    /**
+     * Writes the update to the spool and attaches the spool entry to it.
+     */
+    public synchronized void append(IndexUpdate update) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + update.getMessageText().length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        UpdateCodec.write(out, update);
+        out.close();
+        update.setSpoolEntry(append(bytes.toByteArray(), nextRecord++));
+        dirty = true;
+        if (syncMillis <= 0)
+            force();
+    }
+
+    /**
+     * The number of updates in the spool that are not done yet.
+     */
+    public synchronized int getPendingCount() {
+        int pending = 0;
+        Iterator<Segment> it = segments.iterator();
+        while (it.hasNext()) {
+            pending += it.next().live.size();
+        }
+        return pending;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Forces the active segment to disk. Pending records stay in the
+     * spool and are recovered when it is opened again.
+     */
+    public void close() {
+        if (syncer != null)
+            syncer.shutdownNow();
+        synchronized (this) {
+            if (active != null)
+                active.buffer.force();
+            dirty = false;
+        }
+    }
+
+    private synchronized void sync() {
+        try {
+            force();
+        } catch (RuntimeException re) {
+            logger.error("Unexpected exception forcing spool " + directory, re);
+        }
+    }
+
+    private void force() {
+        if (dirty && active != null) {
+            active.buffer.force();
+            dirty = false;
+        }
+    }
+
+    private Entry append(byte[] record, long sequence) throws IOException {
+        if (active == null || active.buffer.remaining() < HEADER_BYTES + record.length) {
+            startSegment(HEADER_BYTES + record.length);
+        }
+        Entry entry = new Entry(active, active.buffer.position(), sequence);
+        active.buffer.putInt(record.length);
+        active.buffer.put(PENDING);
+        active.buffer.putLong(sequence);
+        active.buffer.put(record);
+        active.records++;
+        active.live.add(entry);
+        return entry;
+    }
+
+    private void startSegment(int minBytes) throws IOException {
+        Segment previous = active;
+        if (previous != null) {
+            previous.buffer.force();
+            dirty = false;
+            if (previous.live.isEmpty())
+                delete(previous);
+        }
+        File file = new File(directory, String.format("%019d", Long.valueOf(nextSequence++)) + SUFFIX);
+        // the file is zero filled, so a zero record length marks the end
+        active = new Segment(file, map(file, Math.max(segmentBytes, minBytes + 4)));
+        segments.add(active);
+        compact();
+    }
+
+    /**
+     * Copies the pending records of older segments that are at least
+     * three quarters done into the active segment.
+     */
+    private void compact() throws IOException {
+        Iterator<Segment> it = new ArrayList<Segment>(segments).iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == active || segment.live.size() * 4 > segment.records)
+                continue;
+            if (active.buffer.remaining() < segment.liveBytes())
+                continue;
+            List<Entry> entries = new ArrayList<Entry>(segment.live);
+            List<Entry> copies = new ArrayList<Entry>(entries.size());
+            for (int i=0; i<entries.size(); i++) {
+                Entry entry = entries.get(i);
+                copies.add(append(segment.read(entry.position), entry.sequence));
+            }
+            // the copies have to be on disk before the originals are given up
+            active.buffer.force();
+            for (int i=0; i<entries.size(); i++) {
+                Entry entry = entries.get(i);
+                Entry moved = copies.get(i);
+                segment.buffer.put(entry.position + 4, DONE);
+                entry.segment = moved.segment;
+                entry.position = moved.position;
+                active.live.remove(moved);
+                active.live.add(entry);
+            }
+            segment.live.clear();
+            delete(segment);
+        }
+    }
+
+    private synchronized void done(Entry entry) {
+        Segment segment = entry.segment;
+        if (!segment.live.remove(entry))
+            return;
+        segment.buffer.put(entry.position + 4, DONE);
+        if (segment.live.isEmpty() && segment != active)
+            delete(segment);
+    }
+
+    /**
+     * Deletes and unmaps a segment that has no pending records left.
+     * Its buffer must not be touched afterwards.
+     */
+    private void delete(Segment segment) {
+        segments.remove(segment);
+        MappedBuffers.unmap(segment.buffer);
+        if (!segment.file.delete())
+            logger.warn("Could not delete spool segment " + segment.file);
+    }
+
+    private void recover(File file) throws IOException {
+        Segment segment = new Segment(file, map(file, (int) file.length()));
+        MappedByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int position = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining() - (HEADER_BYTES - 4))
+                break;
+            byte state = buffer.get();
+            long sequence = buffer.getLong();
+            nextRecord = Math.max(nextRecord, sequence + 1);
+            buffer.position(buffer.position() + length);
+            segment.records++;
+            if (state != PENDING)
+                continue;
+            try {
+                IndexUpdate update = UpdateCodec.read(new DataInputStream(
+                        new ByteArrayInputStream(segment.read(position))));
+                Entry entry = new Entry(segment, position, sequence);
+                update.setSpoolEntry(entry);
+                segment.live.add(entry);
+                recovered.add(update);
+            } catch (IOException ioe) {
+                logger.error("Skipping unreadable record in spool segment " + file, ioe);
+            }
+        }
+        if (segment.live.isEmpty()) {
+            MappedBuffers.unmap(buffer);
+            if (!file.delete())
+                logger.warn("Could not delete spool segment " + file);
+        } else {
+            segments.add(segment);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The place of one update in the spool.
+     */
+    public class Entry {
+
+        private Segment segment;
+
+        private int position;
+
+        private final long sequence;
+
+        Entry(Segment segment, int position, long sequence) {
+            this.segment = segment;
+            this.position = position;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Marks the update as processed, so it is not recovered again.
+         */
+        public void done() {
+            MessageSpool.this.done(this);
+        }
+    }
+
+    private static class Segment {
+
+        final File file;
+
+        final MappedByteBuffer buffer;
+
+        final LinkedHashSet<Entry> live = new LinkedHashSet<Entry>();
+
+        int records = 0;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        byte[] read(int position) {
+            byte[] record = new byte[buffer.getInt(position)];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + HEADER_BYTES);
+            view.get(record);
+            return record;
+        }
+
+        int liveBytes() {
+            int bytes = 0;
+            Iterator<Entry> it = live.iterator();
+            while (it.hasNext()) {
+                bytes += HEADER_BYTES + buffer.getInt(it.next().position);
+            }
+            return bytes;
+        }
+    }
+}
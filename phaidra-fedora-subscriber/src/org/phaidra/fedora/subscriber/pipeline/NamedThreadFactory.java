@@ -0,0 +1,25 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named prefix-1, prefix-2, ... so that pipeline
+ * threads can be told apart in thread dumps and log lines.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    public NamedThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
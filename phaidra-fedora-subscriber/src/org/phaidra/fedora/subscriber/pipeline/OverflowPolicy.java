@@ -0,0 +1,32 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+/**
+ * What a worker pool does with a new update when its queue is full.
+ *
+ * BLOCK holds the JMS delivery thread until a slot frees up, which
+ * pushes back on the broker. DROP_OLDEST discards the oldest queued
+ * update. SPILL writes updates to a local directory and feeds them
+ * back into the queue as it drains.
+ */
+public enum OverflowPolicy {
+
+    BLOCK,
+    DROP_OLDEST,
+    SPILL;
+
+    /**
+     * Returns the policy named by value (case insensitive, "-" and "_"
+     * are interchangeable), or null if there is no such policy.
+     */
+    public static OverflowPolicy fromString(String value) {
+        if (value == null)
+            return null;
+        String name = value.trim().toUpperCase().replace('-', '_');
+        OverflowPolicy[] policies = values();
+        for (int i=0; i<policies.length; i++) {
+            if (policies[i].name().equals(name))
+                return policies[i];
+        }
+        return null;
+    }
+}
@@ -0,0 +1,148 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs every update on a thread of its own, a virtual thread with
+ * pfsupdater.executionMode=virtual, instead of on a fixed number of
+ * lanes. Updates that wait for Fedora or the search index then no
+ * longer hold up the updates behind them on the same lane.
+ *
+ * Updates for the same PID still run one after the other, in arrival
+ * order: an update for a PID that is running is queued behind it and
+ * run by the same thread. At most maxInFlight updates are submitted and
+ * not yet processed; submit() blocks while that many are, as the lanes
+ * do with the block overflow policy.
+ */
+public class PerUpdateExecutor implements UpdateExecutor {
+
+    private final Logger logger = Logger.getLogger(PerUpdateExecutor.class);
+
+    private final String name;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+
+    private final ThreadFactory threadFactory;
+
+    private final UpdateHandler handler;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /** the updates waiting behind the running one, by PID */
+    private final Map<String, LinkedList<IndexUpdate>> running = new HashMap<String, LinkedList<IndexUpdate>>();
+
+    private volatile boolean shutdown = false;
+
+    public PerUpdateExecutor(String name, int maxInFlight, ThreadFactory threadFactory, UpdateHandler handler) {
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.threadFactory = threadFactory;
+        this.handler = handler;
+    }
+
+    public void submit(IndexUpdate update) {
+        if (shutdown) {
+            droppedCount.incrementAndGet();
+            logger.error("Dropped " + update + ", executor " + name + " is shut down");
+            return;
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            droppedCount.incrementAndGet();
+            logger.error("Interrupted while waiting for space in executor " + name + ", dropped " + update);
+            return;
+        }
+        String key = update.getPid() == null ? "" : update.getPid();
+        synchronized (running) {
+            LinkedList<IndexUpdate> waiting = running.get(key);
+            if (waiting != null) {
+                waiting.add(update);
+                return;
+            }
+            running.put(key, new LinkedList<IndexUpdate>());
+        }
+        threadFactory.newThread(new UpdateRunnable(key, update)).start();
+    }
+
+    public void handle(IndexUpdate update) {
+        submit(update);
+    }
+
+    /**
+     * @return the number of processors, which the virtual threads are
+     *         scheduled on
+     */
+    public int getLaneCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getQueueDepth() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void shutdown(long timeoutMillis) {
+        shutdown = true;
+        try {
+            // all permits back means all updates are processed
+            if (inFlight.tryAcquire(maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS))
+                inFlight.release(maxInFlight);
+            else
+                logger.warn("Executor " + name + " did not finish within " + timeoutMillis + " ms, "
+                        + getQueueDepth() + " updates left");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class UpdateRunnable implements Runnable {
+
+        private final String key;
+
+        private final IndexUpdate first;
+
+        UpdateRunnable(String key, IndexUpdate first) {
+            this.key = key;
+            this.first = first;
+        }
+
+        public void run() {
+            IndexUpdate update = first;
+            while (update != null) {
+                try {
+                    handler.handle(update);
+                } catch (RuntimeException re) {
+                    logger.error("Unexpected exception processing " + update + " in executor " + name, re);
+                } finally {
+                    inFlight.release();
+                }
+                synchronized (running) {
+                    LinkedList<IndexUpdate> waiting = running.get(key);
+                    update = waiting.poll();
+                    if (update == null)
+                        running.remove(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The pipeline of every running updater, by updater name, for the
+ * parts of the webapp that work on an updater from outside the message
+ * path, such as reindexing and dead letter replay. The UpdateListener
+ * registers a pipeline when it starts an updater and removes it when
+ * it stops it.
+ */
+public class PipelineRegistry {
+
+    private static final PipelineRegistry instance = new PipelineRegistry();
+
+    private final ConcurrentHashMap<String, UpdaterPipeline> pipelines =
+            new ConcurrentHashMap<String, UpdaterPipeline>();
+
+    public static PipelineRegistry getInstance() {
+        return instance;
+    }
+
+    public void register(UpdaterPipeline pipeline) {
+        pipelines.put(pipeline.getUpdaterName(), pipeline);
+    }
+
+    /**
+     * Removes the pipeline, unless the updater has been given a new one since.
+     */
+    public void unregister(UpdaterPipeline pipeline) {
+        pipelines.remove(pipeline.getUpdaterName(), pipeline);
+    }
+
+    /**
+     * @return the pipeline of the updater, or null if it is not running
+     */
+    public UpdaterPipeline getPipeline(String updaterName) {
+        return pipelines.get(updaterName);
+    }
+
+    /**
+     * @return the pipelines sorted by updater name
+     */
+    public Map<String, UpdaterPipeline> getPipelines() {
+        return new TreeMap<String, UpdaterPipeline>(pipelines);
+    }
+}
@@ -0,0 +1,386 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The work queue of a lane when the updater has a PriorityPolicy: one
+ * FIFO queue of interactive and one of bulk updates, each holding up
+ * to capacity, taken from as the policy says.
+ *
+ * Only takes Entry runnables. remainingCapacity() is the room left for
+ * bulk updates, which is what spilled updates are read back into.
+ *
+ * Whichever class the policy picks, an update is never taken while an
+ * update of the same PID queued before it waits in the other class;
+ * the head of the other class is taken instead. Of the two heads, the
+ * one queued first can always be taken.
+ */
+final class PriorityLaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * A queued update.
+     */
+    interface Entry extends Runnable {
+
+        boolean isInteractive();
+
+        long getQueuedMillis();
+
+        String getPid();
+    }
+
+    private final int capacity;
+
+    private final PriorityPolicy policy;
+
+    private final ArrayDeque<Runnable> interactive = new ArrayDeque<Runnable>();
+
+    private final ArrayDeque<Runnable> bulk = new ArrayDeque<Runnable>();
+
+    // the order the entries were queued in, to keep the updates of a PID in order
+    private final Map<Runnable, Long> sequences = new IdentityHashMap<Runnable, Long>();
+
+    private final Map<String, int[]> interactivePids = new HashMap<String, int[]>();
+
+    private final Map<String, int[]> bulkPids = new HashMap<String, int[]>();
+
+    private long nextSequence = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition interactiveNotFull = lock.newCondition();
+
+    private final Condition bulkNotFull = lock.newCondition();
+
+    // interactive updates taken since the last bulk one while bulk ones waited
+    private int interactiveInARow = 0;
+
+    private long starvedCount = 0;
+
+    PriorityLaneQueue(int capacity, PriorityPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    public boolean offer(Runnable runnable) {
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> queue = queueOf(runnable);
+            if (queue.size() >= capacity)
+                return false;
+            enqueue(queue, runnable);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Runnable> queue = queueOf(runnable);
+            while (queue.size() >= capacity) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notFullOf(queue).awaitNanos(nanos);
+            }
+            enqueue(queue, runnable);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(Runnable runnable) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Runnable> queue = queueOf(runnable);
+            while (queue.size() >= capacity) {
+                notFullOf(queue).await();
+            }
+            enqueue(queue, runnable);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (interactive.isEmpty() && bulk.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (interactive.isEmpty() && bulk.isEmpty()) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest update of the same class as the runnable, to
+     * make room for it.
+     *
+     * @return the removed update, or null if there is none of that class
+     */
+    Runnable pollOldest(Runnable runnable) {
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> queue = queueOf(runnable);
+            Runnable oldest = queue.pollFirst();
+            if (oldest != null) {
+                removed(queue, oldest);
+                notFullOf(queue).signal();
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable peek() {
+        lock.lock();
+        try {
+            return interactive.isEmpty() ? bulk.peekFirst() : interactive.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            if (interactive.remove(o)) {
+                removed(interactive, (Runnable) o);
+                interactiveNotFull.signal();
+                return true;
+            }
+            if (bulk.remove(o)) {
+                removed(bulk, (Runnable) o);
+                bulkNotFull.signal();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return interactive.size() + bulk.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInteractiveSize() {
+        lock.lock();
+        try {
+            return interactive.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the bulk updates taken ahead of interactive ones because
+     *         they had waited maxBulkWaitMillis
+     */
+    long getStarvedCount() {
+        lock.lock();
+        try {
+            return starvedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - bulk.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            Runnable runnable;
+            while (n < maxElements && (runnable = dequeue()) != null) {
+                c.add(runnable);
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a copy, interactive updates first.
+     */
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> copy;
+        lock.lock();
+        try {
+            copy = new ArrayList<Runnable>(interactive.size() + bulk.size());
+            copy.addAll(interactive);
+            copy.addAll(bulk);
+        } finally {
+            lock.unlock();
+        }
+        return new Iterator<Runnable>() {
+            private final Iterator<Runnable> it = copy.iterator();
+            private Runnable last = null;
+
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Runnable next() {
+                last = it.next();
+                return last;
+            }
+
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                PriorityLaneQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    private ArrayDeque<Runnable> queueOf(Runnable runnable) {
+        return ((Entry) runnable).isInteractive() ? interactive : bulk;
+    }
+
+    private Condition notFullOf(ArrayDeque<Runnable> queue) {
+        return queue == interactive ? interactiveNotFull : bulkNotFull;
+    }
+
+    private void enqueue(ArrayDeque<Runnable> queue, Runnable runnable) {
+        queue.addLast(runnable);
+        sequences.put(runnable, Long.valueOf(nextSequence++));
+        Map<String, int[]> pids = queue == interactive ? interactivePids : bulkPids;
+        String pid = ((Entry) runnable).getPid();
+        int[] count = pids.get(pid);
+        if (count == null)
+            pids.put(pid, new int[] { 1 });
+        else
+            ++count[0];
+        notEmpty.signal();
+    }
+
+    private void removed(ArrayDeque<Runnable> queue, Runnable runnable) {
+        sequences.remove(runnable);
+        Map<String, int[]> pids = queue == interactive ? interactivePids : bulkPids;
+        String pid = ((Entry) runnable).getPid();
+        int[] count = pids.get(pid);
+        if (count != null && --count[0] <= 0)
+            pids.remove(pid);
+    }
+
+    /**
+     * @return whether an update of the PID of the head was queued in the
+     *         other queue before it
+     */
+    private boolean isBehindOther(Runnable head, ArrayDeque<Runnable> other) {
+        String pid = ((Entry) head).getPid();
+        if (!(other == interactive ? interactivePids : bulkPids).containsKey(pid))
+            return false;
+        long sequence = sequences.get(head).longValue();
+        Iterator<Runnable> it = other.iterator();
+        while (it.hasNext()) {
+            Runnable runnable = it.next();
+            long otherSequence = sequences.get(runnable).longValue();
+            if (otherSequence > sequence)
+                return false;
+            if (pid.equals(((Entry) runnable).getPid()))
+                return true;
+        }
+        return false;
+    }
+
+    private Runnable dequeue() {
+        boolean takeBulk;
+        if (interactive.isEmpty()) {
+            if (bulk.isEmpty())
+                return null;
+            takeBulk = true;
+        } else if (bulk.isEmpty()) {
+            takeBulk = false;
+        } else {
+            boolean starved = policy.getMaxBulkWaitMillis() > 0 && System.currentTimeMillis()
+                    - ((Entry) bulk.peekFirst()).getQueuedMillis() >= policy.getMaxBulkWaitMillis();
+            takeBulk = starved || (!policy.isStrict() && interactiveInARow >= policy.getWeight());
+            // keep the updates of a PID in order
+            if (takeBulk && isBehindOther(bulk.peekFirst(), interactive))
+                takeBulk = false;
+            else if (!takeBulk && isBehindOther(interactive.peekFirst(), bulk))
+                takeBulk = true;
+            else if (starved)
+                ++starvedCount;
+        }
+        Runnable runnable;
+        if (takeBulk) {
+            interactiveInARow = 0;
+            runnable = bulk.pollFirst();
+            removed(bulk, runnable);
+            bulkNotFull.signal();
+        } else {
+            interactiveInARow = bulk.isEmpty() ? 0 : interactiveInARow + 1;
+            runnable = interactive.pollFirst();
+            removed(interactive, runnable);
+            interactiveNotFull.signal();
+        }
+        return runnable;
+    }
+}
@@ -0,0 +1,188 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.StringTokenizer;
+
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+
+/**
+ * Which updates are interactive, such as a curator's edit, and which
+ * are bulk, such as a mass ingest, and how the lanes of an updater
+ * take them, set up from the pfsupdater.priority.* properties.
+ *
+ * An update is bulk if it matches any of the bulk criteria, otherwise
+ * interactive if it matches any of the interactive criteria, otherwise
+ * of the default class. The criteria are the Fedora user of the API-M
+ * call (the Atom author name), the PID namespace, the method name and
+ * the JMS priority: at most the bulk jmsPriority for bulk, at least the
+ * interactive one for interactive.
+ *
+ * With the strict mode a lane takes an interactive update whenever it
+ * has one, with the weighted mode at most weight interactive updates in
+ * a row while bulk ones wait. Either way a bulk update that has waited
+ * maxBulkWaitMillis goes next, so bulk work is never starved. Immutable,
+ * the policy is part of the UpdaterConfig.
+ */
+public class PriorityPolicy {
+
+    public static final String STRICT = "strict";
+
+    public static final String WEIGHTED = "weighted";
+
+    public static final String[] MODES = { STRICT, WEIGHTED };
+
+    public static final String INTERACTIVE = "interactive";
+
+    public static final String BULK = "bulk";
+
+    public static final String[] CLASSES = { INTERACTIVE, BULK };
+
+    /**
+     * The settings of pfsupdater.priority.interactive.* and
+     * pfsupdater.priority.bulk.*.
+     */
+    public static final String[] CRITERIA = { "users", "namespaces", "methods", "jmsPriority" };
+
+    private final String mode;
+
+    private final int weight;
+
+    private final long maxBulkWaitMillis;
+
+    private final boolean defaultInteractive;
+
+    private final String[] bulkUsers;
+
+    private final String[] bulkNamespaces;
+
+    private final String[] bulkMethods;
+
+    private final int bulkJmsPriority;
+
+    private final String[] interactiveUsers;
+
+    private final String[] interactiveNamespaces;
+
+    private final String[] interactiveMethods;
+
+    private final int interactiveJmsPriority;
+
+    /**
+     * @param users, namespaces, methods whitespace separated lists, null
+     *        for none
+     * @param bulkJmsPriority the highest JMS priority of bulk updates,
+     *        -1 for none
+     * @param interactiveJmsPriority the lowest JMS priority of
+     *        interactive updates, -1 for none
+     */
+    public PriorityPolicy(String mode, int weight, long maxBulkWaitMillis, String defaultClass,
+            String bulkUsers, String bulkNamespaces, String bulkMethods, int bulkJmsPriority,
+            String interactiveUsers, String interactiveNamespaces, String interactiveMethods,
+            int interactiveJmsPriority) {
+        this.mode = mode;
+        this.weight = weight;
+        this.maxBulkWaitMillis = maxBulkWaitMillis;
+        this.defaultInteractive = !BULK.equals(defaultClass);
+        this.bulkUsers = split(bulkUsers);
+        this.bulkNamespaces = split(bulkNamespaces);
+        this.bulkMethods = split(bulkMethods);
+        this.bulkJmsPriority = bulkJmsPriority;
+        this.interactiveUsers = split(interactiveUsers);
+        this.interactiveNamespaces = split(interactiveNamespaces);
+        this.interactiveMethods = split(interactiveMethods);
+        this.interactiveJmsPriority = interactiveJmsPriority;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public boolean isStrict() {
+        return STRICT.equals(mode);
+    }
+
+    /**
+     * @return the interactive updates a lane takes in a row while bulk
+     *         updates wait, in the weighted mode
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return how long a bulk update waits at most while interactive
+     *         updates go ahead, 0 for no limit
+     */
+    public long getMaxBulkWaitMillis() {
+        return maxBulkWaitMillis;
+    }
+
+    public boolean isInteractive(ApimMessage message, int jmsPriority) {
+        if (matches(message, bulkUsers, bulkNamespaces, bulkMethods)
+                || (bulkJmsPriority >= 0 && jmsPriority <= bulkJmsPriority))
+            return false;
+        if (matches(message, interactiveUsers, interactiveNamespaces, interactiveMethods)
+                || (interactiveJmsPriority >= 0 && jmsPriority >= interactiveJmsPriority))
+            return true;
+        return defaultInteractive;
+    }
+
+    public String toString() {
+        return "PriorityPolicy " + mode + " weight=" + weight + " maxBulkWaitMillis=" + maxBulkWaitMillis;
+    }
+
+    private static boolean matches(ApimMessage message, String[] users, String[] namespaces,
+            String[] methods) {
+        if (users != null && contains(users, message.getAuthor()))
+            return true;
+        if (methods != null && containsMethod(methods, message.getMethodName()))
+            return true;
+        if (namespaces != null) {
+            String pid = message.getPid();
+            int colon = pid == null ? -1 : pid.indexOf(':');
+            if (colon > 0 && containsRegion(namespaces, pid, colon))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean contains(String[] values, String value) {
+        for (int i=0; value != null && i<values.length; i++) {
+            if (values[i].equals(value))
+                return true;
+        }
+        return false;
+    }
+
+    // a trailing * matches a prefix, as in the routes
+    private static boolean containsMethod(String[] methods, String methodName) {
+        for (int i=0; methodName != null && i<methods.length; i++) {
+            String method = methods[i];
+            if (method.endsWith("*") ? methodName.startsWith(method.substring(0, method.length() - 1))
+                    : method.equals(methodName))
+                return true;
+        }
+        return false;
+    }
+
+    // compares without creating a substring for the namespace
+    private static boolean containsRegion(String[] values, String pid, int length) {
+        for (int i=0; i<values.length; i++) {
+            if (values[i].length() == length && pid.regionMatches(0, values[i], 0, length))
+                return true;
+        }
+        return false;
+    }
+
+    private static String[] split(String list) {
+        if (list == null)
+            return null;
+        StringTokenizer tokens = new StringTokenizer(list);
+        if (!tokens.hasMoreTokens())
+            return null;
+        String[] values = new String[tokens.countTokens()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = tokens.nextToken();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,99 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.net.URL;
+import java.util.Collections;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.metrics.UpdaterMetrics;
+
+/**
+ * Resolves the repository an update came from, using the base url
+ * of its APIM message, and passes the update on. Updates that already
+ * know their repository, such as reindex updates, are passed on as
+ * they are.
+ *
+ * Updates that have not been routed yet, such as updates recovered
+ * from the spool or read back from the spill directory, are routed
+ * first, and dropped if their route ignores them or leaves out the
+ * sink. Updates whose repository cannot be resolved because the config
+ * cannot be read go to the retrier, like updates the sink failed on,
+ * and retried updates that a later update for their PID overtook on
+ * their way back to the lanes are dropped.
+ * Every sink has a resolver of its own.
+ */
+public class RepositoryResolver implements UpdateHandler {
+
+    private final Logger logger = Logger.getLogger(RepositoryResolver.class);
+
+    private final UpdaterMetrics metrics;
+
+    private final UpdateRouter router;
+
+    private final String sinkName;
+
+    private final SinkProgress progress;
+
+    private final UpdateRetrier retrier;
+
+    private final UpdateHandler next;
+
+    public RepositoryResolver(UpdaterMetrics metrics, UpdateRouter router, String sinkName,
+            SinkProgress progress, UpdateRetrier retrier, UpdateHandler next) {
+        this.metrics = metrics;
+        this.router = router;
+        this.sinkName = sinkName;
+        this.progress = progress;
+        this.retrier = retrier;
+        this.next = next;
+    }
+
+    public void handle(IndexUpdate update) {
+
+        // a later update for the PID may have overtaken the retry on its way back
+        if (update.getFailedAttempts() > 0 && !retrier.checkRetry(update))
+            return;
+
+        if (update.getRoute() == null)
+            update.setRoute(router.route(update.getMessage()));
+        UpdateRoute route = update.getRoute();
+        if (!route.isRoutedTo(sinkName)) {
+            metrics.ignored();
+            progress.abandoned(update);
+            update.markDone();
+            return;
+        }
+
+        if (update.getRepositoryName() != null) {
+            next.handle(update);
+            return;
+        }
+
+        URL repositoryUrl = null;
+        try {
+            repositoryUrl = new URL(update.getBaseUrl());
+        } catch (Exception e) {
+            metrics.urlError();
+            logger.error("Could not create URL from message base url"
+            		   + " because of exception: " + e.getMessage(), e);
+            repositoryUrl = null;
+        }
+
+        String repositoryName = "";
+        try {
+            Config config = Config.getCurrentConfig();
+            if(repositoryUrl != null) {
+                repositoryName = config.getRepositoryNameFromUrl(repositoryUrl);
+            }
+        } catch (ConfigException ce) {
+            logger.error("Unable to perform index update due to Exception: "+ ce.getMessage(), ce);
+            // retried or dead lettered as a config failure
+            retrier.failed(Collections.singletonList(update), ce);
+            return;
+        }
+        update.setRepositoryName(repositoryName);
+        next.handle(update);
+    }
+}
@@ -0,0 +1,120 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.Random;
+
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.errors.FedoraObjectNotFoundException;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+
+/**
+ * How often and after how long an update that failed in the sink is
+ * tried again, for one class of failure.
+ *
+ * The delay before the n-th retry is initialDelayMillis doubled n-1
+ * times, at most maxDelayMillis, with equal jitter: a random half of
+ * it is left out, so that updates that failed together do not all
+ * come back at the same moment.
+ */
+public class RetryPolicy {
+
+    /**
+     * Failures talking to Fedora or a downstream service, which are
+     * usually gone after a while.
+     */
+    public static final String REMOTE = "remote";
+
+    /**
+     * The object is not in the repository (any more).
+     */
+    public static final String NOT_FOUND = "notFound";
+
+    /**
+     * The configuration does not allow processing the update.
+     */
+    public static final String CONFIG = "config";
+
+    /**
+     * Runtime exceptions of the sink.
+     */
+    public static final String UNEXPECTED = "unexpected";
+
+    public static final String[] FAILURE_CLASSES = { REMOTE, NOT_FOUND, CONFIG, UNEXPECTED };
+
+    private final int maxAttempts;
+
+    private final long initialDelayMillis;
+
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxAttempts attempts in all, including the first, so 1
+     *        means the update is not retried
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @return the defaults for the failure class
+     */
+    public static RetryPolicy getDefault(String failureClass) {
+        if (REMOTE.equals(failureClass))
+            return new RetryPolicy(8, 1000, 300000);
+        if (UNEXPECTED.equals(failureClass))
+            return new RetryPolicy(3, 1000, 60000);
+        return new RetryPolicy(1, 1000, 60000);
+    }
+
+    /**
+     * @return the failure class of an exception thrown by a sink
+     */
+    public static String classify(Throwable failure) {
+        if (failure instanceof FedoraObjectNotFoundException)
+            return NOT_FOUND;
+        if (failure instanceof ConfigException)
+            return CONFIG;
+        if (failure instanceof PhaidraFedoraSubscriberException)
+            return REMOTE;
+        return UNEXPECTED;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * @return whether an update that has failed this many times is tried again
+     */
+    public boolean shouldRetry(int failedAttempts) {
+        return failedAttempts < maxAttempts;
+    }
+
+    /**
+     * @return the delay before trying again an update that has failed
+     *         this many times
+     */
+    public long getDelayMillis(int failedAttempts, Random random) {
+        long delay = initialDelayMillis;
+        for (int i=1; i<failedAttempts && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMillis);
+        long half = delay / 2;
+        return half + (half > 0 ? (long) (random.nextDouble() * (delay - half + 1)) : 0);
+    }
+
+    public String toString() {
+        return "RetryPolicy maxAttempts=" + maxAttempts + " initialDelayMillis=" + initialDelayMillis
+                + " maxDelayMillis=" + maxDelayMillis;
+    }
+}
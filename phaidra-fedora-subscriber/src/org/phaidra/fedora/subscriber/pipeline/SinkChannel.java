@@ -0,0 +1,203 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.SinkConfig;
+import org.phaidra.fedora.subscriber.UpdaterConfig;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.fedora.ObjectInfoCache;
+import org.phaidra.fedora.subscriber.guard.RepositoryGuards;
+import org.phaidra.fedora.subscriber.metrics.UpdaterMetrics;
+import org.phaidra.fedora.subscriber.sink.BatchSink;
+import org.phaidra.fedora.subscriber.sink.ConcurrentBatchSink;
+import org.phaidra.fedora.subscriber.sink.ObjectInfoSink;
+
+/**
+ * One sink of an updater with the stages that feed it: a repository
+ * resolver, a parker, a batcher and a retrier of its own, with its own
+ * circuit breakers, dead letter store and progress cursor.
+ *
+ * When the updater has more than one sink, every sink also has its own
+ * PID-keyed lanes with a bounded queue, set up from the
+ * pfsupdater.sink.NAME.* properties, so a slow or failing sink falls
+ * behind on its own while the others keep up. With the block overflow
+ * policy a sink whose queue is full holds up the lanes of the updater,
+ * and with it the other sinks; spill keeps them apart. The only sink
+ * of an updater runs on the lanes of the updater, as before.
+ */
+public class SinkChannel implements UpdateHandler {
+
+    private final Logger logger = Logger.getLogger(SinkChannel.class);
+
+    private final String sinkName;
+
+    private final String name;
+
+    private final SinkProgress progress = new SinkProgress();
+
+    private final UpdateRetrier retrier;
+
+    private final UpdateBatcher batcher;
+
+    private final UpdateParker parker;
+
+    private final UpdateExecutor executor;
+
+    private final UpdateHandler entry;
+
+    /**
+     * @param ownLanes whether the sink gets lanes of its own, or runs on
+     *        the lanes of the updater
+     */
+    public SinkChannel(UpdaterConfig updaterConfig, SinkConfig sinkConfig, boolean ownLanes,
+            UpdaterMetrics metrics, UpdateRouter router) throws IOException, ConfigException {
+        String updaterName = updaterConfig.getUpdaterName();
+        sinkName = sinkConfig.getSinkName();
+        boolean defaultSink = UpdaterConfig.DEFAULT_SINK.equals(sinkName);
+        // the default sink keeps the thread and metric names it had as the only sink
+        name = defaultSink ? updaterName : updaterName + "." + sinkName;
+        DeadLetterStore deadLetters = sinkConfig.getDeadLetterDir() == null ? null
+                : new DeadLetterStore(sinkConfig.getDeadLetterDir());
+        retrier = new UpdateRetrier(name, updaterConfig.getRetryPolicies(), deadLetters, progress);
+        BatchSink sink;
+        try {
+            sink = createSink(updaterName, sinkConfig);
+        } catch (ConfigException ce) {
+            retrier.shutdown();
+            throw ce;
+        }
+        RepositoryGuards guards = new RepositoryGuards("sink." + name, defaultSink
+                ? "sink of updater " + updaterName : "sink " + sinkName + " of updater " + updaterName,
+                sinkConfig.getGuardWaitMillis());
+        boolean concurrent = UpdaterConfig.EXECUTION_VIRTUAL.equals(updaterConfig.getExecutionMode());
+        if (concurrent && !(sink instanceof ConcurrentBatchSink)) {
+            logger.warn("Sink " + sinkConfig.getSinkClassName() + " of " + name + " is not a "
+                    + ConcurrentBatchSink.class.getName() + ", its updates are batched");
+            concurrent = false;
+        }
+        batcher = new UpdateBatcher(name,
+                sinkConfig.getBatchSize(),
+                sinkConfig.getBatchLatencyMillis(),
+                sink,
+                metrics,
+                retrier,
+                guards,
+                progress,
+                concurrent);
+        parker = new UpdateParker(name, guards, batcher);
+        batcher.setParker(parker);
+        RepositoryResolver resolver = new RepositoryResolver(metrics, router, sinkName, progress, retrier, parker);
+        if (ownLanes) {
+            try {
+                executor = UpdaterPipeline.createExecutor(name,
+                        updaterConfig.getExecutionMode(),
+                        sinkConfig.getLanes(),
+                        sinkConfig.getQueueDepth(),
+                        sinkConfig.getOverflowPolicy(),
+                        sinkConfig.getSpillDir(),
+                        updaterConfig.getPriorityPolicy(),
+                        resolver);
+            } catch (IOException ioe) {
+                parker.shutdown();
+                batcher.shutdown();
+                retrier.shutdown();
+                throw ioe;
+            }
+            retrier.setTarget(executor);
+            entry = executor;
+        } else {
+            executor = null;
+            entry = resolver;
+        }
+    }
+
+    /**
+     * Hands an update to the sink's lanes, or straight to its resolver
+     * when it runs on the lanes of the updater.
+     */
+    public void handle(IndexUpdate update) {
+        // retried updates have been counted when they were first handed over
+        if (update.getFailedAttempts() == 0) {
+            progress.offered(update);
+            retrier.supersede(update);
+        }
+        entry.handle(update);
+    }
+
+    public String getSinkName() {
+        return sinkName;
+    }
+
+    public SinkProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return the lanes of the sink, or null if it runs on the lanes of
+     *         the updater
+     */
+    public UpdateExecutor getExecutor() {
+        return executor;
+    }
+
+    public UpdateBatcher getBatcher() {
+        return batcher;
+    }
+
+    public UpdateParker getParker() {
+        return parker;
+    }
+
+    public UpdateRetrier getRetrier() {
+        return retrier;
+    }
+
+    /**
+     * @return the dead letter store, or null if the sink has none
+     */
+    public DeadLetterStore getDeadLetterStore() {
+        return retrier.getDeadLetters();
+    }
+
+    /**
+     * @return the updates queued on the lanes of the sink
+     */
+    public int getQueueDepth() {
+        return executor == null ? 0 : executor.getQueueDepth();
+    }
+
+    /**
+     * Drops the pending retries.
+     */
+    public void shutdownRetrier() {
+        retrier.shutdown();
+    }
+
+    /**
+     * Waits up to timeoutMillis per lane for the lanes of the sink to
+     * finish and hands the last batch to the sink.
+     */
+    public void shutdown(long timeoutMillis) {
+        if (executor != null)
+            executor.shutdown(timeoutMillis);
+        parker.shutdown();
+        batcher.shutdown();
+    }
+
+    private static BatchSink createSink(String updaterName, SinkConfig sinkConfig) throws ConfigException {
+        String sinkClassName = sinkConfig.getSinkClassName();
+        BatchSink sink;
+        try {
+            sink = (BatchSink) Class.forName(sinkClassName).newInstance();
+        } catch (Exception e) {
+            throw new ConfigException("Could not create sink " + sinkConfig.getSinkName() + " " + sinkClassName
+                    + " for updater " + updaterName, e);
+        }
+        sink.configure(updaterName, sinkConfig.toProperties());
+        if (sink instanceof ObjectInfoSink && ((ObjectInfoSink) sink).usesObjectInfo())
+            ((ObjectInfoSink) sink).setObjectInfoSource(ObjectInfoCache.getInstance());
+        return sink;
+    }
+}
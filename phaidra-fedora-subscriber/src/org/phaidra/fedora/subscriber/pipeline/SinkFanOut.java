@@ -0,0 +1,54 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.phaidra.fedora.subscriber.metrics.UpdaterMetrics;
+
+/**
+ * Hands each update to the sinks its route sends it to, a copy to
+ * each when there are several, so that every sink sees every update
+ * meant for it while the message was parsed only once. Runs on the
+ * lanes of the updater.
+ */
+public class SinkFanOut implements UpdateHandler {
+
+    private final UpdateRouter router;
+
+    private final List<SinkChannel> channels;
+
+    private final UpdaterMetrics metrics;
+
+    public SinkFanOut(UpdateRouter router, List<SinkChannel> channels, UpdaterMetrics metrics) {
+        this.router = router;
+        this.channels = channels;
+        this.metrics = metrics;
+    }
+
+    public void handle(IndexUpdate update) {
+        // the sink's resolver takes care of the route
+        if (channels.size() == 1) {
+            channels.get(0).handle(update);
+            return;
+        }
+        if (update.getRoute() == null)
+            update.setRoute(router.route(update.getMessage()));
+        UpdateRoute route = update.getRoute();
+        List<SinkChannel> targets = new ArrayList<SinkChannel>(channels.size());
+        for (int i=0; i<channels.size(); i++) {
+            if (route.isRoutedTo(channels.get(i).getSinkName()))
+                targets.add(channels.get(i));
+        }
+        if (targets.isEmpty()) {
+            metrics.ignored();
+            update.markDone();
+        } else if (targets.size() == 1) {
+            targets.get(0).handle(update);
+        } else {
+            IndexUpdate[] copies = update.copies(targets.size());
+            for (int i=0; i<copies.length; i++) {
+                targets.get(i).handle(copies[i]);
+            }
+        }
+    }
+}
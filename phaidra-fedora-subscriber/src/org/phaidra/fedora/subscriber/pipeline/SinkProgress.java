@@ -0,0 +1,91 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress cursor of one sink: how many updates were handed to it
+ * and how many it has finished, processed or given up on, and how far
+ * behind the newest update it is.
+ *
+ * The lag is the number of updates handed to the sink and not finished.
+ * The lag in milliseconds is the time between the receipt of the newest
+ * update handed to the sink and that of the newest update it has
+ * processed, 0 when it has caught up. The times are updated without
+ * locking, so they may be off by a concurrent update.
+ */
+public class SinkProgress {
+
+    private final AtomicLong offered = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong abandoned = new AtomicLong();
+
+    private volatile long offeredMillis = 0;
+
+    private volatile long cursorMillis = 0;
+
+    /**
+     * Counts an update handed to the sink.
+     */
+    public void offered(IndexUpdate update) {
+        long receivedMillis = update.getReceivedMillis();
+        if (receivedMillis > offeredMillis)
+            offeredMillis = receivedMillis;
+        // until the first update is processed, the cursor is at the first one handed over
+        if (cursorMillis == 0)
+            cursorMillis = receivedMillis;
+        offered.incrementAndGet();
+    }
+
+    /**
+     * Counts an update the sink has processed.
+     */
+    public void completed(IndexUpdate update) {
+        long receivedMillis = update.getReceivedMillis();
+        if (receivedMillis > cursorMillis)
+            cursorMillis = receivedMillis;
+        completed.incrementAndGet();
+    }
+
+    /**
+     * Counts an update that will not reach the sink, because it was
+     * dead lettered, dropped, superseded by a later update for its PID
+     * while waiting to be retried or ignored by its route.
+     */
+    public void abandoned(IndexUpdate update) {
+        abandoned.incrementAndGet();
+    }
+
+    public long getOfferedCount() {
+        return offered.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getAbandonedCount() {
+        return abandoned.get();
+    }
+
+    public long getLag() {
+        // read the finished counts first, so the lag is never negative
+        long finished = completed.get() + abandoned.get();
+        return Math.max(0, offered.get() - finished);
+    }
+
+    public long getLagMillis() {
+        if (getLag() == 0)
+            return 0;
+        return Math.max(0, offeredMillis - cursorMillis);
+    }
+
+    /**
+     * @return the receive time of the newest update the sink has
+     *         processed, 0 if none
+     */
+    public long getCursorMillis() {
+        return completed.get() == 0 ? 0 : cursorMillis;
+    }
+}
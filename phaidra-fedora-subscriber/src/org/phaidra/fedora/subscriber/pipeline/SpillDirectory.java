@@ -0,0 +1,132 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Overflow store for the SPILL policy of a worker pool.
+ *
+ * Each spilled update is written to its own file, named by an increasing
+ * sequence number so that updates come back in the order they were
+ * spilled. Files left over from a previous run are picked up again.
+ *
+ * An update read back keeps the spool entry of the update that was
+ * spilled, so the message spool holds it until the sink is done with
+ * it. Its file is only deleted once the worker has handled it, so an
+ * update taken from the spill and lost in a crash is read back again.
+ */
+public class SpillDirectory {
+
+    private static final String SUFFIX = ".spill";
+
+    private final Logger logger = Logger.getLogger(SpillDirectory.class);
+
+    private final File directory;
+
+    private final LinkedList<File> files = new LinkedList<File>();
+
+    // the spool state of the updates spilled in this run, by file
+    private final Map<File, IndexUpdate.SpoolState> spoolStates = new HashMap<File, IndexUpdate.SpoolState>();
+
+    private long nextSequence = 0;
+
+    public SpillDirectory(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("spill directory " + directory + " could not be created");
+        }
+        File[] existing = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (existing != null && existing.length > 0) {
+            Arrays.sort(existing);
+            for (int i=0; i<existing.length; i++) {
+                files.add(existing[i]);
+            }
+            String lastName = existing[existing.length-1].getName();
+            nextSequence = Long.parseLong(lastName.substring(0, lastName.length()-SUFFIX.length())) + 1;
+            logger.info("Found " + existing.length + " spilled updates in " + directory);
+        }
+    }
+
+    /**
+     * @return whether there are spilled updates left to read back
+     */
+    public synchronized boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public synchronized void write(IndexUpdate update) throws IOException {
+        File file = new File(directory, String.format("%019d", Long.valueOf(nextSequence++)) + SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            UpdateCodec.write(out, update);
+        } finally {
+            out.close();
+        }
+        files.add(file);
+        spoolStates.put(file, update.getSpoolState());
+    }
+
+    /**
+     * Returns the oldest spilled update without removing it,
+     * or null if there is none.
+     */
+    public synchronized IndexUpdate peek() throws IOException {
+        File file = files.peek();
+        if (file == null)
+            return null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        IndexUpdate update;
+        try {
+            update = UpdateCodec.read(in);
+        } finally {
+            in.close();
+        }
+        IndexUpdate.SpoolState spoolState = spoolStates.get(file);
+        if (spoolState != null)
+            update.setSpoolState(spoolState);
+        return update;
+    }
+
+    /**
+     * Takes the oldest spilled update off the list of updates to read
+     * back. Its file stays until delete() is called.
+     *
+     * @return the file of the update, or null if there is none
+     */
+    public synchronized File remove() {
+        File file = files.poll();
+        if (file != null)
+            spoolStates.remove(file);
+        return file;
+    }
+
+    /**
+     * Deletes the file of an update taken off with remove(), once the
+     * update has been handled.
+     */
+    public void delete(File file) {
+        if (!file.delete())
+            logger.warn("Could not delete spill file " + file);
+    }
+}
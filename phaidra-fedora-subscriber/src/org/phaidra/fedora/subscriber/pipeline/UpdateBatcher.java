@@ -0,0 +1,259 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.errors.RepositoryUnavailableException;
+import org.phaidra.fedora.subscriber.guard.RepositoryGuard;
+import org.phaidra.fedora.subscriber.guard.RepositoryGuards;
+import org.phaidra.fedora.subscriber.metrics.UpdaterMetrics;
+import org.phaidra.fedora.subscriber.sink.BatchSink;
+
+/**
+ * Collects resolved updates into batches for a BatchSink.
+ *
+ * A batch is handed to the sink when it holds maxSize updates, on the
+ * lane thread that filled it, or when its oldest update has waited
+ * maxLatencyMillis, on the batcher's timer thread. Batches are handed
+ * to the sink one at a time and in the order they were filled. The
+ * updates of a batch are handed over per repository, each part through
+ * the sink RepositoryGuard of its repository, so that a repository
+ * whose backend fails does not fail the updates of the others, and its
+ * breaker opens on its own failures only. The updates the sink fails on
+ * are handed to the retrier.
+ *
+ * A concurrent batcher does not batch: every update is handed to the
+ * sink on its own, on the thread that handles it, which with
+ * pfsupdater.executionMode=virtual is the virtual thread of the update.
+ * It is only used for a ConcurrentBatchSink.
+ */
+public class UpdateBatcher implements UpdateHandler {
+
+    private final Logger logger = Logger.getLogger(UpdateBatcher.class);
+
+    private final String name;
+
+    private final int maxSize;
+
+    private final long maxLatencyMillis;
+
+    private final BatchSink sink;
+
+    private final UpdaterMetrics metrics;
+
+    private final UpdateRetrier retrier;
+
+    private final RepositoryGuards guards;
+
+    private final SinkProgress progress;
+
+    private final boolean concurrent;
+
+    private volatile UpdateHandler parker = null;
+
+    private final Object flushLock = new Object();
+
+    private List<IndexUpdate> batch;
+
+    private long batchStartMillis = 0;
+
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param concurrent whether every update is handed to the sink on
+     *        its own, on the calling thread, instead of in batches
+     */
+    public UpdateBatcher(String name, int maxSize, long maxLatencyMillis, BatchSink sink,
+            UpdaterMetrics metrics, UpdateRetrier retrier, RepositoryGuards guards, SinkProgress progress,
+            boolean concurrent) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.sink = sink;
+        this.metrics = metrics;
+        this.retrier = retrier;
+        this.guards = guards;
+        this.progress = progress;
+        this.concurrent = concurrent;
+        this.batch = new ArrayList<IndexUpdate>(maxSize);
+        if (concurrent) {
+            timer = null;
+            return;
+        }
+        long tickMillis = Math.max(5, maxLatencyMillis / 4);
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("pfs-" + name + "-batcher"));
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushIfDue();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void handle(IndexUpdate update) {
+        if (concurrent) {
+            String repositoryName = update.getRepositoryName() == null ? "" : update.getRepositoryName();
+            process(repositoryName, Collections.singletonList(update));
+            return;
+        }
+        boolean full;
+        synchronized (this) {
+            if (batch.isEmpty())
+                batchStartMillis = System.currentTimeMillis();
+            batch.add(update);
+            full = batch.size() >= maxSize;
+        }
+        if (full)
+            flush();
+    }
+
+    /**
+     * Sets where the updates of a repository go when its breaker is
+     * found open as they are handed to the sink.
+     */
+    public void setParker(UpdateHandler parker) {
+        this.parker = parker;
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public synchronized int getPendingCount() {
+        return batch.size();
+    }
+
+    /**
+     * Hands the last batch to the sink and closes the sink.
+     */
+    public void shutdown() {
+        if (timer != null)
+            timer.shutdownNow();
+        flush();
+        sink.close();
+    }
+
+    private void flushIfDue() {
+        boolean due;
+        synchronized (this) {
+            due = !batch.isEmpty()
+                    && System.currentTimeMillis() - batchStartMillis >= maxLatencyMillis;
+        }
+        if (due)
+            flush();
+    }
+
+    private void failed(List<IndexUpdate> updates, Throwable failure) {
+        failedCount.addAndGet(updates.size());
+        for (int i=0; i<updates.size(); i++) {
+            metrics.failed(updates.get(i).getRepositoryName());
+        }
+        retrier.failed(updates, failure);
+    }
+
+    private void flush() {
+        // Taking the batch while holding flushLock keeps the sink calls in batch order
+        synchronized (flushLock) {
+            List<IndexUpdate> updates;
+            synchronized (this) {
+                if (batch.isEmpty())
+                    return;
+                updates = batch;
+                batch = new ArrayList<IndexUpdate>(maxSize);
+            }
+            // LinkedHashMap: the repositories in the order of their first update
+            Map<String, List<IndexUpdate>> byRepository = new LinkedHashMap<String, List<IndexUpdate>>();
+            for (int i=0; i<updates.size(); i++) {
+                IndexUpdate update = updates.get(i);
+                String repositoryName = update.getRepositoryName() == null ? "" : update.getRepositoryName();
+                List<IndexUpdate> repositoryUpdates = byRepository.get(repositoryName);
+                if (repositoryUpdates == null) {
+                    repositoryUpdates = new ArrayList<IndexUpdate>();
+                    byRepository.put(repositoryName, repositoryUpdates);
+                }
+                repositoryUpdates.add(update);
+            }
+            Iterator<Map.Entry<String, List<IndexUpdate>>> it = byRepository.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, List<IndexUpdate>> entry = it.next();
+                process(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void process(String repositoryName, List<IndexUpdate> updates) {
+        long startMillis = System.currentTimeMillis();
+        try {
+            RepositoryGuard guard = guards.getGuard(repositoryName);
+            long start = 0;
+            if (guard != null) {
+                try {
+                    start = guard.acquire();
+                } catch (RepositoryUnavailableException rue) {
+                    UpdateHandler handler = parker;
+                    if (handler == null || !guard.isOpen())
+                        throw rue;
+                    if (logger.isDebugEnabled())
+                        logger.debug("Parking " + updates.size() + " updates of repository " + repositoryName
+                                + ": " + rue.getMessage());
+                    for (int i=0; i<updates.size(); i++) {
+                        handler.handle(updates.get(i));
+                    }
+                    return;
+                }
+            }
+            boolean healthy = true;
+            try {
+                sink.process(updates);
+            } catch (PhaidraFedoraSubscriberException pfse) {
+                // only failures of the backend count against it
+                healthy = !RetryPolicy.REMOTE.equals(RetryPolicy.classify(pfse));
+                throw pfse;
+            } finally {
+                if (guard != null)
+                    guard.release(start, healthy);
+            }
+            batchCount.incrementAndGet();
+            long doneMillis = System.currentTimeMillis();
+            metrics.batchProcessed(doneMillis - startMillis);
+            for (int i=0; i<updates.size(); i++) {
+                IndexUpdate update = updates.get(i);
+                update.markDone();
+                progress.completed(update);
+                long timestampMillis = update.getMessage().getTimestampMillis();
+                long queueMillis = startMillis - update.getReceivedMillis();
+                long lagMillis = timestampMillis < 0 ? -1 : doneMillis - timestampMillis;
+                metrics.processed(update.getRepositoryName(), queueMillis, lagMillis);
+                if (update.isInteractive())
+                    metrics.interactiveProcessed(queueMillis, lagMillis);
+            }
+        } catch (PhaidraFedoraSubscriberException pfse) {
+            logger.error("Sink of " + name + " failed to process a batch of " + updates.size()
+                    + " updates of repository " + repositoryName + ": " + pfse.getMessage(), pfse);
+            failed(updates, pfse);
+        } catch (RuntimeException re) {
+            logger.error("Unexpected exception in sink of " + name + " processing a batch of "
+                    + updates.size() + " updates of repository " + repositoryName, re);
+            failed(updates, re);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the updates for one PID over a time window and passes
+ * them on as a single merged update.
+ *
+ * A Fedora ingest produces a burst of messages for the same object
+ * (ingest, several addDatastream, modifyObject); only one index
+ * update is needed for all of them. The window starts with the first
+ * message for a PID, so no update is held back longer than the window.
+ * If more than maxPending PIDs are waiting, updates for new PIDs are
+ * passed on immediately.
+ *
+ * Only updates with the same route are merged, since routes can send
+ * the messages of one object to different sinks or with different
+ * actions. An update whose route differs from that of the pending
+ * update of its PID passes the pending update on and starts a new
+ * window.
+ */
+public class UpdateCoalescer implements UpdateHandler {
+
+    private final Logger logger = Logger.getLogger(UpdateCoalescer.class);
+
+    private final String name;
+
+    private final long windowMillis;
+
+    private final int maxPending;
+
+    private final UpdateHandler next;
+
+    // insertion order is deadline order, since every PID waits the same window
+    private final LinkedHashMap<String, PendingUpdate> pending =
+            new LinkedHashMap<String, PendingUpdate>();
+
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong mergedCount = new AtomicLong();
+
+    private final AtomicLong flushedCount = new AtomicLong();
+
+    public UpdateCoalescer(String name, long windowMillis, int maxPending, UpdateHandler next) {
+        this.name = name;
+        this.windowMillis = windowMillis;
+        this.maxPending = maxPending;
+        this.next = next;
+        long tickMillis = Math.max(10, windowMillis / 4);
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("pfs-" + name + "-coalescer"));
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushDue();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        if (logger.isInfoEnabled())
+            logger.info("Coalescer " + name + " started with a window of " + windowMillis + " ms");
+    }
+
+    /**
+     * Adds the update to the pending update of its PID, or starts a new
+     * window for the PID.
+     */
+    public void handle(IndexUpdate update) {
+        synchronized (pending) {
+            PendingUpdate pendingUpdate = pending.get(update.getPid());
+            if (pendingUpdate != null) {
+                if (pendingUpdate.update.getRoute() == update.getRoute()) {
+                    // the later message is spooled too, so the earlier one is done
+                    pendingUpdate.update.markDone();
+                    pendingUpdate.update = pendingUpdate.update.merge(update);
+                    mergedCount.incrementAndGet();
+                    return;
+                }
+                // the merged update would miss the sinks or action of the earlier route
+                pending.remove(update.getPid());
+                flushedCount.incrementAndGet();
+                next.handle(pendingUpdate.update);
+            }
+            if (pending.size() < maxPending) {
+                pending.put(update.getPid(),
+                        new PendingUpdate(update, System.currentTimeMillis() + windowMillis));
+                return;
+            }
+            // Passed on inside the lock, so it cannot overtake an
+            // update for the same PID that is just being flushed.
+            flushedCount.incrementAndGet();
+            next.handle(update);
+        }
+    }
+
+    /**
+     * The number of messages that were merged into another update
+     * instead of being processed on their own.
+     */
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    public long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Stops the window timer and passes on everything still pending.
+     */
+    public void shutdown() {
+        flusher.shutdownNow();
+        flush(Long.MAX_VALUE);
+    }
+
+    private void flushDue() {
+        try {
+            flush(System.currentTimeMillis());
+        } catch (RuntimeException re) {
+            logger.error("Unexpected exception flushing coalescer " + name, re);
+        }
+    }
+
+    private void flush(long now) {
+        synchronized (pending) {
+            Iterator<PendingUpdate> it = pending.values().iterator();
+            while (it.hasNext()) {
+                PendingUpdate pendingUpdate = it.next();
+                if (pendingUpdate.deadline > now)
+                    break;
+                it.remove();
+                flushedCount.incrementAndGet();
+                if (logger.isDebugEnabled() && pendingUpdate.update.getMessageCount() > 1)
+                    logger.debug("Coalesced " + pendingUpdate.update.getMessageCount()
+                            + " messages into " + pendingUpdate.update);
+                next.handle(pendingUpdate.update);
+            }
+        }
+    }
+
+    private static class PendingUpdate {
+
+        IndexUpdate update;
+
+        final long deadline;
+
+        PendingUpdate(IndexUpdate update, long deadline) {
+            this.update = update;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+
+/**
+ * The binary form of an IndexUpdate, as written to the spill
+ * directory and the message spool.
+ */
+final class UpdateCodec {
+
+    private UpdateCodec() {
+    }
+
+    static void write(DataOutput out, IndexUpdate update) throws IOException {
+        out.writeUTF(update.getClientId());
+        out.writeLong(update.getReceivedMillis());
+        out.writeInt(update.getMessageCount());
+        ApimMessage message = update.getMessage();
+        writeNullableUTF(out, message.getPid());
+        writeNullableUTF(out, message.getMethodName());
+        writeNullableUTF(out, message.getBaseUrl());
+        writeNullableUTF(out, message.getDsId());
+        writeNullableUTF(out, message.getTimestamp());
+        byte[] text = update.getMessageText().getBytes("UTF-8");
+        out.writeInt(text.length);
+        out.write(text);
+    }
+
+    static IndexUpdate read(DataInput in) throws IOException {
+        String clientId = in.readUTF();
+        long receivedMillis = in.readLong();
+        int messageCount = in.readInt();
+        ApimMessage message = new ApimMessage(readNullableUTF(in), readNullableUTF(in),
+                readNullableUTF(in), readNullableUTF(in), readNullableUTF(in));
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        return new IndexUpdate(clientId, new String(text, "UTF-8"), message,
+                receivedMillis, messageCount);
+    }
+
+    private static void writeNullableUTF(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullableUTF(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
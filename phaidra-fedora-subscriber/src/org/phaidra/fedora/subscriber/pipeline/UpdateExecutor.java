@@ -0,0 +1,32 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+/**
+ * Runs updates off the thread that submits them, keeping the updates
+ * of one PID in arrival order while different PIDs run concurrently.
+ * KeyedExecutor runs them on a fixed number of lanes, PerUpdateExecutor
+ * on a virtual thread each.
+ */
+public interface UpdateExecutor extends UpdateHandler {
+
+    void submit(IndexUpdate update);
+
+    /**
+     * @return the number of platform threads the updates run on
+     */
+    int getLaneCount();
+
+    /**
+     * @return the updates submitted and not yet processed
+     */
+    int getQueueDepth();
+
+    long getDroppedCount();
+
+    String getName();
+
+    /**
+     * Stops accepting updates and waits up to timeoutMillis for the
+     * submitted ones to be processed.
+     */
+    void shutdown(long timeoutMillis);
+}
@@ -0,0 +1,11 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+/**
+ * Callback through which a pipeline stage hands an update on
+ * to the code that processes it.
+ */
+public interface UpdateHandler {
+
+    void handle(IndexUpdate update);
+
+}
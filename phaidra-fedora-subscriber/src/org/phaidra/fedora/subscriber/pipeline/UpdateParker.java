@@ -0,0 +1,167 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.guard.RepositoryGuard;
+import org.phaidra.fedora.subscriber.guard.RepositoryGuards;
+
+/**
+ * Holds back the resolved updates of repositories whose sink circuit
+ * breaker is open, so that they wait instead of failing one after the
+ * other, and passes them on in arrival order once the breaker lets
+ * calls through again. Updates of the other repositories pass
+ * straight on. Until the breaker has closed again after its trial
+ * call, parked updates are passed on one per check.
+ *
+ * While updates of a repository are parked, later updates of that
+ * repository are parked behind them, so updates to one PID keep their
+ * order. Parked updates stay in the message spool, the ones left when
+ * the updater stops are processed after the next start.
+ */
+public class UpdateParker implements UpdateHandler {
+
+    private static final long CHECK_MILLIS = 250;
+
+    private final Logger logger = Logger.getLogger(UpdateParker.class);
+
+    private final String name;
+
+    private final RepositoryGuards guards;
+
+    private final UpdateHandler next;
+
+    // by repository name, only repositories with parked updates
+    private final Map<String, LinkedList<IndexUpdate>> parked = new HashMap<String, LinkedList<IndexUpdate>>();
+
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong parkedCount = new AtomicLong();
+
+    public UpdateParker(String name, RepositoryGuards guards, UpdateHandler next) {
+        this.name = name;
+        this.guards = guards;
+        this.next = next;
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("pfs-" + name + "-parker"));
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                unpark();
+            }
+        }, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void handle(IndexUpdate update) {
+        String repositoryName = update.getRepositoryName();
+        RepositoryGuard guard = getGuard(repositoryName);
+        if (guard != null) {
+            synchronized (this) {
+                LinkedList<IndexUpdate> queue = parked.get(repositoryName);
+                if (queue != null || guard.isOpen()) {
+                    if (queue == null) {
+                        queue = new LinkedList<IndexUpdate>();
+                        parked.put(repositoryName, queue);
+                        logger.warn("Sink of " + name + " is unavailable for repository " + repositoryName
+                                + ", parking its updates");
+                    }
+                    queue.add(update);
+                    parkedCount.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        next.handle(update);
+    }
+
+    /**
+     * @return the updates parked for the repository
+     */
+    public synchronized int getParkedCount(String repositoryName) {
+        LinkedList<IndexUpdate> queue = parked.get(repositoryName);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return the updates parked for all repositories
+     */
+    public synchronized int getParkedCount() {
+        int count = 0;
+        Iterator<LinkedList<IndexUpdate>> it = parked.values().iterator();
+        while (it.hasNext()) {
+            count += it.next().size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the updates parked since the pipeline started
+     */
+    public long getTotalParkedCount() {
+        return parkedCount.get();
+    }
+
+    /**
+     * Stops passing on parked updates.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        int count = getParkedCount();
+        if (count > 0)
+            logger.warn("Parker of " + name + " shut down with " + count + " updates parked");
+    }
+
+    private void unpark() {
+        List<String> repositoryNames;
+        synchronized (this) {
+            repositoryNames = new ArrayList<String>(parked.keySet());
+        }
+        for (int i=0; i<repositoryNames.size(); i++) {
+            String repositoryName = repositoryNames.get(i);
+            RepositoryGuard guard = getGuard(repositoryName);
+            int count = 0;
+            while (!Thread.currentThread().isInterrupted() && (guard == null || !guard.isOpen())) {
+                IndexUpdate update;
+                synchronized (this) {
+                    LinkedList<IndexUpdate> queue = parked.get(repositoryName);
+                    update = queue.getFirst();
+                }
+                // still parked while it is passed on, so later updates queue behind it
+                next.handle(update);
+                count++;
+                synchronized (this) {
+                    LinkedList<IndexUpdate> queue = parked.get(repositoryName);
+                    queue.removeFirst();
+                    if (queue.isEmpty()) {
+                        parked.remove(repositoryName);
+                        break;
+                    }
+                }
+                // until the trial call has closed the breaker, one update at a time
+                if (guard != null && !guard.isClosed())
+                    break;
+            }
+            if (count > 0 && logger.isInfoEnabled())
+                logger.info("Passed on " + count + " parked updates of repository " + repositoryName
+                        + " to the sink of " + name);
+        }
+    }
+
+    private RepositoryGuard getGuard(String repositoryName) {
+        try {
+            return guards.getGuard(repositoryName);
+        } catch (ConfigException ce) {
+            return null;
+        }
+    }
+}
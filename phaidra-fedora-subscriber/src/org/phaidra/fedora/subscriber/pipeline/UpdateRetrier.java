@@ -0,0 +1,297 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides what happens to updates a sink failed to process.
+ *
+ * The failure is classified with RetryPolicy.classify. While the
+ * policy of its class allows another attempt, the update is put back
+ * on its lane after the policy's delay; the delay is waited out on the
+ * retrier's timer thread, never on a lane. Updates that are not tried
+ * again go to the dead letter store, or are dropped with an error if
+ * the updater has none.
+ *
+ * A retry handed back after its delay must not overtake the updates
+ * that reached the sink for its PID in the meantime, and re-index a
+ * stale object or bring back a purged one. As in the coalescer, the
+ * later message wins: an update for a PID with a retry pending, whether
+ * new or failed itself, supersedes the retry, which is dropped. There
+ * is at most one retry pending per PID. A retry already handed back to
+ * the lanes can still be overtaken by a later update that reaches the
+ * sink before it leaves its lane, so the resolver checks it again with
+ * checkRetry before it is processed.
+ *
+ * An update stays in the message spool until it has been processed,
+ * superseded or dead lettered, so pending retries survive a restart if
+ * there is a spool.
+ */
+public class UpdateRetrier {
+
+    private final Logger logger = Logger.getLogger(UpdateRetrier.class);
+
+    private final String name;
+
+    private final Map<String, RetryPolicy> policies;
+
+    private final DeadLetterStore deadLetters;
+
+    private final SinkProgress progress;
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final Random random = new Random();
+
+    // the retry pending for each PID
+    private final Map<String, PendingRetry> pending = new HashMap<String, PendingRetry>();
+
+    // the retry handed back to the lanes for each PID, guarded by pending
+    private final Map<String, PendingRetry> handedBack = new HashMap<String, PendingRetry>();
+
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    private final AtomicLong deadLetteredCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong supersededCount = new AtomicLong();
+
+    private volatile UpdateHandler target = null;
+
+    /**
+     * @param policies the retry policy of each failure class
+     * @param deadLetters where updates go that are not tried again, may be null
+     * @param progress counts the updates that are not tried again
+     */
+    public UpdateRetrier(String name, Map<String, RetryPolicy> policies, DeadLetterStore deadLetters,
+            SinkProgress progress) {
+        this.name = name;
+        this.policies = policies;
+        this.deadLetters = deadLetters;
+        this.progress = progress;
+        timer = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1,
+                new NamedThreadFactory("pfs-" + name + "-retry"));
+    }
+
+    /**
+     * Sets where retried updates are handed to, the lanes of the sink.
+     */
+    public void setTarget(UpdateHandler target) {
+        this.target = target;
+    }
+
+    /**
+     * Called by the batcher with the updates of a batch the sink failed on.
+     */
+    public void failed(List<IndexUpdate> updates, Throwable failure) {
+        String failureClass = RetryPolicy.classify(failure);
+        RetryPolicy policy = policies.get(failureClass);
+        if (policy == null)
+            policy = RetryPolicy.getDefault(failureClass);
+        for (int i=0; i<updates.size(); i++) {
+            IndexUpdate update = updates.get(i);
+            int failedAttempts = update.failedAttempt();
+            if (policy.shouldRetry(failedAttempts)) {
+                schedule(update, policy.getDelayMillis(failedAttempts, random));
+            } else {
+                supersede(update);
+                deadLetter(update, failureClass, failure.toString());
+            }
+        }
+    }
+
+    /**
+     * Called with every update that reaches the sink for the first
+     * time. Drops the retry pending for its PID, if any, since the
+     * update supersedes it.
+     */
+    public void supersede(IndexUpdate update) {
+        PendingRetry retry;
+        synchronized (pending) {
+            if (pending.isEmpty() && handedBack.isEmpty())
+                return;
+            retry = pending.remove(update.getPid());
+            // dropped when it leaves its lane
+            PendingRetry inLane = handedBack.get(update.getPid());
+            if (inLane != null)
+                inLane.superseded = true;
+        }
+        if (retry != null)
+            superseded(retry);
+    }
+
+    /**
+     * Called with a retried update before it is processed. Returns
+     * false, and drops the update, if a later update for its PID reached
+     * the sink after the retry was handed back to the lanes.
+     */
+    public boolean checkRetry(IndexUpdate update) {
+        PendingRetry retry;
+        synchronized (pending) {
+            retry = handedBack.remove(update.getPid());
+        }
+        if (retry == null || !retry.superseded)
+            return true;
+        supersededCount.incrementAndGet();
+        progress.abandoned(update);
+        update.markDone();
+        if (logger.isDebugEnabled())
+            logger.debug("Retry superseded by a later update for its PID: " + update);
+        return false;
+    }
+
+    public DeadLetterStore getDeadLetters() {
+        return deadLetters;
+    }
+
+    /**
+     * @return the updates waiting to be tried again
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    public long getDeadLetteredCount() {
+        return deadLetteredCount.get();
+    }
+
+    /**
+     * @return the updates that were not tried again and could not be dead lettered
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the pending retries dropped because a later update for
+     *         their PID reached the sink
+     */
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    /**
+     * Drops the pending retries. Updates in the message spool are
+     * processed again when the updater is started the next time.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        int count;
+        synchronized (pending) {
+            count = pending.size();
+            pending.clear();
+            handedBack.clear();
+        }
+        if (count > 0)
+            logger.warn("Retrier of " + name + " shut down with " + count + " updates waiting to be retried");
+    }
+
+    private void schedule(IndexUpdate update, long delayMillis) {
+        final PendingRetry retry = new PendingRetry(update);
+        PendingRetry previous;
+        synchronized (pending) {
+            try {
+                retry.future = timer.schedule(new Runnable() {
+                    public void run() {
+                        retry(retry);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                logger.warn("Retrier of " + name + " is shut down, update not retried: " + update);
+                return;
+            }
+            // the earlier failed update for the PID is superseded by this one
+            previous = pending.put(update.getPid(), retry);
+            PendingRetry inLane = handedBack.get(update.getPid());
+            if (inLane != null && inLane.update != update)
+                inLane.superseded = true;
+        }
+        if (previous != null)
+            superseded(previous);
+        if (logger.isDebugEnabled())
+            logger.debug("Retrying in " + delayMillis + " ms after " + update.getFailedAttempts()
+                    + " failed attempts: " + update);
+    }
+
+    private void retry(PendingRetry retry) {
+        synchronized (pending) {
+            // superseded, or the retrier was shut down
+            if (pending.get(retry.update.getPid()) != retry)
+                return;
+            pending.remove(retry.update.getPid());
+            handedBack.put(retry.update.getPid(), retry);
+        }
+        UpdateHandler handler = target;
+        if (handler == null) {
+            synchronized (pending) {
+                handedBack.remove(retry.update.getPid());
+            }
+            logger.error("Retrier of " + name + " has no target, update not retried: " + retry.update);
+            return;
+        }
+        retriedCount.incrementAndGet();
+        handler.handle(retry.update);
+    }
+
+    private void superseded(PendingRetry retry) {
+        retry.future.cancel(false);
+        supersededCount.incrementAndGet();
+        progress.abandoned(retry.update);
+        // the later update is spooled too
+        retry.update.markDone();
+        if (logger.isDebugEnabled())
+            logger.debug("Retry superseded by a later update for its PID: " + retry.update);
+    }
+
+    private void deadLetter(IndexUpdate update, String failureClass, String reason) {
+        progress.abandoned(update);
+        if (deadLetters != null) {
+            try {
+                long id = deadLetters.write(update, failureClass, reason);
+                deadLetteredCount.incrementAndGet();
+                // the dead letter store holds it now
+                update.markDone();
+                logger.warn("Update failed " + update.getFailedAttempts() + " times with a " + failureClass
+                        + " failure and was stored as dead letter " + id + " of " + name + ": " + update);
+                return;
+            } catch (IOException ioe) {
+                logger.error("Could not write dead letter of " + name, ioe);
+            }
+        }
+        droppedCount.incrementAndGet();
+        logger.error("Update failed " + update.getFailedAttempts() + " times with a " + failureClass
+                + " failure and was dropped by " + name + ": " + update + ", reason: " + reason);
+    }
+
+    private static final class PendingRetry {
+
+        private final IndexUpdate update;
+
+        private ScheduledFuture<?> future = null;
+
+        // a later update for the PID reached the sink after it was handed back
+        private boolean superseded = false;
+
+        PendingRetry(IndexUpdate update) {
+            this.update = update;
+        }
+    }
+}
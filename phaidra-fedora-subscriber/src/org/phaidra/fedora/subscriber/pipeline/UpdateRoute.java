@@ -0,0 +1,174 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+
+/**
+ * One rule of the routing table of an updater, set up from the
+ * pfsupdater.route.NAME.* properties: the messages it matches and what
+ * is done with them.
+ *
+ * methods lists APIM method names, a name ending in '*' matches every
+ * method starting with the rest, and no methods match all. dsIds and
+ * namespaces, if given, also have to contain the datastream ID or the
+ * PID namespace of the message. Immutable, the routes are part of the
+ * UpdaterConfig.
+ */
+public class UpdateRoute {
+
+    /**
+     * Drop the message.
+     */
+    public static final String IGNORE = "ignore";
+
+    /**
+     * Process the message, as a delete if it is a purgeObject.
+     */
+    public static final String INDEX = "index";
+
+    /**
+     * Process the message as a change, whatever its method.
+     */
+    public static final String UPDATE = "update";
+
+    /**
+     * Process the message as a delete, whatever its method.
+     */
+    public static final String DELETE = "delete";
+
+    public static final String[] ACTIONS = { IGNORE, INDEX, UPDATE, DELETE };
+
+    /**
+     * Where messages no rule matches go.
+     */
+    public static final UpdateRoute DEFAULT = new UpdateRoute("default", null, null, null, INDEX, null);
+
+    private final String name;
+
+    private final String[] methods;
+
+    private final String[] dsIds;
+
+    private final String[] namespaces;
+
+    private final String action;
+
+    private final List<String> sinkNames;
+
+    /**
+     * @param methods, dsIds, namespaces, sinkNames whitespace separated
+     *        lists, null for any
+     */
+    public UpdateRoute(String name, String methods, String dsIds, String namespaces, String action,
+            String sinkNames) {
+        this.name = name;
+        this.methods = split(methods);
+        this.dsIds = split(dsIds);
+        this.namespaces = split(namespaces);
+        this.action = action;
+        String[] sinks = split(sinkNames);
+        this.sinkNames = sinks == null ? null : Collections.unmodifiableList(Arrays.asList(sinks));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public boolean isIgnore() {
+        return IGNORE.equals(action);
+    }
+
+    /**
+     * @return the sinks the matched updates go to, null for all sinks
+     */
+    public List<String> getSinkNames() {
+        return sinkNames;
+    }
+
+    /**
+     * @return whether the updates of this route go to the sink, never
+     *         if the route ignores them
+     */
+    public boolean isRoutedTo(String sinkName) {
+        return !isIgnore() && (sinkNames == null || sinkNames.contains(sinkName));
+    }
+
+    public boolean isDelete(String methodName) {
+        return DELETE.equals(action) || (INDEX.equals(action) && IndexUpdate.PURGE_OBJECT.equals(methodName));
+    }
+
+    /**
+     * @return whether the method alone can match, then the message
+     *         still has to pass matches(ApimMessage)
+     */
+    boolean matchesMethod(String methodName) {
+        if (methods == null)
+            return true;
+        for (int i=0; i<methods.length; i++) {
+            String method = methods[i];
+            if (method.endsWith("*")
+                    ? methodName.startsWith(method.substring(0, method.length() - 1))
+                    : methodName.equals(method))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the datastream and namespace conditions hold; the
+     *         method has been checked by matchesMethod
+     */
+    boolean matches(ApimMessage message) {
+        if (dsIds != null && !contains(dsIds, message.getDsId()))
+            return false;
+        if (namespaces != null) {
+            String pid = message.getPid();
+            int colon = pid == null ? -1 : pid.indexOf(':');
+            if (colon < 0 || !containsRegion(namespaces, pid, colon))
+                return false;
+        }
+        return true;
+    }
+
+    public String toString() {
+        return "UpdateRoute " + name + " action=" + action;
+    }
+
+    private static boolean contains(String[] values, String value) {
+        for (int i=0; value != null && i<values.length; i++) {
+            if (values[i].equals(value))
+                return true;
+        }
+        return false;
+    }
+
+    // compares without creating a substring for the namespace
+    private static boolean containsRegion(String[] values, String pid, int length) {
+        for (int i=0; i<values.length; i++) {
+            if (values[i].length() == length && pid.regionMatches(0, values[i], 0, length))
+                return true;
+        }
+        return false;
+    }
+
+    private static String[] split(String list) {
+        if (list == null)
+            return null;
+        StringTokenizer tokens = new StringTokenizer(list);
+        if (!tokens.hasMoreTokens())
+            return null;
+        String[] values = new String[tokens.countTokens()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = tokens.nextToken();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,82 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+
+/**
+ * Finds the UpdateRoute of an APIM message: the first route of the
+ * routing table that matches it, UpdateRoute.DEFAULT if none does.
+ *
+ * The routes a method can match are worked out once per method name
+ * and cached, so routing a message costs a map lookup and the
+ * datastream and namespace checks of those routes. Counts the messages
+ * routed by each route.
+ */
+public class UpdateRouter {
+
+    // method names come from the messages, so the cache is bounded
+    private static final int MAX_CACHED_METHODS = 256;
+
+    private final List<UpdateRoute> routes;
+
+    private final UpdateRoute[] routeArray;
+
+    // the positions of the routes the method can match
+    private final ConcurrentHashMap<String, int[]> routesByMethod = new ConcurrentHashMap<String, int[]>();
+
+    // by position in routes, the last one counts the default route
+    private final AtomicLongArray matched;
+
+    public UpdateRouter(List<UpdateRoute> routes) {
+        this.routes = routes;
+        routeArray = routes.toArray(new UpdateRoute[routes.size()]);
+        matched = new AtomicLongArray(routes.size() + 1);
+    }
+
+    public UpdateRoute route(ApimMessage message) {
+        String methodName = message.getMethodName() == null ? "" : message.getMethodName();
+        int[] candidates = routesByMethod.get(methodName);
+        if (candidates == null) {
+            candidates = candidates(methodName);
+            if (routesByMethod.size() < MAX_CACHED_METHODS)
+                routesByMethod.put(methodName, candidates);
+        }
+        for (int i=0; i<candidates.length; i++) {
+            UpdateRoute route = routeArray[candidates[i]];
+            if (route.matches(message)) {
+                matched.incrementAndGet(candidates[i]);
+                return route;
+            }
+        }
+        matched.incrementAndGet(routeArray.length);
+        return UpdateRoute.DEFAULT;
+    }
+
+    public List<UpdateRoute> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @return the messages routed by the route, or by the default route
+     *         if it is UpdateRoute.DEFAULT
+     */
+    public long getMatchedCount(UpdateRoute route) {
+        int index = route == UpdateRoute.DEFAULT ? routes.size() : routes.indexOf(route);
+        return index < 0 ? 0 : matched.get(index);
+    }
+
+    private int[] candidates(String methodName) {
+        int[] candidates = new int[routeArray.length];
+        int count = 0;
+        for (int i=0; i<routeArray.length; i++) {
+            if (routeArray[i].matchesMethod(methodName))
+                candidates[count++] = i;
+        }
+        int[] result = new int[count];
+        System.arraycopy(candidates, 0, result, 0, count);
+        return result;
+    }
+}
@@ -0,0 +1,547 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.SinkConfig;
+import org.phaidra.fedora.subscriber.UpdaterConfig;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+import org.phaidra.fedora.subscriber.metrics.Gauge;
+import org.phaidra.fedora.subscriber.metrics.MetricsRegistry;
+import org.phaidra.fedora.subscriber.metrics.UpdaterMetrics;
+
+/**
+ * The stages an update passes through between the JMS delivery thread
+ * and the processor, set up from the properties of one updater.
+ *
+ * Messages seen before are dropped unless pfsupdater.dedupWindowMillis
+ * is 0, and updates are routed by the pfsupdater.route.* table, which
+ * may drop them as well. Updates go through the coalescer, if
+ * pfsupdater.coalesceWindowMillis is set, and then onto the PID-keyed
+ * lanes. The lane threads hand each update to the SinkChannel of every
+ * sink its route sends it to, which resolves the repository of the
+ * update and adds it to the batch for its sink, or parks it while the
+ * sink circuit breaker of its repository is open.
+ * If pfsupdater.spoolDir is set, every update is written to a message
+ * spool before it enters the pipeline, and updates left in the spool
+ * by a previous run are processed first. Updates a sink fails on
+ * are retried by the UpdateRetrier of the sink and, once they are not
+ * retried any more, kept in its dead letter store if
+ * pfsupdater.deadLetterDir is set.
+ * If pfsupdater.priority.mode is set, every update is classed as
+ * interactive or bulk by the PriorityPolicy before it enters the
+ * pipeline, and the lanes take interactive updates first.
+ */
+public class UpdaterPipeline {
+
+    private final Logger logger = Logger.getLogger(UpdaterPipeline.class);
+
+    private final String updaterName;
+
+    private final List<SinkChannel> channels;
+
+    private final UpdateExecutor executor;
+
+    private final UpdateCoalescer coalescer;
+
+    private final UpdateHandler entry;
+
+    private final UpdaterConfig config;
+
+    private final MessageSpool spool;
+
+    private final UpdaterMetrics metrics;
+
+    private final DuplicateFilter duplicateFilter;
+
+    private final UpdateRouter router;
+
+    private final PriorityPolicy priorityPolicy;
+
+    public UpdaterPipeline(UpdaterConfig config) throws IOException, ConfigException {
+        this.config = config;
+        this.updaterName = config.getUpdaterName();
+        metrics = MetricsRegistry.getInstance().getUpdaterMetrics(updaterName);
+        duplicateFilter = config.getDedupWindowMillis() <= 0 ? null
+                : new DuplicateFilter(config.getDedupCapacity(), config.getDedupWindowMillis(),
+                        config.getDedupFalsePositiveRate());
+        router = new UpdateRouter(config.getRoutes());
+        priorityPolicy = config.getPriorityPolicy();
+        spool = config.getSpoolDir() == null ? null
+                : new MessageSpool(updaterName, config.getSpoolDir(), config.getSpoolSegmentBytes(),
+                        config.getSpoolSyncMillis());
+        List<SinkConfig> sinkConfigs = config.getSinkConfigs();
+        // a single sink runs on the lanes of the updater, several get lanes of their own
+        boolean ownLanes = sinkConfigs.size() > 1;
+        List<SinkChannel> channelList = new ArrayList<SinkChannel>();
+        boolean created = false;
+        try {
+            for (int i=0; i<sinkConfigs.size(); i++) {
+                channelList.add(new SinkChannel(config, sinkConfigs.get(i), ownLanes, metrics, router));
+            }
+            created = true;
+        } finally {
+            // the sinks already set up are closed again
+            if (!created)
+                shutdown(channelList);
+        }
+        channels = Collections.unmodifiableList(channelList);
+        int queueDepth = config.getQueueDepth();
+        try {
+            executor = createExecutor(updaterName,
+                    config.getExecutionMode(),
+                    config.getLanes(),
+                    queueDepth,
+                    config.getOverflowPolicy(),
+                    config.getSpillDir(),
+                    priorityPolicy,
+                    new SinkFanOut(router, channels, metrics));
+        } catch (IOException ioe) {
+            shutdown(channelList);
+            throw ioe;
+        }
+        if (!ownLanes) {
+            // retried updates skip the coalescer, their repository is resolved already
+            channels.get(0).getRetrier().setTarget(executor);
+        }
+        long coalesceWindowMillis = config.getCoalesceWindowMillis();
+        if (coalesceWindowMillis > 0) {
+            coalescer = new UpdateCoalescer(updaterName, coalesceWindowMillis, queueDepth, executor);
+            entry = coalescer;
+        } else {
+            coalescer = null;
+            entry = executor;
+        }
+        registerGauges();
+        if (spool != null) {
+            // before the messaging client starts, so recovered updates go first
+            List<IndexUpdate> recovered = spool.takeRecovered();
+            for (int i=0; i<recovered.size(); i++) {
+                IndexUpdate update = recovered.get(i);
+                if (route(update)) {
+                    classify(update);
+                    entry.handle(update);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether the updater has seen the message before, see
+     * DuplicateFilter. Called on the JMS delivery thread.
+     */
+    public boolean isDuplicate(ApimMessage message) {
+        return duplicateFilter != null && duplicateFilter.isDuplicate(message);
+    }
+
+    /**
+     * Routes an update and hands it to the first stage, unless its route
+     * ignores it. Called on the JMS delivery thread.
+     *
+     * @return false if the update was dropped by its route
+     */
+    public boolean submit(IndexUpdate update) {
+        if (!route(update))
+            return false;
+        classify(update);
+        if (spool != null) {
+            try {
+                spool.append(update);
+            } catch (IOException ioe) {
+                logger.error("Could not write update to the spool of " + updaterName
+                        + ", it will not survive a restart: " + update, ioe);
+            }
+        }
+        entry.handle(update);
+        return true;
+    }
+
+    /**
+     * Hands a reindex update straight to the lanes. It is not spooled,
+     * the reindex checkpoint covers it, and not coalesced. It is always
+     * a bulk update.
+     */
+    public void submitReindex(IndexUpdate update) {
+        executor.submit(update);
+    }
+
+    public String getUpdaterName() {
+        return updaterName;
+    }
+
+    /**
+     * The updater config the pipeline was built from.
+     */
+    public UpdaterConfig getConfig() {
+        return config;
+    }
+
+    public UpdateExecutor getExecutor() {
+        return executor;
+    }
+
+    public UpdaterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the message spool, or null if updates are not spooled
+     */
+    public MessageSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * @return the sinks of the updater, in the order of pfsupdater.sinks
+     */
+    public List<SinkChannel> getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return the sink of that name, or null if the updater has none
+     */
+    public SinkChannel getChannel(String sinkName) {
+        for (int i=0; i<channels.size(); i++) {
+            if (channels.get(i).getSinkName().equals(sinkName))
+                return channels.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * @return the updates queued on the lanes of the updater and of its sinks
+     */
+    public int getQueueDepth() {
+        int queueDepth = executor.getQueueDepth();
+        for (int i=0; i<channels.size(); i++) {
+            queueDepth += channels.get(i).getQueueDepth();
+        }
+        return queueDepth;
+    }
+
+    /**
+     * @return the updates of the repository parked by any sink
+     */
+    public int getParkedCount(String repositoryName) {
+        int count = 0;
+        for (int i=0; i<channels.size(); i++) {
+            count += channels.get(i).getParker().getParkedCount(repositoryName);
+        }
+        return count;
+    }
+
+    /**
+     * Submits the update of a dead letter of a sink again, to that sink
+     * only, and removes it from the dead letter store. It is written to
+     * the spool first, so after a restart it goes to every sink its
+     * route names.
+     *
+     * @return false if there is no such sink or no dead letter with the id
+     */
+    public boolean replayDeadLetter(String sinkName, long id) throws IOException {
+        SinkChannel channel = getChannel(sinkName);
+        DeadLetterStore deadLetters = channel == null ? null : channel.getDeadLetterStore();
+        if (deadLetters == null)
+            return false;
+        DeadLetterStore.DeadLetter deadLetter = deadLetters.get(id);
+        if (deadLetter == null)
+            return false;
+        IndexUpdate update = deadLetter.getUpdate();
+        if (spool != null) {
+            try {
+                spool.append(update);
+            } catch (IOException ioe) {
+                logger.error("Could not write replayed update to the spool of " + updaterName
+                        + ", it will not survive a restart: " + update, ioe);
+            }
+        }
+        channel.handle(update);
+        deadLetters.delete(id);
+        return true;
+    }
+
+    public UpdateRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * @return the coalescer, or null if coalescing is switched off
+     */
+    public UpdateCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Drops pending retries, flushes pending coalesced updates into the
+     * lanes, waits up to timeoutMillis per lane for the lanes to finish
+     * and hands the last batches to the sinks. Parked updates are left
+     * in the spool.
+     */
+    public void shutdown(long timeoutMillis) {
+        for (int i=0; i<channels.size(); i++) {
+            channels.get(i).shutdownRetrier();
+        }
+        if (coalescer != null)
+            coalescer.shutdown();
+        executor.shutdown(timeoutMillis);
+        for (int i=0; i<channels.size(); i++) {
+            channels.get(i).shutdown(timeoutMillis);
+        }
+        if (spool != null)
+            spool.close();
+    }
+
+    /**
+     * Classes the update as interactive or bulk, if the updater has a
+     * priority policy.
+     */
+    private void classify(IndexUpdate update) {
+        if (priorityPolicy != null)
+            update.setInteractive(priorityPolicy.isInteractive(update.getMessage(), update.getJmsPriority()));
+    }
+
+    private static void shutdown(List<SinkChannel> channels) {
+        for (int i=0; i<channels.size(); i++) {
+            channels.get(i).shutdownRetrier();
+            channels.get(i).shutdown(0);
+        }
+    }
+
+    /**
+     * Creates the PID-keyed lanes of an updater or sink, or with
+     * pfsupdater.executionMode=virtual an executor running every update
+     * on a virtual thread, at most queueDepth at a time.
+     */
+    static UpdateExecutor createExecutor(String name, String executionMode, int lanes, int queueDepth,
+            OverflowPolicy overflowPolicy, File spillDir, PriorityPolicy priorityPolicy,
+            UpdateHandler handler) throws IOException {
+        if (UpdaterConfig.EXECUTION_VIRTUAL.equals(executionMode))
+            return new PerUpdateExecutor(name, queueDepth,
+                    VirtualThreads.newThreadFactory("pfs-" + name + "-update"), handler);
+        return new KeyedExecutor(name, lanes, queueDepth, overflowPolicy, spillDir, priorityPolicy, handler);
+    }
+
+    /**
+     * A gauge adding up a value of every sink.
+     */
+    private abstract class SinkGauge implements Gauge {
+
+        public long getValue() {
+            long value = 0;
+            for (int i=0; i<channels.size(); i++) {
+                value += getValue(channels.get(i));
+            }
+            return value;
+        }
+
+        abstract long getValue(SinkChannel channel);
+    }
+
+    private void registerGauges() {
+        metrics.registerGauge("queueDepth", new Gauge() {
+            public long getValue() {
+                return getQueueDepth();
+            }
+        });
+        metrics.registerGauge("dropped", new SinkGauge() {
+            public long getValue() {
+                return executor.getDroppedCount() + super.getValue();
+            }
+            long getValue(SinkChannel channel) {
+                return channel.getExecutor() == null ? 0 : channel.getExecutor().getDroppedCount();
+            }
+        });
+        metrics.registerGauge("coalescerPending", new Gauge() {
+            public long getValue() {
+                return coalescer == null ? 0 : coalescer.getPendingCount();
+            }
+        });
+        metrics.registerGauge("merged", new Gauge() {
+            public long getValue() {
+                return coalescer == null ? 0 : coalescer.getMergedCount();
+            }
+        });
+        metrics.registerGauge("batchPending", new SinkGauge() {
+            long getValue(SinkChannel channel) {
+                return channel.getBatcher().getPendingCount();
+            }
+        });
+        metrics.registerGauge("spoolPending", new Gauge() {
+            public long getValue() {
+                return spool == null ? 0 : spool.getPendingCount();
+            }
+        });
+        metrics.registerGauge("parked", new SinkGauge() {
+            long getValue(SinkChannel channel) {
+                return channel.getParker().getParkedCount();
+            }
+        });
+        metrics.registerGauge("parkedTotal", new SinkGauge() {
+            long getValue(SinkChannel channel) {
+                return channel.getParker().getTotalParkedCount();
+            }
+        });
+        if (priorityPolicy != null)
+            registerPriorityGauges();
+        List<UpdateRoute> routes = router.getRoutes();
+        for (int i=0; i<routes.size(); i++) {
+            registerRouteGauge(routes.get(i));
+        }
+        registerRouteGauge(UpdateRoute.DEFAULT);
+        metrics.registerGauge("retryPending", new SinkGauge() {
+            long getValue(SinkChannel channel) {
+                return channel.getRetrier().getPendingCount();
+            }
+        });
+        metrics.registerGauge("retried", new SinkGauge() {
+            long getValue(SinkChannel channel) {
+                return channel.getRetrier().getRetriedCount();
+            }
+        });
+        metrics.registerGauge("deadLettered", new SinkGauge() {
+            long getValue(SinkChannel channel) {
+                return channel.getRetrier().getDeadLetteredCount();
+            }
+        });
+        metrics.registerGauge("retryDropped", new SinkGauge() {
+            long getValue(SinkChannel channel) {
+                return channel.getRetrier().getDroppedCount();
+            }
+        });
+        metrics.registerGauge("retrySuperseded", new SinkGauge() {
+            long getValue(SinkChannel channel) {
+                return channel.getRetrier().getSupersededCount();
+            }
+        });
+        for (int i=0; i<channels.size(); i++) {
+            registerSinkGauges(channels.get(i));
+        }
+    }
+
+    /**
+     * The priority gauges add up the lanes of the updater and of its
+     * sinks; priority needs executionMode=lanes, so they are all
+     * KeyedExecutors.
+     */
+    private void registerPriorityGauges() {
+        metrics.registerGauge("priority.interactiveQueued", new SinkGauge() {
+            public long getValue() {
+                return getInteractiveQueueDepth(executor) + super.getValue();
+            }
+            long getValue(SinkChannel channel) {
+                return getInteractiveQueueDepth(channel.getExecutor());
+            }
+        });
+        metrics.registerGauge("priority.demoted", new SinkGauge() {
+            public long getValue() {
+                return getDemotedCount(executor) + super.getValue();
+            }
+            long getValue(SinkChannel channel) {
+                return getDemotedCount(channel.getExecutor());
+            }
+        });
+        metrics.registerGauge("priority.promoted", new SinkGauge() {
+            public long getValue() {
+                return getPromotedCount(executor) + super.getValue();
+            }
+            long getValue(SinkChannel channel) {
+                return getPromotedCount(channel.getExecutor());
+            }
+        });
+        metrics.registerGauge("priority.bulkStarved", new SinkGauge() {
+            public long getValue() {
+                return getStarvedCount(executor) + super.getValue();
+            }
+            long getValue(SinkChannel channel) {
+                return getStarvedCount(channel.getExecutor());
+            }
+        });
+    }
+
+    private static long getInteractiveQueueDepth(UpdateExecutor executor) {
+        return executor instanceof KeyedExecutor ? ((KeyedExecutor) executor).getInteractiveQueueDepth() : 0;
+    }
+
+    private static long getDemotedCount(UpdateExecutor executor) {
+        return executor instanceof KeyedExecutor ? ((KeyedExecutor) executor).getDemotedCount() : 0;
+    }
+
+    private static long getPromotedCount(UpdateExecutor executor) {
+        return executor instanceof KeyedExecutor ? ((KeyedExecutor) executor).getPromotedCount() : 0;
+    }
+
+    private static long getStarvedCount(UpdateExecutor executor) {
+        return executor instanceof KeyedExecutor ? ((KeyedExecutor) executor).getStarvedCount() : 0;
+    }
+
+    private void registerRouteGauge(final UpdateRoute route) {
+        metrics.registerGauge("route." + route.getName(), new Gauge() {
+            public long getValue() {
+                return router.getMatchedCount(route);
+            }
+        });
+    }
+
+    private void registerSinkGauges(final SinkChannel channel) {
+        final SinkProgress progress = channel.getProgress();
+        String prefix = "sink." + channel.getSinkName() + ".";
+        metrics.registerGauge(prefix + "offered", new Gauge() {
+            public long getValue() {
+                return progress.getOfferedCount();
+            }
+        });
+        metrics.registerGauge(prefix + "completed", new Gauge() {
+            public long getValue() {
+                return progress.getCompletedCount();
+            }
+        });
+        metrics.registerGauge(prefix + "abandoned", new Gauge() {
+            public long getValue() {
+                return progress.getAbandonedCount();
+            }
+        });
+        metrics.registerGauge(prefix + "lag", new Gauge() {
+            public long getValue() {
+                return progress.getLag();
+            }
+        });
+        metrics.registerGauge(prefix + "lagMillis", new Gauge() {
+            public long getValue() {
+                return progress.getLagMillis();
+            }
+        });
+        metrics.registerGauge(prefix + "queueDepth", new Gauge() {
+            public long getValue() {
+                return channel.getQueueDepth();
+            }
+        });
+        metrics.registerGauge(prefix + "parked", new Gauge() {
+            public long getValue() {
+                return channel.getParker().getParkedCount();
+            }
+        });
+    }
+
+    /**
+     * Routes the update, counting it and marking it done if its route
+     * drops it or sends it to none of the sinks.
+     */
+    private boolean route(IndexUpdate update) {
+        UpdateRoute route = router.route(update.getMessage());
+        update.setRoute(route);
+        for (int i=0; i<channels.size(); i++) {
+            if (route.isRoutedTo(channels.get(i).getSinkName()))
+                return true;
+        }
+        metrics.ignored();
+        update.markDone();
+        return false;
+    }
+}
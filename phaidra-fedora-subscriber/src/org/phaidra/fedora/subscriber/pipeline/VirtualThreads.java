@@ -0,0 +1,62 @@
+package org.phaidra.fedora.subscriber.pipeline;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads where the JVM has them (Java 21 and later).
+ * The module is built for Java 8, so the virtual thread API is looked
+ * up by reflection.
+ */
+public class VirtualThreads {
+
+    private static final Method ofVirtual;
+
+    private static final Method name;
+
+    private static final Method factory;
+
+    static {
+        Method ofVirtualMethod = null;
+        Method nameMethod = null;
+        Method factoryMethod = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            nameMethod = builderClass.getMethod("name", String.class, long.class);
+            factoryMethod = builderClass.getMethod("factory");
+        } catch (Exception e) {
+            ofVirtualMethod = null;
+        }
+        ofVirtual = ofVirtualMethod;
+        name = nameMethod;
+        factory = factoryMethod;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return whether the JVM can create virtual threads
+     */
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * @return a factory of virtual threads named prefix-1, prefix-2, ...
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public static ThreadFactory newThreadFactory(String prefix) {
+        if (ofVirtual == null)
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, this is Java "
+                    + System.getProperty("java.version"));
+        try {
+            Object builder = ofVirtual.invoke(null);
+            builder = name.invoke(builder, prefix + "-", Long.valueOf(1));
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Could not create virtual threads: " + e);
+        }
+    }
+}
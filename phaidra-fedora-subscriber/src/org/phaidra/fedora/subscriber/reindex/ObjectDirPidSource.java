@@ -0,0 +1,70 @@
+package org.phaidra.fedora.subscriber.reindex;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+
+/**
+ * Lists the PIDs of the objects in a local Fedora object store by
+ * walking pfsrepository.fedoraObjectDir, in sorted directory order.
+ * Only one directory listing per level is held at a time, so the
+ * walk needs little memory however large the store is.
+ */
+public class ObjectDirPidSource implements PidSource {
+
+    private static final String ID_PREFIX = "info:fedora/";
+
+    // the unvisited entries of each directory on the current path, innermost first
+    private final LinkedList<LinkedList<File>> pending = new LinkedList<LinkedList<File>>();
+
+    public ObjectDirPidSource(File objectDir) throws PhaidraFedoraSubscriberException {
+        if (!objectDir.isDirectory())
+            throw new PhaidraFedoraSubscriberException("object directory " + objectDir + " not found");
+        pending.add(list(objectDir));
+    }
+
+    public String nextPid() {
+        while (!pending.isEmpty()) {
+            LinkedList<File> files = pending.getFirst();
+            File file = files.poll();
+            if (file == null) {
+                pending.removeFirst();
+                continue;
+            }
+            if (file.isDirectory()) {
+                pending.addFirst(list(file));
+                continue;
+            }
+            String id;
+            try {
+                id = URLDecoder.decode(file.getName(), "UTF-8");
+            } catch (UnsupportedEncodingException uee) {
+                throw new IllegalStateException(uee);
+            } catch (IllegalArgumentException iae) {
+                // not a name given by the object store
+                continue;
+            }
+            if (id.startsWith(ID_PREFIX))
+                return id.substring(ID_PREFIX.length());
+        }
+        return null;
+    }
+
+    public void close() {
+        pending.clear();
+    }
+
+    private static LinkedList<File> list(File dir) {
+        File[] files = dir.listFiles();
+        LinkedList<File> sorted = new LinkedList<File>();
+        if (files != null) {
+            Arrays.sort(files);
+            sorted.addAll(Arrays.asList(files));
+        }
+        return sorted;
+    }
+}
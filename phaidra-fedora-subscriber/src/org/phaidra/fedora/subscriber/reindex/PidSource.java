@@ -0,0 +1,18 @@
+package org.phaidra.fedora.subscriber.reindex;
+
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+
+/**
+ * The PIDs of all objects of a repository, for a reindex. The PIDs
+ * come in the same order every time the source is opened, so that a
+ * reindex can resume after the number of PIDs it has done.
+ */
+public interface PidSource {
+
+    /**
+     * @return the next PID, or null when there are no more
+     */
+    String nextPid() throws PhaidraFedoraSubscriberException;
+
+    void close();
+}
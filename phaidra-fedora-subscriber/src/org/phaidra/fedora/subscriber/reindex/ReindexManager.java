@@ -0,0 +1,181 @@
+package org.phaidra.fedora.subscriber.reindex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.RepositoryConfig;
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.metrics.MetricsRegistry;
+import org.phaidra.fedora.subscriber.pipeline.NamedThreadFactory;
+
+/**
+ * Starts and stops the reindexers of the webapp, at most one per
+ * updater and repository. Reindexers look up the pipeline of their
+ * updater in the PipelineRegistry for every object, so that a reindex
+ * carries on when an updater is restarted by a config reload.
+ *
+ * Checkpoints are kept in pfs.reindexDir, one file per reindex.
+ * resumeAll() picks up the reindexes a previous run left unfinished.
+ */
+public class ReindexManager {
+
+    /**
+     * The client id of reindex updates.
+     */
+    public static final String CLIENT_ID = "reindex";
+
+    private static final String SUFFIX = ".reindex";
+
+    private static final ReindexManager instance = new ReindexManager();
+
+    private final Logger logger = Logger.getLogger(ReindexManager.class);
+
+    private final Map<String, Reindexer> reindexers = new TreeMap<String, Reindexer>();
+
+    private final Map<String, Thread> threads = new TreeMap<String, Thread>();
+
+    public static ReindexManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts reindexing the repository through the updater.
+     *
+     * @param source Reindexer.SOURCE_OBJECT_DIR or SOURCE_RESOURCE_INDEX,
+     *        null for the object directory if the repository has one
+     *        on this host, else the resource index
+     * @param restart ignore a checkpoint left by an earlier reindex
+     */
+    public synchronized Reindexer start(String updaterName, String repositoryName, String source,
+            boolean restart) throws PhaidraFedoraSubscriberException {
+        Config config = Config.getCurrentConfig();
+        if (config.getUpdaterConfig(updaterName) == null)
+            throw new ConfigException("Updater " + updaterName + " is not configured");
+        RepositoryConfig repositoryConfig = config.getRepositoryConfig(repositoryName);
+        if (repositoryConfig == null)
+            throw new ConfigException("Repository " + repositoryName + " is not configured");
+        if (source == null) {
+            File objectDir = repositoryConfig.getFedoraObjectDir();
+            source = objectDir != null && objectDir.isDirectory()
+                    ? Reindexer.SOURCE_OBJECT_DIR : Reindexer.SOURCE_RESOURCE_INDEX;
+        } else if (!Reindexer.SOURCE_OBJECT_DIR.equals(source)
+                && !Reindexer.SOURCE_RESOURCE_INDEX.equals(source)) {
+            throw new PhaidraFedoraSubscriberException("Reindex source must be one of "
+                    + Reindexer.SOURCE_OBJECT_DIR + ", " + Reindexer.SOURCE_RESOURCE_INDEX);
+        }
+        String key = updaterName + "." + repositoryName;
+        Reindexer running = reindexers.get(key);
+        if (running != null && Reindexer.RUNNING.equals(running.getState()))
+            throw new PhaidraFedoraSubscriberException("Reindex of repository " + repositoryName
+                    + " for updater " + updaterName + " is already running");
+        File checkpointFile = null;
+        File reindexDir = config.getReindexDir();
+        if (reindexDir != null) {
+            if (!reindexDir.isDirectory() && !reindexDir.mkdirs())
+                throw new ConfigException("reindex directory " + reindexDir + " could not be created");
+            checkpointFile = new File(reindexDir, key + SUFFIX);
+            if (restart && checkpointFile.exists() && !checkpointFile.delete())
+                throw new PhaidraFedoraSubscriberException("Could not delete reindex checkpoint " + checkpointFile);
+        }
+        Reindexer reindexer = new Reindexer(updaterName, repositoryName, source, checkpointFile,
+                config.getReindexRate(), config.getReindexMaxQueued());
+        Thread thread = new NamedThreadFactory("pfs-reindex-" + key).newThread(reindexer);
+        reindexers.put(key, reindexer);
+        threads.put(key, thread);
+        MetricsRegistry.getInstance().registerSource("Reindex", key,
+                "Reindex of repository " + repositoryName + " for updater " + updaterName, reindexer);
+        thread.start();
+        return reindexer;
+    }
+
+    /**
+     * Stops the reindex, keeping its checkpoint so that it can be resumed.
+     *
+     * @return false if it was not running
+     */
+    public synchronized boolean stop(String updaterName, String repositoryName) {
+        String key = updaterName + "." + repositoryName;
+        Reindexer reindexer = reindexers.get(key);
+        if (reindexer == null || !Reindexer.RUNNING.equals(reindexer.getState()))
+            return false;
+        reindexer.stop();
+        return true;
+    }
+
+    /**
+     * Resumes the reindexes whose checkpoint is in pfs.reindexDir.
+     */
+    public void resumeAll() {
+        File reindexDir;
+        try {
+            reindexDir = Config.getCurrentConfig().getReindexDir();
+        } catch (ConfigException ce) {
+            logger.error("Unfinished reindexes not resumed: " + ce.getMessage());
+            return;
+        }
+        File[] checkpointFiles = reindexDir == null ? null : reindexDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        for (int i=0; checkpointFiles != null && i<checkpointFiles.length; i++) {
+            Properties checkpoint = new Properties();
+            try {
+                InputStream in = new FileInputStream(checkpointFiles[i]);
+                try {
+                    checkpoint.load(in);
+                } finally {
+                    in.close();
+                }
+                start(checkpoint.getProperty("updater"), checkpoint.getProperty("repository"),
+                        checkpoint.getProperty("source"), false);
+            } catch (IOException ioe) {
+                logger.error("Could not resume reindex of checkpoint " + checkpointFiles[i], ioe);
+            }
+        }
+    }
+
+    /**
+     * Stops all reindexers and waits up to timeoutMillis for each.
+     */
+    public void stopAll(long timeoutMillis) {
+        Map<String, Thread> stopping;
+        synchronized (this) {
+            Iterator<Reindexer> it = reindexers.values().iterator();
+            while (it.hasNext()) {
+                it.next().stop();
+            }
+            stopping = new TreeMap<String, Thread>(threads);
+            reindexers.clear();
+            threads.clear();
+        }
+        Iterator<Thread> it = stopping.values().iterator();
+        while (it.hasNext()) {
+            try {
+                it.next().join(timeoutMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the reindexers started since the webapp started, by
+     *         updater.repository
+     */
+    public synchronized Map<String, Reindexer> getReindexers() {
+        return new TreeMap<String, Reindexer>(reindexers);
+    }
+}
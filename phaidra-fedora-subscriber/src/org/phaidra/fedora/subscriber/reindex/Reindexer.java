@@ -0,0 +1,337 @@
+package org.phaidra.fedora.subscriber.reindex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.Config;
+import org.phaidra.fedora.subscriber.RepositoryConfig;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.message.ApimMessage;
+import org.phaidra.fedora.subscriber.metrics.MetricSource;
+import org.phaidra.fedora.subscriber.pipeline.IndexUpdate;
+import org.phaidra.fedora.subscriber.pipeline.PipelineRegistry;
+import org.phaidra.fedora.subscriber.pipeline.UpdaterPipeline;
+
+/**
+ * Feeds a reindex update for every object of a repository into the
+ * pipeline of an updater, on a thread of its own.
+ *
+ * The updates go straight onto the lanes of the pipeline, so they are
+ * processed in parallel like live updates. To keep live updates from
+ * waiting behind them, the reindexer only submits while the lanes
+ * hold fewer than maxQueued updates, and never more than rate updates
+ * a second. While updates of the repository are parked because its
+ * sink is unavailable, the reindexer waits.
+ *
+ * If a checkpoint file is given, a low watermark is written to it every
+ * CHECKPOINT_EVERY objects and when the reindexer stops: the position
+ * of the first object submitted whose update is not done yet, in every
+ * sink, or of the next object if all are done. A reindexer created for
+ * an existing checkpoint file resumes at that object. The file is
+ * deleted once all objects have been submitted. As objects after the
+ * watermark may be done already, some objects may be reindexed twice
+ * after a restart, none is missed.
+ */
+public class Reindexer implements Runnable, MetricSource {
+
+    public static final String SOURCE_OBJECT_DIR = "objectDir";
+
+    public static final String SOURCE_RESOURCE_INDEX = "resourceIndex";
+
+    public static final String RUNNING = "running";
+
+    public static final String STOPPED = "stopped";
+
+    public static final String DONE = "done";
+
+    public static final String FAILED = "failed";
+
+    private static final int CHECKPOINT_EVERY = 1000;
+
+    private static final long WAIT_MILLIS = 20;
+
+    private final Logger logger = Logger.getLogger(Reindexer.class);
+
+    private final String updaterName;
+
+    private final String repositoryName;
+
+    private final String source;
+
+    private final File checkpointFile;
+
+    private final int rate;
+
+    private final int maxQueued;
+
+    private final long startOffset;
+
+    private volatile long offset;
+
+    // the positions of the objects submitted and not done yet
+    private final TreeSet<Long> unfinished = new TreeSet<Long>();
+
+    private volatile String state = RUNNING;
+
+    private volatile String error = null;
+
+    private volatile boolean stopRequested = false;
+
+    private volatile long startedMillis = 0;
+
+    /**
+     * @param checkpointFile where progress is kept, null for none
+     * @param rate the most objects submitted per second, 0 for no limit
+     * @param maxQueued submit only while the lanes hold fewer updates,
+     *        0 for one per lane
+     */
+    public Reindexer(String updaterName, String repositoryName,
+            String source, File checkpointFile, int rate, int maxQueued) throws PhaidraFedoraSubscriberException {
+        this.updaterName = updaterName;
+        this.repositoryName = repositoryName;
+        this.source = source;
+        this.checkpointFile = checkpointFile;
+        this.rate = rate;
+        this.maxQueued = maxQueued;
+        this.startOffset = readCheckpoint();
+        this.offset = startOffset;
+    }
+
+    public String getUpdaterName() {
+        return updaterName;
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of objects submitted, including those of
+     *         earlier runs resumed from the checkpoint
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return why the reindex failed, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Asks the reindexer to stop after the current object. Progress is
+     * kept in the checkpoint file.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    public void run() {
+        startedMillis = System.currentTimeMillis();
+        if (logger.isInfoEnabled())
+            logger.info("Reindex of repository " + repositoryName + " for updater " + updaterName
+                    + " from " + source + " started at object " + startOffset);
+        PidSource pids = null;
+        try {
+            pids = openSource();
+            for (long skipped = 0; skipped < startOffset; skipped++) {
+                if (pids.nextPid() == null)
+                    break;
+            }
+            long intervalNanos = rate > 0 ? 1000000000L / rate : 0;
+            long nextNanos = System.nanoTime();
+            String pid;
+            while (!stopRequested && (pid = pids.nextPid()) != null) {
+                UpdaterPipeline pipeline = waitForRoom();
+                if (pipeline == null)
+                    break;
+                if (intervalNanos > 0) {
+                    long waitNanos = nextNanos - System.nanoTime();
+                    if (waitNanos > 0)
+                        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    nextNanos = Math.max(nextNanos, System.nanoTime() - intervalNanos) + intervalNanos;
+                }
+                pipeline.submitReindex(createUpdate(pid, offset));
+                offset++;
+                if (offset % CHECKPOINT_EVERY == 0)
+                    writeCheckpoint();
+            }
+            // the checkpoint is complete before the state changes
+            if (stopRequested) {
+                writeCheckpoint();
+                state = STOPPED;
+            } else {
+                if (checkpointFile != null && checkpointFile.exists() && !checkpointFile.delete())
+                    logger.warn("Could not delete reindex checkpoint " + checkpointFile);
+                state = DONE;
+            }
+        } catch (InterruptedException ie) {
+            writeCheckpoint();
+            state = STOPPED;
+        } catch (PhaidraFedoraSubscriberException pfse) {
+            logger.error("Reindex of repository " + repositoryName + " for updater " + updaterName
+                    + " failed at object " + offset, pfse);
+            writeCheckpoint();
+            error = pfse.getMessage();
+            state = FAILED;
+        } catch (RuntimeException re) {
+            logger.error("Reindex of repository " + repositoryName + " for updater " + updaterName
+                    + " failed at object " + offset, re);
+            writeCheckpoint();
+            error = re.toString();
+            state = FAILED;
+        } finally {
+            if (pids != null)
+                pids.close();
+        }
+        if (logger.isInfoEnabled())
+            logger.info("Reindex of repository " + repositoryName + " for updater " + updaterName
+                    + " " + state + " after " + offset + " objects");
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        long elapsedMillis = startedMillis == 0 ? 0 : System.currentTimeMillis() - startedMillis;
+        metrics.put("state", state);
+        metrics.put("source", source);
+        metrics.put("offset", Long.valueOf(offset));
+        metrics.put("elapsedMillis", Long.valueOf(elapsedMillis));
+        metrics.put("objectsPerSecond", Double.valueOf(elapsedMillis == 0 ? 0
+                : (offset - startOffset) * 1000.0 / elapsedMillis));
+        return metrics;
+    }
+
+    private PidSource openSource() throws PhaidraFedoraSubscriberException {
+        RepositoryConfig repositoryConfig = Config.getCurrentConfig().getRepositoryConfig(repositoryName);
+        if (repositoryConfig == null)
+            throw new PhaidraFedoraSubscriberException("Repository " + repositoryName + " is not configured");
+        if (SOURCE_OBJECT_DIR.equals(source)) {
+            if (repositoryConfig.getFedoraObjectDir() == null)
+                throw new PhaidraFedoraSubscriberException("pfsrepository.fedoraObjectDir not provided for repository "
+                        + repositoryName);
+            return new ObjectDirPidSource(repositoryConfig.getFedoraObjectDir());
+        }
+        return new ResourceIndexPidSource(repositoryConfig);
+    }
+
+    /**
+     * Waits until the lanes of the updater have room for another
+     * reindex update.
+     *
+     * @return the pipeline, or null if the reindexer was stopped
+     */
+    private UpdaterPipeline waitForRoom() throws InterruptedException {
+        while (!stopRequested) {
+            UpdaterPipeline pipeline = PipelineRegistry.getInstance().getPipeline(updaterName);
+            if (pipeline != null) {
+                int limit = maxQueued > 0 ? maxQueued : pipeline.getExecutor().getLaneCount();
+                // no more while a sink of the repository is unavailable
+                if (pipeline.getQueueDepth() < limit && pipeline.getParkedCount(repositoryName) == 0)
+                    return pipeline;
+            }
+            Thread.sleep(WAIT_MILLIS);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the update for the object at the position, which is kept
+     * as unfinished until every sink is done with the update.
+     */
+    private IndexUpdate createUpdate(String pid, long position) {
+        RepositoryConfig repositoryConfig = null;
+        try {
+            repositoryConfig = Config.getCurrentConfig().getRepositoryConfig(repositoryName);
+        } catch (PhaidraFedoraSubscriberException pfse) {
+            // the repository is set on the update, the base url is informational
+        }
+        String baseUrl = repositoryConfig == null ? null : repositoryConfig.getFedoraSoap();
+        ApimMessage message = new ApimMessage(pid, IndexUpdate.REINDEX, baseUrl, null, null);
+        IndexUpdate update = new IndexUpdate(ReindexManager.CLIENT_ID, "", message);
+        update.setRepositoryName(repositoryName);
+        final Long key = Long.valueOf(position);
+        synchronized (unfinished) {
+            unfinished.add(key);
+        }
+        update.setDoneAction(new Runnable() {
+            public void run() {
+                synchronized (unfinished) {
+                    unfinished.remove(key);
+                }
+            }
+        });
+        return update;
+    }
+
+    private long readCheckpoint() throws PhaidraFedoraSubscriberException {
+        if (checkpointFile == null || !checkpointFile.exists())
+            return 0;
+        Properties checkpoint = new Properties();
+        try {
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                checkpoint.load(in);
+            } finally {
+                in.close();
+            }
+            return Long.parseLong(checkpoint.getProperty("offset", "0").trim());
+        } catch (IOException ioe) {
+            throw new PhaidraFedoraSubscriberException("Could not read reindex checkpoint "
+                    + checkpointFile + ": " + ioe.toString(), ioe);
+        } catch (NumberFormatException nfe) {
+            throw new PhaidraFedoraSubscriberException("Reindex checkpoint " + checkpointFile
+                    + " has no valid offset", nfe);
+        }
+    }
+
+    /**
+     * Writes the low watermark: the position of the first object whose
+     * update is not done yet, or of the next object if all are done.
+     */
+    private void writeCheckpoint() {
+        if (checkpointFile == null)
+            return;
+        long done;
+        synchronized (unfinished) {
+            done = unfinished.isEmpty() ? offset : unfinished.first().longValue();
+        }
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("updater", updaterName);
+        checkpoint.setProperty("repository", repositoryName);
+        checkpoint.setProperty("source", source);
+        checkpoint.setProperty("offset", String.valueOf(Math.max(startOffset, done)));
+        File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                checkpoint.store(out, "reindex progress");
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(checkpointFile) && !(checkpointFile.delete() && tmpFile.renameTo(checkpointFile)))
+                logger.warn("Could not write reindex checkpoint " + checkpointFile);
+        } catch (IOException ioe) {
+            logger.warn("Could not write reindex checkpoint " + checkpointFile + ": " + ioe.toString());
+        }
+    }
+}
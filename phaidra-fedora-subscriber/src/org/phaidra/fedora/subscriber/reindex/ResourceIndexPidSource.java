@@ -0,0 +1,75 @@
+package org.phaidra.fedora.subscriber.reindex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import org.fcrepo.client.FedoraClient;
+import org.jrdf.graph.Node;
+import org.trippi.TrippiException;
+import org.trippi.TupleIterator;
+
+import org.phaidra.fedora.subscriber.RepositoryConfig;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+
+/**
+ * Lists the PIDs of the objects of a repository by querying its
+ * resource index, for repositories whose object store is not on this
+ * host. The result is streamed, not held in memory.
+ */
+public class ResourceIndexPidSource implements PidSource {
+
+    private static final String QUERY = "SELECT ?pid FROM <#ri> WHERE { ?pid "
+            + "<info:fedora/fedora-system:def/model#hasModel> "
+            + "<info:fedora/fedora-system:FedoraObject-3.0> } ORDER BY ?pid";
+
+    private static final String ID_PREFIX = "info:fedora/";
+
+    private final Logger logger = Logger.getLogger(ResourceIndexPidSource.class);
+
+    private final FedoraClient fedoraClient;
+
+    private final TupleIterator tuples;
+
+    public ResourceIndexPidSource(RepositoryConfig repositoryConfig) throws PhaidraFedoraSubscriberException {
+        String baseUrl = repositoryConfig.getFedoraSoap();
+        if (baseUrl != null && baseUrl.endsWith("/services"))
+            baseUrl = baseUrl.substring(0, baseUrl.length() - "/services".length());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("lang", "sparql");
+        params.put("query", QUERY);
+        try {
+            fedoraClient = new FedoraClient(baseUrl, repositoryConfig.getFedoraUser(),
+                    repositoryConfig.getFedoraPass());
+            tuples = fedoraClient.getTuples(params);
+        } catch (Exception e) {
+            throw new PhaidraFedoraSubscriberException("Resource index query of repository "
+                    + repositoryConfig.getRepositoryName() + " failed: " + e.toString(), e);
+        }
+    }
+
+    public String nextPid() throws PhaidraFedoraSubscriberException {
+        try {
+            while (tuples.hasNext()) {
+                Node node = tuples.next().get("pid");
+                String id = node == null ? null : node.stringValue();
+                if (id != null && id.startsWith(ID_PREFIX))
+                    return id.substring(ID_PREFIX.length());
+            }
+            return null;
+        } catch (TrippiException te) {
+            throw new PhaidraFedoraSubscriberException("Reading the resource index result failed: "
+                    + te.getMessage(), te);
+        }
+    }
+
+    public void close() {
+        try {
+            tuples.close();
+        } catch (TrippiException te) {
+            logger.warn("Could not close resource index result: " + te.getMessage());
+        }
+        fedoraClient.shutdown();
+    }
+}
@@ -0,0 +1,46 @@
+package org.phaidra.fedora.subscriber.sink;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.phaidra.fedora.subscriber.errors.ConfigException;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.pipeline.IndexUpdate;
+
+/**
+ * Destination of resolved index updates, called with a batch of
+ * updates at a time so that an implementation can write them to its
+ * backend in one round trip.
+ *
+ * Implementations are named by pfsupdater.sink.class, or
+ * pfsupdater.sink.NAME.class for each sink listed in pfsupdater.sinks,
+ * in updater.properties and need a public no-argument constructor.
+ * Every sink of an updater sees every update routed to it, at its own
+ * pace. process() is never called
+ * concurrently for the same sink instance, unless it is a
+ * ConcurrentBatchSink, and the batches arrive in
+ * the order the updates were resolved, so updates to one PID are seen
+ * in arrival order. All updates of a batch are of the same repository.
+ *
+ * A PhaidraFedoraSubscriberException other than a
+ * FedoraObjectNotFoundException or ConfigException tells that the
+ * backend is in trouble and counts against the circuit breaker of the
+ * repository; see RepositoryGuard.
+ */
+public interface BatchSink {
+
+    /**
+     * Called once before the first batch with the properties of the
+     * updater the sink belongs to, where the pfsupdater.sink.NAME.*
+     * properties of a named sink are also set as pfsupdater.sink.*.
+     */
+    void configure(String updaterName, Properties updaterProps) throws ConfigException;
+
+    void process(List<IndexUpdate> updates) throws PhaidraFedoraSubscriberException;
+
+    /**
+     * Called once after the last batch.
+     */
+    void close();
+
+}
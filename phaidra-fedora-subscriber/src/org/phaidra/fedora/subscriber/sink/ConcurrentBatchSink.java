@@ -0,0 +1,18 @@
+package org.phaidra.fedora.subscriber.sink;
+
+/**
+ * A BatchSink whose process() may be called by several threads at once,
+ * with any number of updates of one repository.
+ *
+ * With pfsupdater.executionMode=virtual such a sink is not handed
+ * batches: every update is handed over on its own, on the virtual thread
+ * that runs it, as soon as its repository is resolved. The updates of
+ * one PID are still handed over one at a time and in arrival order. How
+ * many calls reach a repository at once is bounded by the concurrency
+ * limit of its sink RepositoryGuard, see pfsrepository.concurrencyMaxLimit.
+ * Sinks that do not implement this interface get their batches one at
+ * a time in every execution mode.
+ */
+public interface ConcurrentBatchSink extends BatchSink {
+
+}
@@ -0,0 +1,66 @@
+package org.phaidra.fedora.subscriber.sink;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import org.phaidra.fedora.subscriber.errors.FedoraObjectNotFoundException;
+import org.phaidra.fedora.subscriber.errors.PhaidraFedoraSubscriberException;
+import org.phaidra.fedora.subscriber.fedora.ObjectInfo;
+import org.phaidra.fedora.subscriber.fedora.ObjectInfoSource;
+import org.phaidra.fedora.subscriber.pipeline.IndexUpdate;
+
+/**
+ * The default sink: logs every update it receives. With
+ * pfsupdater.sink.objectInfo=true it also logs the state, label and
+ * last modification of each object, looked up through the object info
+ * cache.
+ */
+public class LoggingBatchSink implements ConcurrentBatchSink, ObjectInfoSink {
+
+    private final Logger logger = Logger.getLogger(LoggingBatchSink.class);
+
+    private boolean logObjectInfo = false;
+
+    private ObjectInfoSource objectInfoSource = null;
+
+    public void configure(String updaterName, Properties updaterProps) {
+        logObjectInfo = "true".equalsIgnoreCase(updaterProps.getProperty("pfsupdater.sink.objectInfo"));
+    }
+
+    public boolean usesObjectInfo() {
+        return logObjectInfo;
+    }
+
+    public void setObjectInfoSource(ObjectInfoSource objectInfoSource) {
+        this.objectInfoSource = objectInfoSource;
+    }
+
+    public void process(List<IndexUpdate> updates) throws PhaidraFedoraSubscriberException {
+        Iterator<IndexUpdate> it = updates.iterator();
+        while (it.hasNext()) {
+            IndexUpdate update = it.next();
+            logger.info("Index updated by " + update.getMessageCount()
+                    + " notification message(s) in repository\n" + update.getRepositoryName());
+            if (objectInfoSource != null && !update.isDelete())
+                logObjectInfo(update);
+        }
+    }
+
+    public void close() {
+    }
+
+    private void logObjectInfo(IndexUpdate update) throws PhaidraFedoraSubscriberException {
+        ObjectInfo info;
+        try {
+            info = objectInfoSource.getObjectInfo(update.getRepositoryName(), update.getPid());
+        } catch (FedoraObjectNotFoundException fonfe) {
+            logger.info("Object " + update.getPid() + " is no longer in repository " + update.getRepositoryName());
+            return;
+        }
+        logger.info("Object " + info.getPid() + " state=" + info.getState() + " label=" + info.getLabel()
+                + " lastModifiedDate=" + info.getLastModifiedDate());
+    }
+}
@@ -0,0 +1,26 @@
+package org.phaidra.fedora.subscriber.sink;
+
+import org.phaidra.fedora.subscriber.fedora.ObjectInfoSource;
+
+/**
+ * A BatchSink that looks up the Fedora objects of its updates. Such a
+ * sink is handed the object info cache shared by the webapp, which
+ * reads the FOXML files of the object store where it can and pools the
+ * SOAP clients where it cannot, so repeated lookups of an object cost
+ * no round trip to Fedora. The cache is only created, and only kept
+ * current from the messages, once a sink uses it.
+ */
+public interface ObjectInfoSink extends BatchSink {
+
+    /**
+     * @return whether the sink, as configured, looks objects up; asked
+     *         after configure()
+     */
+    boolean usesObjectInfo();
+
+    /**
+     * Called after configure() and before the first batch, if
+     * usesObjectInfo() is true.
+     */
+    void setObjectInfoSource(ObjectInfoSource objectInfoSource);
+}